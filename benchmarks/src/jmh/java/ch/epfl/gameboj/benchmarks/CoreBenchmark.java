@@ -0,0 +1,207 @@
+package ch.epfl.gameboj.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ch.epfl.gameboj.AddressMap;
+import ch.epfl.gameboj.GameBoy;
+import ch.epfl.gameboj.component.Timer;
+import ch.epfl.gameboj.component.cartridge.Cartridge;
+import ch.epfl.gameboj.component.cpu.Alu;
+import ch.epfl.gameboj.component.cpu.Cpu;
+
+/**
+ * Benchmarks of the parts of the emulator the cpu goes through at each
+ * instruction: the bus, the alu, the timer and the execution of instructions
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CoreBenchmark {
+
+    private static final int BATCH = 1024;
+
+    /**
+     * A GameBoy running forever a loop mixing the most common kinds of
+     * instructions: loads, arithmetic, accesses through HL, stack operations,
+     * calls, compares and jumps
+     */
+    @State(Scope.Thread)
+    public static class Machine {
+        GameBoy gameBoy;
+        int[] addresses = new int[BATCH];
+        int[] values = new int[BATCH];
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            byte[] code = new byte[0x2010];
+            int[] start = { 0xC3, 0x50, 0x01 }; // JP 0x0150
+            int[] loop = {
+                    0x31, 0xFE, 0xFF, // LD SP,0xFFFE
+                    0x21, 0x00, 0xC0, // LD HL,0xC000
+                    0x80, 0xA9, 0x04, 0x0C, 0x57, 0x5A, // ADD, XOR, INC, LD
+                    0x77, 0x7E, 0x23, 0xC5, 0xD1, // (HL), INC HL, PUSH, POP
+                    0xCB, 0x11, 0xFE, 0x10, // RL C, CP 0x10
+                    0xCD, 0x00, 0x20, // CALL 0x2000
+                    0x7C, 0xFE, 0xD0, 0x20, 0x03, // if H != 0xD0 skip
+                    0x21, 0x00, 0xC0, // LD HL,0xC000
+                    0xC3, 0x56, 0x01 }; // JP 0x0156
+            int[] function = { 0x86, 0x3D, 0xC9 }; // ADD (HL), DEC A, RET
+            copy(start, code, 0x100);
+            copy(loop, code, 0x150);
+            copy(function, code, 0x2000);
+            gameBoy = new GameBoy(Cartridge.ofBytes(Programs.rom(code)));
+
+            for (int i = 0; i < BATCH; ++i) {
+                // Work ram, high ram and registers of the timer
+                int[] bases = { AddressMap.WORK_RAM_START,
+                        AddressMap.HIGH_RAM_START, AddressMap.REG_DIV };
+                int[] sizes = { AddressMap.WORK_RAM_SIZE,
+                        AddressMap.HIGH_RAM_SIZE, 4 };
+                addresses[i] = bases[i % 3] + (i * 7919) % sizes[i % 3];
+                values[i] = (i * 31) & 0xFF;
+            }
+        }
+
+        private static void copy(int[] bytes, byte[] code, int address) {
+            for (int i = 0; i < bytes.length; ++i) {
+                code[address + i] = (byte) bytes[i];
+            }
+        }
+    }
+
+    /**
+     * The number of cycles emulated by the cpu benchmark, reported per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long emulatedCycles;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            emulatedCycles = 0;
+        }
+    }
+
+    /**
+     * A timer counting at its fastest frequency, which raises an interrupt
+     * every 64 cycles
+     */
+    @State(Scope.Thread)
+    public static class Clock {
+        Timer timer;
+        long cycle;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            timer = new Timer(new Cpu());
+            timer.write(AddressMap.REG_TAC, 0b101);
+            cycle = 0;
+        }
+    }
+
+    /**
+     * A GameBoy whose cpu is halted until the timer requests an interrupt,
+     * every 4096 cycles, whose handler only increments a counter in high ram
+     */
+    @State(Scope.Thread)
+    public static class IdleMachine {
+        GameBoy gameBoy;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            byte[] code = new byte[0x160];
+            int[] handler = { 0x3C, 0xE0, 0x80, 0xD9 }; // INC A, LDH (0x80),A, RETI
+            int[] start = { 0xC3, 0x50, 0x01 }; // JP 0x0150
+            int[] program = {
+                    0x3E, 0x06, 0xE0, 0x07, // TAC = enabled, bit 5
+                    0x3E, 0x04, 0xE0, 0xFF, // IE = timer
+                    0xAF, 0xFB, // XOR A, EI
+                    0x76, 0x18, 0xFD }; // HALT, JR -3
+            Machine.copy(handler, code, 0x50);
+            Machine.copy(start, code, 0x100);
+            Machine.copy(program, code, 0x150);
+            gameBoy = new GameBoy(Cartridge.ofBytes(Programs.rom(code)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void busRead(Machine machine, Blackhole blackhole) {
+        for (int address : machine.addresses) {
+            blackhole.consume(machine.gameBoy.bus().read(address));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void busWrite(Machine machine) {
+        for (int i = 0; i < BATCH; ++i) {
+            machine.gameBoy.bus().write(machine.addresses[i],
+                    machine.values[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void aluAddSub(Machine machine, Blackhole blackhole) {
+        int[] values = machine.values;
+        for (int i = 0; i < BATCH; ++i) {
+            int first = values[i];
+            int second = values[BATCH - 1 - i];
+            blackhole.consume(Alu.add(first, second, (i & 1) == 0));
+            blackhole.consume(Alu.sub(first, second, (i & 2) == 0));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void aluAdd16(Machine machine, Blackhole blackhole) {
+        int[] addresses = machine.addresses;
+        for (int i = 0; i < BATCH; ++i) {
+            blackhole.consume(Alu.add16H(addresses[i], addresses[BATCH - 1 - i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void timerCycle(Clock clock) {
+        for (int i = 0; i < BATCH; ++i) {
+            clock.timer.cycle(clock.cycle++);
+        }
+    }
+
+    // Measures the number of cycles of the loop emulated per second, the
+    // execution of its instructions through Cpu.dispatch dominating it
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void cpuDispatch(Machine machine, Counters counters) {
+        GameBoy gameBoy = machine.gameBoy;
+        gameBoy.runUntil(gameBoy.cycles() + BATCH);
+        counters.emulatedCycles += BATCH;
+    }
+
+    // Measures the number of cycles emulated per second by a cpu waiting for
+    // timer interrupts, which are skipped until the next interrupt
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void haltedOnTimer(IdleMachine machine, Counters counters) {
+        GameBoy gameBoy = machine.gameBoy;
+        gameBoy.runUntil(gameBoy.cycles() + BATCH * BATCH);
+        counters.emulatedCycles += BATCH * BATCH;
+    }
+}
@@ -0,0 +1,69 @@
+package ch.epfl.gameboj.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ch.epfl.bonus.compiler.Optimization;
+import ch.epfl.gameboj.GameBoy;
+import ch.epfl.gameboj.component.cartridge.Cartridge;
+
+/**
+ * Runs programs calling small functions compiled with and without inlining,
+ * the peephole optimizer being applied in both cases. Besides the time taken
+ * by a run, the cyclesPerRun counter gives the number of cycles the program
+ * takes on the emulated cpu, which does not depend on the machine running the
+ * benchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class InliningBenchmark {
+
+    @Param({ "calls", "loops" })
+    public String program;
+
+    @Param({ "false", "true" })
+    public boolean inlining;
+
+    private ByteBuffer rom;
+
+    /**
+     * The number of cycles taken by the last run, the benchmark runs on a
+     * single thread so that it is not summed with the one of other threads
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long cyclesPerRun;
+    }
+
+    @Setup
+    public void compile() throws IOException {
+        Set<Optimization> optimizations = EnumSet.of(Optimization.PEEPHOLE);
+        if (inlining) {
+            optimizations.add(Optimization.INLINING);
+        }
+        rom = Programs.compile(program, optimizations);
+    }
+
+    @Benchmark
+    public GameBoy runUntilHalted(Counters counters) {
+        GameBoy gameBoy = new GameBoy(Cartridge.ofBuffer(rom));
+        gameBoy.runUntilCpuHalted();
+        counters.cyclesPerRun = gameBoy.cycles();
+        return gameBoy;
+    }
+}
@@ -0,0 +1,76 @@
+package ch.epfl.gameboj.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ch.epfl.gameboj.GameBoy;
+import ch.epfl.gameboj.component.cartridge.Cartridge;
+
+/**
+ * Runs programs produced by the compiler from start until the cpu halts at
+ * the end of main. Besides the runs per second, the emulatedCycles counter
+ * gives the number of emulated cycles per second, which divided by 10^6 is
+ * the emulated frequency in MHz (the real hardware runs at
+ * GameBoy.cyclesPerSecond). Each program is run with and without the trusted
+ * mode, see Preconditions.TRUSTED
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ProgramBenchmark {
+
+    @Param({ "fib", "loops", "arithmetic" })
+    public String program;
+
+    private ByteBuffer rom;
+
+    /**
+     * The number of cycles emulated, reported per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long emulatedCycles;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            emulatedCycles = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void compile() throws IOException {
+        rom = Programs.compile(program);
+    }
+
+    // Loading the rom from memory is cheap enough to be part of the measured
+    // code, which therefore includes the creation of the GameBoy
+    @Benchmark
+    public GameBoy runUntilHalted(Counters counters) {
+        GameBoy gameBoy = new GameBoy(Cartridge.ofBuffer(rom));
+        gameBoy.runUntilCpuHalted();
+        counters.emulatedCycles += gameBoy.cycles();
+        return gameBoy;
+    }
+
+    // The trusted mode is read once when Preconditions is loaded, so it needs
+    // a JVM of its own
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dgameboj.trusted=true")
+    public GameBoy runUntilHaltedTrusted(Counters counters) {
+        return runUntilHalted(counters);
+    }
+}
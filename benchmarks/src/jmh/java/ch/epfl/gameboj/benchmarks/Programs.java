@@ -0,0 +1,89 @@
+package ch.epfl.gameboj.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.epfl.bonus.compiler.Compiler;
+import ch.epfl.bonus.compiler.Optimization;
+import ch.epfl.bonus.parser.Expression;
+import ch.epfl.bonus.parser.Parser;
+import ch.epfl.bonus.scanner.Scanner;
+
+/**
+ * Gives access to the programs written in the language of the compiler that
+ * are used by the benchmarks, they are stored as resources next to this class
+ */
+final class Programs {
+
+    private Programs() {
+    }
+
+    /**
+     * Returns the source code of the program with the given name
+     * 
+     * @param name
+     *            the name of the program, without its extension
+     * @return the source code of the program
+     * @throws IOException
+     *             if the program does not exist or cannot be read
+     */
+    static String source(String name) throws IOException {
+        try (InputStream s = Programs.class.getResourceAsStream(name + ".gbl")) {
+            if (s == null) {
+                throw new IOException("Unknown program " + name);
+            }
+            return new String(s.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Compiles the program with the given name and returns the resulting rom
+     * 
+     * @param name
+     *            the name of the program, without its extension
+     * @return a read-only buffer containing the rom of the program
+     * @throws IOException
+     *             if the program cannot be read
+     */
+    static ByteBuffer compile(String name) throws IOException {
+        return compile(name, EnumSet.noneOf(Optimization.class));
+    }
+
+    /**
+     * Compiles the program with the given name with the given optimizations
+     * and returns the resulting rom
+     * 
+     * @param name
+     *            the name of the program, without its extension
+     * @param optimizations
+     *            the optimizations applied by the compiler
+     * @return a read-only buffer containing the rom of the program
+     * @throws IOException
+     *             if the program cannot be read
+     */
+    static ByteBuffer compile(String name, Set<Optimization> optimizations)
+            throws IOException {
+        List<Expression> expressions = new Parser(
+                new Scanner(source(name)).getTokens()).parse();
+        return new Compiler(optimizations).compileToRom(expressions);
+    }
+
+    /**
+     * Returns the given bytes, padded with zeros, as the rom of a cartridge
+     * without bank switching
+     * 
+     * @param code
+     *            the bytes of the rom, starting at address 0
+     * @return the bytes of the rom
+     */
+    static byte[] rom(byte[] code) {
+        byte[] bytes = new byte[0x8000];
+        System.arraycopy(code, 0, bytes, 0, code.length);
+        return bytes;
+    }
+}
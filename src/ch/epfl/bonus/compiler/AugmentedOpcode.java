@@ -1,13 +1,7 @@
 package ch.epfl.bonus.compiler;
 
-import java.util.LinkedList;
-import java.util.List;
-
-import ch.epfl.bonus.compiler.Compiler.ConditionalBody;
 import ch.epfl.bonus.compiler.Compiler.Function;
-import ch.epfl.bonus.compiler.Compiler.WhileLoop;
-import ch.epfl.bonus.language.GameboyLanguageException;
-import ch.epfl.gameboj.bits.Bits;
+import ch.epfl.bonus.tools.ByteArrayBuilder;
 
 public final class AugmentedOpcode {
 
@@ -19,6 +13,9 @@ public final class AugmentedOpcode {
 	private final Opcode opcode;
 	private final Object argument;
 	private TO_RETRIEVE paramToRetrieve;
+	// Added to the value retrieved from the function, used by the optimizations
+	// to merge a constant move of HL with a move depending on a stack size
+	private int offset;
 
 	public AugmentedOpcode(Opcode opcode) {
 		this(false, opcode, null);
@@ -42,7 +39,49 @@ public final class AugmentedOpcode {
 		this.paramToRetrieve = parameter;
 	}
 
+	public AugmentedOpcode(Opcode opcode, String signature, TO_RETRIEVE parameter, int offset) {
+		this(opcode, signature, parameter);
+		this.offset = offset;
+	}
+
+	// A label is a pseudo-instruction marking a position in the code, it takes
+	// no space in the rom
+	static AugmentedOpcode label(Label label) {
+		return new AugmentedOpcode(false, null, label);
+	}
+
+	public boolean isLabel() {
+		return opcode == null;
+	}
+
+	Label getLabel() {
+		return (Label) argument;
+	}
+
+	Opcode getOpcode() {
+		return opcode;
+	}
+
+	Object getArgument() {
+		return argument;
+	}
+
+	TO_RETRIEVE getParamToRetrieve() {
+		return paramToRetrieve;
+	}
+
+	int getOffset() {
+		return offset;
+	}
+
+	// The number of cycles the instruction takes when it does not branch
+	int cycles() {
+		return isLabel() ? 0 : opcode.cycles;
+	}
+
 	public String toString() {
+		if (isLabel())
+			return "label\n\n";
 		StringBuilder sb = new StringBuilder();
 		if (isPrefixed)
 			sb.append("0xCB\n");
@@ -56,68 +95,61 @@ public final class AugmentedOpcode {
 		return sb.toString();
 	}
 
-	public List<Integer> translate() {
-		List<Integer> instructions = new LinkedList<>();
+	void translate(ByteArrayBuilder out, CompilationContext context) {
+		if (isLabel())
+			return;
 		if (isPrefixed)
-			instructions.add(0xCB);
-		instructions.add(opcode.encoding);
+			out.write(0xCB);
+		out.write(opcode.encoding);
 		if (argument == null) {
 			// Add nothing
 		} else if (argument instanceof Integer) {
 			int arg = (int) argument;
 			if (!isPrefixed) {
 				if (opcode.totalBytes == 2) {
-					instructions.add(arg);
+					out.write(arg);
 				} else {
-					instructions.add(arg & 0xFF);
-					instructions.add(arg >> 8);
+					out.write16(arg);
 				}
 			} else {
 				if (opcode.totalBytes == 3) {
-					instructions.add(arg);
+					out.write(arg);
 				} else {
-					instructions.add(arg & 0xFF);
-					instructions.add(arg >> 8);
+					out.write16(arg);
 				}
 			}
 		} else if (argument instanceof String) {
 			int address = 0;
-			Function function = Compiler.functionSignatures.get(argument);
-			if (function == null)
-				throw new GameboyLanguageException(argument + " hasn't been declared");
+			Function function = context.function((String) argument);
 			switch (paramToRetrieve) {
 			case ROM_ADDRESS:
 				address = function.getRomAddress();
 				break;
 			case STACK:
-				address = function.getVariablesSize();
+				address = function.getVariablesSize() + offset;
 				break;
 			case COMPLEMENT_STACK:
-				address = (~function.getVariablesSize()) + 1;
+				address = (~function.getVariablesSize()) + 1 + offset;
 				break;
 			}
-			instructions.add(address & 0xFF);
-			instructions.add(address >> 8);
-		} else if (argument instanceof ConditionalBody) {
-			int jump = ((ConditionalBody) argument).size();
-			if (jump > 127) {
-				throw new GameboyLanguageException("Body to big to do a relative jump");
-			}
-			instructions.add(jump);
-		} else if (argument instanceof WhileLoop) {
-			int size = ((WhileLoop) argument).size() + Opcode.JR_E8.totalBytes;
-			if (size > 127) {
-				throw new GameboyLanguageException("Body to big to do a relative jump");
+			out.write16(address);
+		} else if (argument instanceof Label && opcode.totalBytes == 3) {
+			out.write16(((Label) argument).address());
+		} else if (argument instanceof Label) {
+			// The jump is relative to the address of the next instruction
+			int jump = ((Label) argument).address() - (out.size() + 1);
+			// The branch relaxation has replaced the jumps that are too far away
+			if (jump < -128 || jump > 127) {
+				throw new IllegalStateException("Relative jump out of range : " + jump);
 			}
-			instructions.add(Bits.clip(16, ~size + 1));
+			out.write(jump);
 		} else {
 			throw new IllegalArgumentException("Argument " + argument.toString() + " had unexpected type");
 		}
-		return instructions;
 	}
 
 	public int size() {
-		return opcode.totalBytes;
+		return isLabel() ? 0 : opcode.totalBytes;
 	}
 
 }
@@ -0,0 +1,96 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces the relative jumps of a function whose target is too far away by
+ * absolute jumps.
+ *
+ * The code generator only emits relative jumps, which are shorter and faster
+ * but can only move by -128 to 127 bytes. As replacing a jump makes the code
+ * longer, and may thus bring other jumps out of range, the addresses of the
+ * labels are computed again until no jump has to be replaced anymore. Jumps
+ * are only ever made longer, so this always ends
+ */
+final class BranchRelaxation {
+
+	private BranchRelaxation() {
+	}
+
+	/**
+	 * Returns the given code where every relative jump which cannot reach its
+	 * target is replaced by the equivalent absolute jump, the given code is
+	 * left unchanged
+	 *
+	 * @param code
+	 *            the code of a function, whose jumps only target labels of the
+	 *            function
+	 * @return the code whose jumps all reach their target
+	 */
+	static List<AugmentedOpcode> relax(List<AugmentedOpcode> code) {
+		List<AugmentedOpcode> current = code;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Map<Label, Integer> offsets = offsetsOfLabels(current);
+			List<AugmentedOpcode> next = new ArrayList<>(current.size());
+			int offset = 0;
+			for (AugmentedOpcode instruction : current) {
+				offset += instruction.size();
+				if (isRelativeJump(instruction) && !isInRange(offsets.get(instruction.getLabel()) - offset)) {
+					next.add(new AugmentedOpcode(absoluteVersionOf(instruction.getOpcode()), instruction.getLabel()));
+					changed = true;
+				} else {
+					next.add(instruction);
+				}
+			}
+			current = next;
+		}
+		return current;
+	}
+
+	// The offset of each label from the start of the function, labels being
+	// compared by identity as they are distinct objects
+	private static Map<Label, Integer> offsetsOfLabels(List<AugmentedOpcode> code) {
+		Map<Label, Integer> offsets = new IdentityHashMap<>();
+		int offset = 0;
+		for (AugmentedOpcode instruction : code) {
+			if (instruction.isLabel())
+				offsets.put(instruction.getLabel(), offset);
+			offset += instruction.size();
+		}
+		return offsets;
+	}
+
+	private static boolean isRelativeJump(AugmentedOpcode instruction) {
+		if (instruction.isLabel())
+			return false;
+		Opcode.Family family = instruction.getOpcode().family;
+		return family == Opcode.Family.JR_E8 || family == Opcode.Family.JR_CC_E8;
+	}
+
+	// The jump is relative to the address of the next instruction
+	private static boolean isInRange(int jump) {
+		return jump >= Byte.MIN_VALUE && jump <= Byte.MAX_VALUE;
+	}
+
+	private static Opcode absoluteVersionOf(Opcode relativeJump) {
+		switch (relativeJump) {
+		case JR_E8:
+			return Opcode.JP_N16;
+		case JR_NZ_E8:
+			return Opcode.JP_NZ_N16;
+		case JR_Z_E8:
+			return Opcode.JP_Z_N16;
+		case JR_NC_E8:
+			return Opcode.JP_NC_N16;
+		case JR_C_E8:
+			return Opcode.JP_C_N16;
+		default:
+			throw new IllegalArgumentException("Not a relative jump : " + relativeJump);
+		}
+	}
+}
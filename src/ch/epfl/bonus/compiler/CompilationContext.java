@@ -0,0 +1,101 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.epfl.bonus.compiler.Compiler.FreeSpace;
+import ch.epfl.bonus.compiler.Compiler.Function;
+import ch.epfl.bonus.language.GameboyLanguageException;
+
+/**
+ * Holds everything that is specific to one compilation : the functions
+ * declared so far, the space left in the rom and the function currently being
+ * compiled. A new context is created by every call to
+ * {@link Compiler#compile(java.util.List)} so that several compilations can
+ * run at the same time without sharing any state
+ */
+final class CompilationContext {
+
+	private final Map<String, Function> functionSignatures = new LinkedHashMap<>();
+	private final FreeSpace romSpace = new FreeSpace(CartridgeOrganization.ROM_FUN_AREA_START,
+			CartridgeOrganization.ROM_FUN_AREA_SIZE);
+	private Function currentFunction;
+
+	/**
+	 * Declares the given function and makes it the function currently being
+	 * compiled
+	 * 
+	 * @param function
+	 *            the function that will be compiled next
+	 * @throws GameboyLanguageException
+	 *             if a function with the same signature has already been declared
+	 */
+	void beginFunction(Function function) {
+		if (functionSignatures.containsKey(function.signature)) {
+			throw new GameboyLanguageException("a function called " + function.name + " with "
+					+ function.numberOfArguments + " arguments has already been declared");
+		}
+		functionSignatures.put(function.signature, function);
+		currentFunction = function;
+	}
+
+	/**
+	 * Returns the function currently being compiled
+	 * 
+	 * @return the function currently being compiled
+	 */
+	Function currentFunction() {
+		return currentFunction;
+	}
+
+	/**
+	 * Returns the function with the given signature
+	 * 
+	 * @param signature
+	 *            the signature of the function (its name followed by its number
+	 *            of arguments)
+	 * @return the function with the given signature
+	 * @throws GameboyLanguageException
+	 *             if no function with this signature has been declared
+	 */
+	Function function(String signature) {
+		Function function = functionSignatures.get(signature);
+		if (function == null)
+			throw new GameboyLanguageException(signature + " hasn't been declared");
+		return function;
+	}
+
+	/**
+	 * Returns true if a function with the given signature has been declared
+	 * 
+	 * @param signature
+	 *            the signature of the function
+	 * @return true if a function with the given signature has been declared
+	 */
+	boolean hasFunction(String signature) {
+		return functionSignatures.containsKey(signature);
+	}
+
+	/**
+	 * Returns the functions declared so far, in the order of their declaration
+	 * 
+	 * @return the functions declared so far
+	 */
+	Collection<Function> functions() {
+		return functionSignatures.values();
+	}
+
+	/**
+	 * Reserves the given amount of bytes in the rom
+	 * 
+	 * @param amount
+	 *            the number of bytes to reserve
+	 * @return the address of the first reserved byte
+	 * @throws IllegalArgumentException
+	 *             if there is not enough space left in the rom
+	 */
+	int allocate(int amount) {
+		return romSpace.allocate(amount);
+	}
+}
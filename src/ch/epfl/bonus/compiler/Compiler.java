@@ -1,16 +1,22 @@
 package ch.epfl.bonus.compiler;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 import ch.epfl.bonus.compiler.AugmentedOpcode.TO_RETRIEVE;
+import ch.epfl.bonus.compiler.RegisterAllocation.Register;
 import ch.epfl.bonus.language.GameboyLanguageException;
 import ch.epfl.bonus.parser.Expression;
 import ch.epfl.bonus.parser.Expression.Binary;
@@ -24,21 +30,85 @@ import ch.epfl.bonus.parser.Expression.Visitor;
 import ch.epfl.bonus.parser.Expression.WhileStatement;
 import ch.epfl.bonus.scanner.Token;
 import ch.epfl.bonus.scanner.TokenType;
-import ch.epfl.bonus.tools.CountingOutputStream;
+import ch.epfl.bonus.tools.ByteArrayBuilder;
 import ch.epfl.gameboj.AddressMap;
+import ch.epfl.gameboj.Preconditions;
 import ch.epfl.gameboj.bits.Bits;
 
 public class Compiler {
 
-	private FreeSpace romSpace = new FreeSpace(CartridgeOrganization.ROM_FUN_AREA_START,
-			CartridgeOrganization.ROM_FUN_AREA_SIZE);
-	static public Map<String, Function> functionSignatures = new HashMap<>();
-	private Function currentFunction;
+	/**
+	 * The maximum size in bytes of an inlined function, unless another one is
+	 * given to the compiler
+	 */
+	public static final int DEFAULT_INLINING_BUDGET = 32;
 
-	class CompilerVisitor implements Visitor<List<AugmentedOpcode>> {
+	private final Set<Optimization> optimizations;
+	private final int inliningBudget;
+
+	/**
+	 * Creates a compiler which does not optimize the code it generates
+	 */
+	public Compiler() {
+		this(EnumSet.noneOf(Optimization.class));
+	}
+
+	/**
+	 * Creates a compiler applying the given optimizations to the code it
+	 * generates
+	 * 
+	 * @param optimizations
+	 *            the optimizations to apply
+	 */
+	public Compiler(Set<Optimization> optimizations) {
+		this(optimizations, DEFAULT_INLINING_BUDGET);
+	}
+
+	/**
+	 * Creates a compiler applying the given optimizations to the code it
+	 * generates, which inlines the functions whose code takes at most the given
+	 * number of bytes when inlining is one of them
+	 * 
+	 * @param optimizations
+	 *            the optimizations to apply
+	 * @param inliningBudget
+	 *            the maximum size in bytes of an inlined function
+	 * @throws IllegalArgumentException
+	 *             if the budget is negative
+	 */
+	public Compiler(Set<Optimization> optimizations, int inliningBudget) {
+		Preconditions.checkArgument(inliningBudget >= 0);
+		EnumSet<Optimization> copy = EnumSet.noneOf(Optimization.class);
+		copy.addAll(optimizations);
+		this.optimizations = Collections.unmodifiableSet(copy);
+		this.inliningBudget = inliningBudget;
+	}
+
+	// A compiler holds no state of its own, everything specific to a compilation
+	// lives in a CompilationContext so that the same compiler can be used by
+	// several threads at once
+	// The visitor appends the instructions of each expression at the end of the
+	// function currently being compiled instead of returning them, so that no
+	// list has to be copied into the one of its parent expression
+	class CompilerVisitor implements Visitor<Void> {
+
+		private final CompilationContext context;
+		private final Memoization memoization;
+		// The variables of the function being compiled kept in a register, they are
+		// only in their register when no call is being prepared
+		private RegisterAllocation registers = RegisterAllocation.none();
+		private int callsBeingPrepared = 0;
+		// The start of the body of the function being compiled, where its tail
+		// calls to itself jump
+		private Label entry;
+
+		CompilerVisitor(CompilationContext context, Memoization memoization) {
+			this.context = context;
+			this.memoization = memoization;
+		}
 
 		@Override
-		public List<AugmentedOpcode> visitBinaryExpr(Binary binaryExpr) {
+		public Void visitBinaryExpr(Binary binaryExpr) {
 			// In the base case the left operand is visited first, its result is then put in
 			// the register B. Then the right operand is visited and its result is put in
 			// the register A. Finally the opcode corresponding to the operator is executed
@@ -48,84 +118,85 @@ public class Compiler {
 			// different from other binary operators it is defined in its own visit function
 			if (binaryExpr.operator.type == TokenType.EQUAL)
 				return visitEqualBinary(binaryExpr.left, binaryExpr.right);
-			List<AugmentedOpcode> bytecode = new LinkedList<>();
-			// If the right operand is a function call we need to create a temporary
-			// variable to hold the value of the left operand as we have no guarantee that
-			// the register B won't be used
-			if (binaryExpr.right instanceof Expression.FunctionCall) {
+			// If the right operand is a function call or another binary expression we need
+			// to create a temporary variable to hold the value of the left operand as we
+			// have no guarantee that the register B won't be used
+			if (binaryExpr.right instanceof Expression.FunctionCall || binaryExpr.right instanceof Binary) {
 				// The character underscore is used because it is not a valid char in the
 				// language so there is no risk that it is the name of an actual variable
 				// defined by the programmer
-				String tempName = "_" + currentFunction.getVariablesSize();
+				String tempName = "_" + context.currentFunction().getVariablesSize();
 				Expression tempDeclaration = new Expression.VariableDeclaration(tempName, binaryExpr.left);
 				Expression tempVar = new Expression.Litteral(new Token(TokenType.IDENTIFIER, tempName, tempName, 0));
-				bytecode.addAll(tempDeclaration.accept(this));
-				bytecode.addAll(binaryExpr.right.accept(this));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_C_A));
-				bytecode.addAll(tempVar.accept(this));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_B_A));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_A_C));
+				tempDeclaration.accept(this);
+				binaryExpr.right.accept(this);
+				emit(Opcode.LD_C_A);
+				tempVar.accept(this);
+				emit(Opcode.LD_B_A);
+				emit(Opcode.LD_A_C);
 			} else {
-				bytecode.addAll(binaryExpr.left.accept(this));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_B_A));
-				bytecode.addAll(binaryExpr.right.accept(this));
+				binaryExpr.left.accept(this);
+				emit(Opcode.LD_B_A);
+				binaryExpr.right.accept(this);
 			}
 			switch (binaryExpr.operator.type) {
 			case SMALLER:
 			case GREATER_OR_EQUAL:
-				bytecode.add(new AugmentedOpcode(Opcode.LD_C_A));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_A_B));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_B_C));
+				emit(Opcode.LD_C_A);
+				emit(Opcode.LD_A_B);
+				emit(Opcode.LD_B_C);
 				//$FALL-THROUGH$
 			case SMALLER_OR_EQUAL:
 			case GREATER:
 			case EQUAL_EQUAL:
 			case BANG_EQUAL:
-				bytecode.add(new AugmentedOpcode(Opcode.CP_A_B));
+				emit(Opcode.CP_A_B);
 				break;
 			case PLUS:
-				bytecode.add(new AugmentedOpcode(Opcode.ADD_A_B));
+				emit(Opcode.ADD_A_B);
 				break;
 			case MINUS:
 				// In case of the subtraction the two registers must be swapped
-				bytecode.add(new AugmentedOpcode(Opcode.LD_C_B));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_B_A));
-				bytecode.add(new AugmentedOpcode(Opcode.LD_A_C));
-				bytecode.add(new AugmentedOpcode(Opcode.SUB_A_B));
+				emit(Opcode.LD_C_B);
+				emit(Opcode.LD_B_A);
+				emit(Opcode.LD_A_C);
+				emit(Opcode.SUB_A_B);
 				break;
 			case OR:
-				bytecode.add(new AugmentedOpcode(Opcode.OR_A_B));
+				emit(Opcode.OR_A_B);
 				break;
 			case AND:
-				bytecode.add(new AugmentedOpcode(Opcode.AND_A_B));
+				emit(Opcode.AND_A_B);
 				break;
 			case XOR:
-				bytecode.add(new AugmentedOpcode(Opcode.XOR_A_B));
+				emit(Opcode.XOR_A_B);
 				break;
 			default:
 				throw new GameboyLanguageException(binaryExpr.operator.type + " not supported yet");
 			}
-			return bytecode;
+			return null;
 		}
 
 		@Override
-		public List<AugmentedOpcode> visitLitteralExpr(Litteral litteralExpr) {
+		public Void visitLitteralExpr(Litteral litteralExpr) {
 			switch (litteralExpr.value.type) {
 			case NUMBER:
-				return List.of(new AugmentedOpcode(Opcode.LD_A_N8, litteralExpr.value.litteral));
+				emit(new AugmentedOpcode(Opcode.LD_A_N8, litteralExpr.value.litteral));
+				return null;
 			case IDENTIFIER: {
-				List<AugmentedOpcode> bytecodes = new LinkedList<>();
-				int index = currentFunction.getVariableIndex((String) litteralExpr.value.litteral);
-				if (index == 0) {
-					bytecodes.add(new AugmentedOpcode(Opcode.LD_A_HLR));
+				String name = (String) litteralExpr.value.litteral;
+				int index = context.currentFunction().getVariableIndex(name);
+				Register register = registerOf(name);
+				if (register != null) {
+					emit(register.load);
+				} else if (index == 0) {
+					emit(Opcode.LD_A_HLR);
 				} else {
-					bytecodes.add(new AugmentedOpcode(Opcode.LD_DE_N16, get16BitComplement(index)));
-					bytecodes.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
-					bytecodes.add(new AugmentedOpcode(Opcode.LD_A_HLR));
-					bytecodes.add(new AugmentedOpcode(Opcode.LD_DE_N16, index));
-					bytecodes.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
+					emitMoveOfHl(get16BitComplement(index));
+					emit(Opcode.LD_A_HLR);
+					emitMoveOfHl(index);
 				}
-				return bytecodes;
+				return null;
 			}
 			default:
 				throw new IllegalArgumentException("Unexpected type " + litteralExpr.value.type);
@@ -133,74 +204,142 @@ public class Compiler {
 		}
 
 		@Override
-		public List<AugmentedOpcode> visitVariableDeclarationExpr(VariableDeclaration declarationExpr) {
-			List<AugmentedOpcode> bytecode = new LinkedList<>();
-			int relativeIndex = currentFunction.addVariableToStack(declarationExpr.name);
+		public Void visitVariableDeclarationExpr(VariableDeclaration declarationExpr) {
+			int relativeIndex = context.currentFunction().addVariableToStack(declarationExpr.name);
 			int complement = get16BitComplement(relativeIndex);
 
 			// Get the value that will be assigned
-			bytecode.addAll(declarationExpr.value.accept(this));
+			declarationExpr.value.accept(this);
+
+			Register register = registerOf(declarationExpr.name);
+			if (register != null) {
+				emit(register.store);
+				return null;
+			}
 
 			// Go down to the right place in the stack
-			bytecode.add(new AugmentedOpcode(Opcode.LD_DE_N16, complement));
-			bytecode.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
+			emitMoveOfHl(complement);
 
 			// Assign the value to the correct address
-			bytecode.add(new AugmentedOpcode(Opcode.LD_HLR_A));
+			emit(Opcode.LD_HLR_A);
 
 			// Go back to the top of the stack
-			bytecode.add(new AugmentedOpcode(Opcode.LD_DE_N16, relativeIndex));
-			bytecode.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
-			return bytecode;
+			emitMoveOfHl(relativeIndex);
+			return null;
 		}
 
-		public List<AugmentedOpcode> visitFunctionCallExpr(FunctionCall functionCallExpr) {
+		public Void visitFunctionCallExpr(FunctionCall functionCallExpr) {
 
-			List<AugmentedOpcode> bytecodes = new LinkedList<>();
-			String calledFunctionName = functionCallExpr.name;
-			int calledFunctionNumberOfArguments = functionCallExpr.arguments.size();
-			String calledFunctionSignature = calledFunctionName + calledFunctionNumberOfArguments;
-			int counter = 0;
+			String calledFunctionSignature = signatureOf(functionCallExpr);
+
+			// The called function may modify every register, so the variables kept in
+			// a register are written back to the stack and read from there until the
+			// call returns
+			boolean spills = callsBeingPrepared == 0;
+			if (spills)
+				emitSpills(functionCallExpr);
+			++callsBeingPrepared;
+
+			// A function without arguments still needs its own frame above the one of
+			// the caller
+			if (functionCallExpr.arguments.isEmpty()) {
+				emit(new AugmentedOpcode(Opcode.LD_DE_N16, calledFunctionSignature, TO_RETRIEVE.STACK));
+				emit(Opcode.ADD_HL_DE);
+			}
+			emitArguments(functionCallExpr);
+
+			emit(new AugmentedOpcode(Opcode.CALL_N16, calledFunctionSignature, TO_RETRIEVE.ROM_ADDRESS));
+
+			--callsBeingPrepared;
+			if (spills) {
+				for (String variable : registers.filledAfter(functionCallExpr))
+					emitTransferToStack(variable, registers.registerOf(variable).fill);
+			}
+			return null;
+		}
 
+		// Writes the arguments of the given call at the bottom of the frame of the
+		// called function, HL is then at the top of this frame
+		private void emitArguments(FunctionCall functionCallExpr) {
+			String calledFunctionSignature = signatureOf(functionCallExpr);
+			int counter = 0;
 			for (Expression e : functionCallExpr.arguments) {
 				// Fetch the argument
 				if (counter != 0) {
-					bytecodes.add(new AugmentedOpcode(Opcode.LD_DE_N16, calledFunctionSignature,
-							TO_RETRIEVE.COMPLEMENT_STACK));
-					bytecodes.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
+					emit(new AugmentedOpcode(Opcode.LD_DE_N16, calledFunctionSignature, TO_RETRIEVE.COMPLEMENT_STACK));
+					emit(Opcode.ADD_HL_DE);
 				}
 
-				bytecodes.addAll(e.accept(this));
+				e.accept(this);
 
-				bytecodes.add(new AugmentedOpcode(Opcode.LD_DE_N16, calledFunctionSignature, TO_RETRIEVE.STACK));
-				bytecodes.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
+				emit(new AugmentedOpcode(Opcode.LD_DE_N16, calledFunctionSignature, TO_RETRIEVE.STACK));
+				emit(Opcode.ADD_HL_DE);
 
 				// Write it into the stack for the function called
-				bytecodes.addAll(Collections.nCopies(counter, new AugmentedOpcode(Opcode.DEC_HL)));
-				bytecodes.add(new AugmentedOpcode(Opcode.LD_HLR_A));
-				bytecodes.addAll(Collections.nCopies(counter, new AugmentedOpcode(Opcode.INC_HL)));
+				for (int i = 0; i < counter; ++i)
+					emit(Opcode.DEC_HL);
+				emit(Opcode.LD_HLR_A);
+				for (int i = 0; i < counter; ++i)
+					emit(Opcode.INC_HL);
 
 				counter++;
 			}
+		}
 
-			bytecodes.add(new AugmentedOpcode(Opcode.CALL_N16, calledFunctionSignature, TO_RETRIEVE.ROM_ADDRESS));
-			return bytecodes;
+		// A call of the function to itself whose result is directly returned
+		// reuses the frame of the function : its arguments are written over the
+		// current ones before jumping back to the start of the function. An
+		// argument still read by the following ones is kept on the stack of the
+		// processor until they all have been computed
+		private void emitTailCall(FunctionCall functionCallExpr) {
+			Function function = context.currentFunction();
+			List<Expression> arguments = functionCallExpr.arguments;
+			List<Integer> delayed = new ArrayList<>();
+			emitSpills(functionCallExpr);
+			++callsBeingPrepared;
+			for (int i = 0; i < arguments.size(); ++i) {
+				Expression argument = arguments.get(i);
+				// An argument passed unchanged is already in place
+				if (argument instanceof Litteral && ((Litteral) argument).value.type == TokenType.IDENTIFIER
+						&& function.getVariableIndex((String) ((Litteral) argument).value.litteral) == i)
+					continue;
+				argument.accept(this);
+				boolean isReadAfter = false;
+				for (Expression next : arguments.subList(i + 1, arguments.size())) {
+					for (String variable : VariablesRead.of(next))
+						isReadAfter |= function.getVariableIndex(variable) == i;
+				}
+				if (isReadAfter) {
+					emit(Opcode.PUSH_AF);
+					delayed.add(0, i);
+				} else {
+					emitMoveOfHl(get16BitComplement(i));
+					emit(Opcode.LD_HLR_A);
+					emitMoveOfHl(i);
+				}
+			}
+			for (int i : delayed) {
+				emit(Opcode.POP_AF);
+				emitMoveOfHl(get16BitComplement(i));
+				emit(Opcode.LD_HLR_A);
+				emitMoveOfHl(i);
+			}
+			--callsBeingPrepared;
+			emit(new AugmentedOpcode(Opcode.JP_N16, entry));
 		}
 
-		public List<AugmentedOpcode> visitFunctionBodyExpr(FunctionBody functionBodyExpr) {
+		public Void visitFunctionBodyExpr(FunctionBody functionBodyExpr) {
 			String name = functionBodyExpr.name;
 			int numberOfArguments = functionBodyExpr.nameOfArguments.size();
 			String functionSignature = name + numberOfArguments;
-			if (functionSignatures.containsKey(functionSignature)) {
-				throw new GameboyLanguageException("a function called " + name + " with " + numberOfArguments
-						+ " arguments has already been declared");
-			} else {
-				// It is necessary to have a reference to the current function being compiled as
-				// for example a variable need to know to which function it belongs when it
-				// wants to find its current value
-				currentFunction = new Function(name, numberOfArguments);
-				functionSignatures.put(functionSignature, currentFunction);
-			}
+			// It is necessary to have a reference to the current function being compiled as
+			// for example a variable need to know to which function it belongs when it
+			// wants to find its current value
+			Function currentFunction = new Function(name, numberOfArguments);
+			context.beginFunction(currentFunction);
+			registers = optimizations.contains(Optimization.REGISTER_ALLOCATION)
+					? RegisterAllocation.of(functionBodyExpr)
+					: RegisterAllocation.none();
 
 			for (String n : functionBodyExpr.nameOfArguments) {
 				currentFunction.addVariableToStack(n);
@@ -208,106 +347,326 @@ public class Compiler {
 			// Main is the only function where the stack needs to be incremented "manually"
 			// because it is the only function not called
 			if (functionSignature.equals("main0")) {
-				currentFunction
-						.addBytecode(new AugmentedOpcode(Opcode.LD_DE_N16, functionSignature, TO_RETRIEVE.STACK));
-				currentFunction.addBytecode(new AugmentedOpcode(Opcode.ADD_HL_DE));
+				emit(new AugmentedOpcode(Opcode.LD_DE_N16, functionSignature, TO_RETRIEVE.STACK));
+				emit(Opcode.ADD_HL_DE);
+				for (String memoized : memoization.functions())
+					emitClearTable(memoization.validTable(memoized));
+			}
+
+			entry = new Label();
+			emit(AugmentedOpcode.label(entry));
+			if (memoization.isMemoized(functionSignature))
+				emitLookupOfResult(currentFunction);
+
+			// The arguments kept in a register are read from the frame written by the
+			// caller
+			for (String argument : functionBodyExpr.nameOfArguments) {
+				Register register = registers.registerOf(argument);
+				if (register != null)
+					emitTransferToStack(argument, register.fill);
 			}
 
 			for (Expression e : functionBodyExpr.expressions) {
-				currentFunction.addAllBytecodes(e.accept(this));
+				e.accept(this);
 			}
 
 			if (name.equals("main"))
-				currentFunction.addBytecode(new AugmentedOpcode(Opcode.HALT));
+				emit(Opcode.HALT);
 			else {
-				currentFunction.addAllBytecodes(getEndOfFunction());
+				emitEndOfFunction(currentFunction);
 			}
-
-			currentFunction.romAddress = romSpace.allocate(currentFunction.size());
-
-			return currentFunction.bytecodes;
+			return null;
 		}
 
-		private List<AugmentedOpcode> visitEqualBinary(Expression leftOperand, Expression rightOperand) {
-			List<AugmentedOpcode> bytecodes = new LinkedList<>();
+		private Void visitEqualBinary(Expression leftOperand, Expression rightOperand) {
 			Token leftToken = ((Litteral) leftOperand).value;
-			bytecodes.addAll(rightOperand.accept(this));
+			rightOperand.accept(this);
 			switch (leftToken.type) {
 			case OUTPUT:
-				bytecodes.add(new AugmentedOpcode(Opcode.LD_N16R_A, AddressMap.SERIAL_PORT));
+				emit(new AugmentedOpcode(Opcode.LD_N16R_A, AddressMap.SERIAL_PORT));
 				break;
 			case IDENTIFIER:
-				int index = currentFunction.getVariableIndex((String) leftToken.litteral);
-				bytecodes.add(new AugmentedOpcode(Opcode.LD_DE_N16, index));
-				bytecodes.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
-				bytecodes.add(new AugmentedOpcode(Opcode.LD_HLR_A));
-				bytecodes.add(new AugmentedOpcode(Opcode.LD_DE_N16, get16BitComplement(index)));
-				bytecodes.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
+				String name = (String) leftToken.litteral;
+				int index = context.currentFunction().getVariableIndex(name);
+				Register register = registerOf(name);
+				if (register != null) {
+					emit(register.store);
+				} else {
+					// Like every variable it lies below HL
+					emitMoveOfHl(get16BitComplement(index));
+					emit(Opcode.LD_HLR_A);
+					emitMoveOfHl(index);
+				}
 				break;
 			default:
 				throw new GameboyLanguageException("Parser error : unexpected type " + leftToken.type);
 			}
-			return bytecodes;
+			return null;
 		}
 
 		@Override
-		public List<AugmentedOpcode> visitIfStatementExpr(IfStatement ifStatementExpr) {
-			List<AugmentedOpcode> bytecode = new LinkedList<>();
-			bytecode.addAll(ifStatementExpr.condition.accept(this));
-
-			ConditionalBody firstBody = createBody(ifStatementExpr.body1);
-			bytecode.add(getConditionalJumpToEndOfBody(ifStatementExpr.condition.operator, firstBody));
+		public Void visitIfStatementExpr(IfStatement ifStatementExpr) {
+			Label endOfFirstBody = new Label();
+			ifStatementExpr.condition.accept(this);
+			emit(getConditionalJumpTo(ifStatementExpr.condition.operator, endOfFirstBody));
+			emitBody(ifStatementExpr.body1);
 
 			// Potentially create the second body
 			if (ifStatementExpr.body2 != null) {
-				ConditionalBody secondBody = createBody(ifStatementExpr.body2);
-				firstBody.add(new AugmentedOpcode(Opcode.JR_E8, secondBody));
-				bytecode.addAll(firstBody.getBytecode());
-				bytecode.addAll(secondBody.getBytecode());
+				Label endOfSecondBody = new Label();
+				emit(new AugmentedOpcode(Opcode.JR_E8, endOfSecondBody));
+				emit(AugmentedOpcode.label(endOfFirstBody));
+				emitBody(ifStatementExpr.body2);
+				emit(AugmentedOpcode.label(endOfSecondBody));
 			} else {
-				bytecode.addAll(firstBody.getBytecode());
+				emit(AugmentedOpcode.label(endOfFirstBody));
 			}
-
-			return bytecode;
+			return null;
 		}
 
 		@Override
-		public List<AugmentedOpcode> visitWhileStatementExpr(WhileStatement whileStatement) {
-			List<AugmentedOpcode> bytecodes = new LinkedList<>();
+		public Void visitWhileStatementExpr(WhileStatement whileStatement) {
+			Label condition = new Label();
+			Label endOfLoop = new Label();
+
+			emit(AugmentedOpcode.label(condition));
+			whileStatement.condition.accept(this);
+			emit(getConditionalJumpTo(whileStatement.condition.operator, endOfLoop));
 
-			ConditionalBody conditionalBody = createBody(whileStatement.body);
-			WhileLoop loop = new WhileLoop(whileStatement.condition.accept(this), conditionalBody);
+			emitBody(whileStatement.body);
+			emit(new AugmentedOpcode(Opcode.JR_E8, condition));
+			emit(AugmentedOpcode.label(endOfLoop));
+			return null;
+		}
 
-			bytecodes.addAll(loop.condition);
+		@Override
+		public Void visitReturnStatementExpr(ReturnStatement returnStatementExpr) {
+			Expression value = returnStatementExpr.returnValue;
+			if (optimizations.contains(Optimization.TAIL_CALLS) && isCallToItself(value)) {
+				emitTailCall((FunctionCall) value);
+				return null;
+			}
+			value.accept(this);
+			emitEndOfFunction(context.currentFunction());
+			return null;
+		}
 
-			conditionalBody.add(new AugmentedOpcode(Opcode.JR_E8, loop));
-			bytecodes.add(getConditionalJumpToEndOfBody(whileStatement.condition.operator, conditionalBody));
+		private void emitBody(List<Expression> expressions) {
+			for (Expression e : expressions) {
+				e.accept(this);
+			}
+		}
 
-			bytecodes.addAll(conditionalBody.getBytecode());
-			return bytecodes;
+		private boolean isCallToItself(Expression expression) {
+			Function function = context.currentFunction();
+			return expression instanceof FunctionCall && !function.name.equals("main")
+					&& signatureOf((FunctionCall) expression).equals(function.signature);
 		}
 
-		@Override
-		public List<AugmentedOpcode> visitReturnStatementExpr(ReturnStatement returnStatementExpr) {
-			List<AugmentedOpcode> bytecodes = new LinkedList<>();
-			bytecodes.addAll(returnStatementExpr.returnValue.accept(this));
-			bytecodes.addAll(getEndOfFunction());
-			return bytecodes;
+		private Register registerOf(String variable) {
+			return callsBeingPrepared == 0 ? registers.registerOf(variable) : null;
+		}
+
+		// Moves HL by the given 16 bits amount, DE cannot be used to do so while it
+		// holds variables
+		private void emitMoveOfHl(int amount) {
+			if (registers.isEmpty() || callsBeingPrepared != 0) {
+				emit(new AugmentedOpcode(Opcode.LD_DE_N16, amount));
+				emit(Opcode.ADD_HL_DE);
+			} else {
+				int signedAmount = (short) amount;
+				for (int i = 0; i < Math.abs(signedAmount); ++i)
+					emit(signedAmount > 0 ? Opcode.INC_HL : Opcode.DEC_HL);
+			}
 		}
 
-		private ConditionalBody createBody(List<Expression> expressions) {
-			List<AugmentedOpcode> bytecodes = new LinkedList<>();
-			expressions.forEach((x) -> {
-				bytecodes.addAll(x.accept(this));
-			});
-			return new ConditionalBody(bytecodes);
+		// Emits the given instruction moving a variable between its register and
+		// its place in the stack
+		private void emitTransferToStack(String variable, Opcode transfer) {
+			int index = context.currentFunction().getVariableIndex(variable);
+			for (int i = 0; i < index; ++i)
+				emit(Opcode.DEC_HL);
+			emit(transfer);
+			for (int i = 0; i < index; ++i)
+				emit(Opcode.INC_HL);
+		}
+
+		private void emitSpills(FunctionCall functionCallExpr) {
+			for (String variable : registers.spilledBefore(functionCallExpr))
+				emitTransferToStack(variable, registers.registerOf(variable).spill);
+		}
+
+		// The argument of a memoized function is the low byte of the address of its
+		// result in the tables, whose high byte is loaded in D
+		private void emitLookupOfResult(Function function) {
+			Label compute = new Label();
+			emit(Opcode.LD_A_HLR);
+			emit(Opcode.LD_E_A);
+			emit(new AugmentedOpcode(Opcode.LD_D_N8, memoization.validTable(function.signature) >> 8));
+			emit(Opcode.LD_A_DER);
+			emit(Opcode.OR_A_A);
+			emit(new AugmentedOpcode(Opcode.JR_Z_E8, compute));
+			emit(new AugmentedOpcode(Opcode.LD_D_N8, memoization.resultTable(function.signature) >> 8));
+			emit(Opcode.LD_A_DER);
+			emitReturn(function);
+			emit(AugmentedOpcode.label(compute));
+		}
+
+		// The result is in A and is kept there
+		private void emitStoreOfResult(Function function) {
+			emit(Opcode.LD_C_A);
+			emit(Opcode.LD_A_HLR);
+			emit(Opcode.LD_E_A);
+			emit(new AugmentedOpcode(Opcode.LD_D_N8, memoization.resultTable(function.signature) >> 8));
+			emit(Opcode.LD_A_C);
+			emit(Opcode.LD_DER_A);
+			emit(new AugmentedOpcode(Opcode.LD_D_N8, memoization.validTable(function.signature) >> 8));
+			emit(new AugmentedOpcode(Opcode.LD_A_N8, 1));
+			emit(Opcode.LD_DER_A);
+			emit(Opcode.LD_A_C);
+		}
+
+		// The work ram is not cleared when the Game Boy starts. The loop clears
+		// several bytes per iteration to spend less time jumping
+		private void emitClearTable(int address) {
+			int bytesPerIteration = 4;
+			Label loop = new Label();
+			emit(Opcode.PUSH_HL);
+			emit(new AugmentedOpcode(Opcode.LD_HL_N16, address));
+			emit(Opcode.XOR_A_A);
+			emit(new AugmentedOpcode(Opcode.LD_B_N8, Memoization.TABLE_SIZE / bytesPerIteration));
+			emit(AugmentedOpcode.label(loop));
+			for (int i = 0; i < bytesPerIteration; ++i)
+				emit(Opcode.LD_HLRI_A);
+			emit(Opcode.DEC_B);
+			emit(new AugmentedOpcode(Opcode.JR_NZ_E8, loop));
+			emit(Opcode.POP_HL);
+		}
+
+		private void emitEndOfFunction(Function function) {
+			if (memoization.isMemoized(function.signature))
+				emitStoreOfResult(function);
+			emitReturn(function);
+		}
+
+		private void emitReturn(Function function) {
+			emit(new AugmentedOpcode(Opcode.LD_DE_N16, function.signature, TO_RETRIEVE.COMPLEMENT_STACK));
+			emit(Opcode.ADD_HL_DE);
+			emit(Opcode.RET);
+		}
+
+		private void emit(Opcode opcode) {
+			emit(new AugmentedOpcode(opcode));
+		}
+
+		private void emit(AugmentedOpcode bytecode) {
+			context.currentFunction().addBytecode(bytecode);
 		}
 	}
 
+	/**
+	 * Compiles the given program and writes the resulting rom to the file
+	 * save.gb in the working directory
+	 * 
+	 * @param expressions
+	 *            the top level expressions of the program, as given by the parser
+	 * @throws IOException
+	 *             if the rom cannot be written
+	 * @throws GameboyLanguageException
+	 *             if the program is not valid
+	 */
 	public void compile(List<Expression> expressions) throws IOException {
-		CompilerVisitor visitor = new CompilerVisitor();
-		List<AugmentedOpcode> instructions = new LinkedList<>();
-		functionSignatures.clear();
+		ByteBuffer rom = compileToRom(expressions);
+		try (FileChannel out = FileChannel.open(Paths.get("save.gb"), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (rom.hasRemaining()) {
+				out.write(rom);
+			}
+		}
+	}
+
+	/**
+	 * Compiles the given program and returns the resulting rom without writing
+	 * anything to disk
+	 * 
+	 * @param expressions
+	 *            the top level expressions of the program, as given by the parser
+	 * @return a read-only buffer containing the bytes of the rom, ready to be
+	 *         given to {@link ch.epfl.gameboj.component.cartridge.Cartridge#ofBuffer}
+	 * @throws GameboyLanguageException
+	 *             if the program is not valid
+	 */
+	public ByteBuffer compileToRom(List<Expression> expressions) {
+		return compileToRom(expressions, report -> {
+		});
+	}
+
+	/**
+	 * Compiles the given program and returns the resulting rom without writing
+	 * anything to disk, the effect of each optimization on each function is
+	 * given to the given consumer
+	 * 
+	 * @param expressions
+	 *            the top level expressions of the program, as given by the parser
+	 * @param reports
+	 *            the consumer receiving a report for each function and each
+	 *            optimization applied to it
+	 * @return a read-only buffer containing the bytes of the rom
+	 * @throws GameboyLanguageException
+	 *             if the program is not valid
+	 */
+	public ByteBuffer compileToRom(List<Expression> expressions, Consumer<OptimizationReport> reports) {
+		CompilationContext context = compileFunctions(expressions, reports);
+
+		// Writes the compiled code in binary to memory
+		ByteArrayBuilder out = new ByteArrayBuilder(CartridgeOrganization.CARTRIDGE_SIZE);
+		writeInterruptHandler(out);
+		writeHeader(out, context);
+		for (Function function : context.functions()) {
+			for (AugmentedOpcode bytecode : function.bytecodes) {
+				bytecode.translate(out, context);
+			}
+		}
+		// Ensures that the size of the cartridge is exactly 0x8000 bits
+		out.padTo(CartridgeOrganization.CARTRIDGE_SIZE);
+		return ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Compiles the given program and returns the static cost of each of its
+	 * functions and of their loops, without running it
+	 * 
+	 * @param expressions
+	 *            the top level expressions of the program, as given by the parser
+	 * @return the cost of every function, in the order of their declaration
+	 * @throws GameboyLanguageException
+	 *             if the program is not valid
+	 */
+	public List<CostReport> estimateCosts(List<Expression> expressions) {
+		return CostModel.of(compileFunctions(expressions, report -> {
+		}));
+	}
+
+	// Compiles and lays out every function of the program, without writing the
+	// rom
+	private CompilationContext compileFunctions(List<Expression> expressions, Consumer<OptimizationReport> reports) {
+		// The arguments of an inlined function may then be folded into its body
+		if (optimizations.contains(Optimization.INLINING))
+			expressions = Inliner.inline(expressions, this::sizeOf, inliningBudget);
+		if (optimizations.contains(Optimization.CONSTANT_FOLDING))
+			expressions = ConstantFolder.fold(expressions);
+		Memoization memoization = optimizations.contains(Optimization.MEMOIZATION)
+				? Memoization.of(expressions)
+				: Memoization.none();
+		return compileFunctions(expressions, memoization, reports);
+	}
+
+	// Compiles the given expressions, once inlined and folded, with the given
+	// memoization
+	private CompilationContext compileFunctions(List<Expression> expressions, Memoization memoization,
+			Consumer<OptimizationReport> reports) {
+		CompilationContext context = new CompilationContext();
+		CompilerVisitor visitor = new CompilerVisitor(context, memoization);
 
 		// We know by the way that the parser is implemented that all top expressions
 		// contained in the given list are FunctionBody
@@ -319,68 +678,92 @@ public class Compiler {
 			if (!(e instanceof Expression.FunctionBody)) {
 				throw new GameboyLanguageException("Parser error");
 			}
-			instructions.addAll(e.accept(visitor));
+			e.accept(visitor);
 		}
+		// The size of the frames is only known once the functions are compiled
+		if (!memoization.isAboveFrames(context))
+			return compileFunctions(expressions, Memoization.none(), reports);
 
-		// Writes the compiled code in binary to a savefile
-		try (CountingOutputStream out = new CountingOutputStream(new FileOutputStream("save.gb"))) {
-			writeInterruptHandler(out);
-			writeHeader(out);
-			for (AugmentedOpcode bytecode : instructions) {
-				for (int i : bytecode.translate()) {
-					out.write(i);
-				}
-			}
-			// Ensures that the size of the cartridge is exactly 0x8000 bits
-			int spaceLeft = CartridgeOrganization.CARTRIDGE_SIZE - out.count();
-			for (int i = 0; i < spaceLeft; ++i) {
-				out.write(0);
-			}
+		for (Function function : context.functions()) {
+			if (optimizations.contains(Optimization.PEEPHOLE))
+				optimize(function, Optimization.PEEPHOLE, PeepholeOptimizer::optimize, reports);
+			// Only done once the code is final, as the optimizations change the
+			// distance of the jumps
+			function.replaceBytecodes(BranchRelaxation.relax(function.bytecodes));
+		}
+
+		// The functions are laid out one after the other in the order they were
+		// declared, which gives every function and every label its final address
+		for (Function function : context.functions()) {
+			layout(function, context);
 		}
+		return context;
+	}
+
+	// Compiles the given function on its own to know the size of its code
+	private int sizeOf(FunctionBody function) {
+		CompilationContext context = new CompilationContext();
+		function.accept(new CompilerVisitor(context, Memoization.none()));
+		List<AugmentedOpcode> code = context.currentFunction().bytecodes;
+		if (optimizations.contains(Optimization.PEEPHOLE))
+			code = PeepholeOptimizer.optimize(code);
+		code = BranchRelaxation.relax(code);
+		int size = 0;
+		for (AugmentedOpcode bytecode : code)
+			size += bytecode.size();
+		return size;
 	}
 
-	private void writeInterruptHandler(OutputStream out) throws IOException {
+	private static void optimize(Function function, Optimization optimization,
+			UnaryOperator<List<AugmentedOpcode>> pass, Consumer<OptimizationReport> reports) {
+		int bytesBefore = function.size();
+		int cyclesBefore = function.cycles();
+		function.replaceBytecodes(pass.apply(function.bytecodes));
+		reports.accept(new OptimizationReport(function.signature, optimization, bytesBefore, function.size(),
+				cyclesBefore, function.cycles()));
+	}
+
+	private void layout(Function function, CompilationContext context) {
+		function.romAddress = context.allocate(function.size());
+		int address = function.romAddress;
+		for (AugmentedOpcode bytecode : function.bytecodes) {
+			if (bytecode.isLabel())
+				bytecode.getLabel().bind(address);
+			address += bytecode.size();
+		}
+	}
+
+	private void writeInterruptHandler(ByteArrayBuilder out) {
 		for (int i = 0; i < CartridgeOrganization.INTERRUPT_HANDLER_SIZE; ++i) {
 			out.write(0x00);
 		}
 	}
 
-	private void writeHeader(OutputStream out) throws IOException {
-		Function main = functionSignatures.get("main0");
-		if (main == null) {
+	private void writeHeader(ByteArrayBuilder out, CompilationContext context) {
+		if (!context.hasFunction("main0")) {
 			throw new GameboyLanguageException("Main function couldn't be found");
 		}
+		Function main = context.function("main0");
 		int romAddressOfMain = main.romAddress;
 		// encodes the jump to the beginning of the main function
 		out.write(Opcode.JP_N16.encoding);
-		out.write(romAddressOfMain & 0xFF);
-		out.write(romAddressOfMain >> 8);
+		out.write16(romAddressOfMain);
 		// Fills the rest of the cartridge header with zeroes
-		for (int i = 0x103; i < CartridgeOrganization.HEADER_END; ++i) {
-			out.write(0x00);
-		}
-	}
-
-	private List<AugmentedOpcode> getEndOfFunction() {
-		List<AugmentedOpcode> bytecodes = new LinkedList<>();
-		bytecodes.add(new AugmentedOpcode(Opcode.LD_DE_N16, currentFunction.signature, TO_RETRIEVE.COMPLEMENT_STACK));
-		bytecodes.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
-		bytecodes.add(new AugmentedOpcode(Opcode.RET));
-		return bytecodes;
+		out.padTo(CartridgeOrganization.HEADER_END);
 	}
 
-	private AugmentedOpcode getConditionalJumpToEndOfBody(Token operator, ConditionalBody body) {
+	private AugmentedOpcode getConditionalJumpTo(Token operator, Label target) {
 		switch (operator.type) {
 		case GREATER_OR_EQUAL:
 		case SMALLER_OR_EQUAL:
-			return new AugmentedOpcode(Opcode.JR_C_E8, body);
+			return new AugmentedOpcode(Opcode.JR_C_E8, target);
 		case GREATER:
 		case SMALLER:
-			return new AugmentedOpcode(Opcode.JR_NC_E8, body);
+			return new AugmentedOpcode(Opcode.JR_NC_E8, target);
 		case EQUAL_EQUAL:
-			return new AugmentedOpcode(Opcode.JR_NZ_E8, body);
+			return new AugmentedOpcode(Opcode.JR_NZ_E8, target);
 		case BANG_EQUAL:
-			return new AugmentedOpcode(Opcode.JR_Z_E8, body);
+			return new AugmentedOpcode(Opcode.JR_Z_E8, target);
 		default:
 			// Should not be a GameboyLanguageException as if a mistake has been made it is
 			// mine and not the user's
@@ -388,10 +771,75 @@ public class Compiler {
 		}
 	}
 
+	private static String signatureOf(FunctionCall call) {
+		return call.name + call.arguments.size();
+	}
+
 	private static int get16BitComplement(int valueToComplement) {
 		return Bits.clip(16, (~valueToComplement) + 1);
 	}
 
+	// Collects the variables read by an expression
+	private static final class VariablesRead implements Visitor<Void> {
+
+		private final Set<String> variables = new HashSet<>();
+
+		static Set<String> of(Expression expression) {
+			VariablesRead visitor = new VariablesRead();
+			expression.accept(visitor);
+			return visitor.variables;
+		}
+
+		@Override
+		public Void visitBinaryExpr(Binary binaryExpr) {
+			// The variable assigned is included, its old value must not be lost either
+			binaryExpr.left.accept(this);
+			binaryExpr.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitLitteralExpr(Litteral litteralExpr) {
+			if (litteralExpr.value.type == TokenType.IDENTIFIER)
+				variables.add((String) litteralExpr.value.litteral);
+			return null;
+		}
+
+		@Override
+		public Void visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+			varDeclarationExpr.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+			throw new IllegalArgumentException("Functions cannot be nested");
+		}
+
+		@Override
+		public Void visitFunctionCallExpr(FunctionCall funCallExpr) {
+			for (Expression argument : funCallExpr.arguments)
+				argument.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitIfStatementExpr(IfStatement ifStatementExpr) {
+			throw new IllegalArgumentException("An if statement is not an expression");
+		}
+
+		@Override
+		public Void visitReturnStatementExpr(ReturnStatement returnStatement) {
+			returnStatement.returnValue.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStatementExpr(WhileStatement whileStatement) {
+			throw new IllegalArgumentException("A while statement is not an expression");
+		}
+	}
+
 	static final class FreeSpace {
 
 		int startAddress;
@@ -431,7 +879,7 @@ public class Compiler {
 		public final String name;
 		public final int numberOfArguments;
 		public final String signature;
-		public final List<AugmentedOpcode> bytecodes = new LinkedList<>();
+		public final List<AugmentedOpcode> bytecodes = new ArrayList<>();
 		public boolean isDone;
 		private int romAddress;
 		private final List<String> variables = new LinkedList<>();
@@ -468,69 +916,30 @@ public class Compiler {
 			return sum;
 		}
 
-		public void addBytecode(AugmentedOpcode b) {
-			bytecodes.add(b);
-		}
-
-		public void addAllBytecodes(Collection<AugmentedOpcode> b) {
-			bytecodes.addAll(b);
-		}
-
-		public int getRomAddress() {
-			return romAddress;
-		}
-
-		public int getVariablesSize() {
-			return variables.size();
-		}
-	}
-
-	static final class ConditionalBody {
-
-		private final List<AugmentedOpcode> bytecodes;
-
-		public ConditionalBody(List<AugmentedOpcode> bytecodes) {
-			this.bytecodes = bytecodes;
-		}
-
-		public int size() {
+		public int cycles() {
 			int sum = 0;
 			for (AugmentedOpcode e : bytecodes) {
-				sum += e.size();
+				sum += e.cycles();
 			}
 			return sum;
 		}
 
-		public List<AugmentedOpcode> getBytecode() {
-			return bytecodes;
+		public void addBytecode(AugmentedOpcode b) {
+			bytecodes.add(b);
 		}
 
-		public void add(AugmentedOpcode bytecode) {
-			bytecodes.add(bytecode);
+		public void replaceBytecodes(List<AugmentedOpcode> b) {
+			List<AugmentedOpcode> copy = new ArrayList<>(b);
+			bytecodes.clear();
+			bytecodes.addAll(copy);
 		}
-	}
-
-	static final class WhileLoop {
 
-		private final List<AugmentedOpcode> condition;
-		private final ConditionalBody body;
-
-		public WhileLoop(List<AugmentedOpcode> condition, ConditionalBody body) {
-			this.condition = condition;
-			this.body = body;
-		}
-
-		public int size() {
-			int sizeOfCondition = 0;
-			for (AugmentedOpcode e : condition) {
-				sizeOfCondition += e.size();
-			}
-			return sizeOfCondition + body.size();
+		public int getRomAddress() {
+			return romAddress;
 		}
 
-		public List<AugmentedOpcode> getCondition() {
-			return condition;
+		public int getVariablesSize() {
+			return variables.size();
 		}
-
 	}
 }
@@ -0,0 +1,384 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.epfl.bonus.parser.Expression;
+import ch.epfl.bonus.parser.Expression.Binary;
+import ch.epfl.bonus.parser.Expression.FunctionBody;
+import ch.epfl.bonus.parser.Expression.FunctionCall;
+import ch.epfl.bonus.parser.Expression.IfStatement;
+import ch.epfl.bonus.parser.Expression.Litteral;
+import ch.epfl.bonus.parser.Expression.ReturnStatement;
+import ch.epfl.bonus.parser.Expression.VariableDeclaration;
+import ch.epfl.bonus.parser.Expression.Visitor;
+import ch.epfl.bonus.parser.Expression.WhileStatement;
+import ch.epfl.bonus.scanner.Token;
+import ch.epfl.bonus.scanner.TokenType;
+import ch.epfl.gameboj.bits.Bits;
+
+/**
+ * Rewrites the expressions of a program before they are compiled : the
+ * operations whose operands are known are replaced by their result, computed
+ * on 8 bits like the gameboy does, the variables whose value is known are
+ * replaced by it and the branches of the if statements whose condition is
+ * known are removed.
+ * 
+ * A called function has its own frame, so calls never change the value of
+ * the variables of the caller
+ */
+final class ConstantFolder implements Visitor<Expression> {
+
+	// The value of the variables known at the expression being folded
+	private Map<String, Integer> constants = new HashMap<>();
+
+	private ConstantFolder() {
+	}
+
+	/**
+	 * Returns the folded version of the given program
+	 * 
+	 * @param functions
+	 *            the top level expressions of the program, as given by the parser
+	 * @return the folded expressions, in the same order
+	 */
+	static List<Expression> fold(List<Expression> functions) {
+		List<Expression> folded = new ArrayList<>(functions.size());
+		for (Expression function : functions) {
+			folded.add(function.accept(new ConstantFolder()));
+		}
+		return folded;
+	}
+
+	@Override
+	public Expression visitBinaryExpr(Binary binaryExpr) {
+		if (binaryExpr.operator.type == TokenType.EQUAL) {
+			// The assigned variable must stay a variable
+			Expression value = binaryExpr.right.accept(this);
+			Token assigned = ((Litteral) binaryExpr.left).value;
+			if (assigned.type == TokenType.IDENTIFIER)
+				setValue((String) assigned.litteral, value);
+			return new Binary(binaryExpr.left, binaryExpr.operator, value);
+		}
+
+		Expression left = binaryExpr.left.accept(this);
+		Expression right = binaryExpr.right.accept(this);
+		Integer leftValue = valueOf(left);
+		Integer rightValue = valueOf(right);
+		TokenType operator = binaryExpr.operator.type;
+		if (!isOperation(operator))
+			return new Binary(left, binaryExpr.operator, right);
+
+		if (leftValue != null && rightValue != null)
+			return number(apply(operator, leftValue, rightValue), binaryExpr.operator);
+
+		if (rightValue != null) {
+			// Adding, subtracting, or-ing and xor-ing zero does nothing
+			if (rightValue == 0 && operator != TokenType.AND)
+				return left;
+			// (x + a) - b is computed as x + (a - b)
+			if (isAdditive(operator) && left instanceof Binary && isAdditive(((Binary) left).operator.type)) {
+				Binary inner = (Binary) left;
+				Integer innerValue = valueOf(inner.right);
+				if (innerValue != null) {
+					int offset = apply(operator, signed(inner.operator.type, innerValue), rightValue);
+					if (offset == 0)
+						return inner.left;
+					Token plus = new Token(TokenType.PLUS, "+", null, binaryExpr.operator.line);
+					return new Binary(inner.left, plus, number(offset, binaryExpr.operator));
+				}
+			}
+		}
+		return new Binary(left, binaryExpr.operator, right);
+	}
+
+	@Override
+	public Expression visitLitteralExpr(Litteral litteralExpr) {
+		if (litteralExpr.value.type == TokenType.IDENTIFIER) {
+			Integer value = constants.get(litteralExpr.value.litteral);
+			if (value != null)
+				return number(value, litteralExpr.value);
+		}
+		return litteralExpr;
+	}
+
+	@Override
+	public Expression visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+		Expression value = varDeclarationExpr.value.accept(this);
+		setValue(varDeclarationExpr.name, value);
+		return new VariableDeclaration(varDeclarationExpr.name, value);
+	}
+
+	@Override
+	public Expression visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+		return new FunctionBody(funBodyExpr.name, funBodyExpr.nameOfArguments, foldBody(funBodyExpr.expressions));
+	}
+
+	@Override
+	public Expression visitFunctionCallExpr(FunctionCall funCallExpr) {
+		List<Expression> arguments = new ArrayList<>(funCallExpr.arguments.size());
+		for (Expression argument : funCallExpr.arguments) {
+			arguments.add(argument.accept(this));
+		}
+		return new FunctionCall(funCallExpr.name, arguments);
+	}
+
+	@Override
+	public Expression visitIfStatementExpr(IfStatement ifStatementExpr) {
+		Binary condition = foldCondition(ifStatementExpr.condition);
+		Map<String, Integer> constantsBefore = constants;
+
+		constants = new HashMap<>(constantsBefore);
+		List<Expression> body1 = foldBody(ifStatementExpr.body1);
+		Map<String, Integer> constantsAfterBody1 = constants;
+
+		constants = new HashMap<>(constantsBefore);
+		List<Expression> body2 = ifStatementExpr.body2 == null ? null : foldBody(ifStatementExpr.body2);
+		Map<String, Integer> constantsAfterBody2 = constants;
+
+		// A value is only known after the statement if both branches agree on it,
+		// a branch ending with a return does not reach what follows
+		if (endsWithReturn(body1)) {
+			constants = constantsAfterBody2;
+		} else if (body2 != null && endsWithReturn(body2)) {
+			constants = constantsAfterBody1;
+		} else {
+			constants = constantsAfterBody1;
+			constants.entrySet().removeIf(e -> !e.getValue().equals(constantsAfterBody2.get(e.getKey())));
+		}
+		return new IfStatement(condition, body1, body2);
+	}
+
+	@Override
+	public Expression visitReturnStatementExpr(ReturnStatement returnStatement) {
+		return new ReturnStatement(returnStatement.returnValue.accept(this));
+	}
+
+	@Override
+	public Expression visitWhileStatementExpr(WhileStatement whileStatement) {
+		// The variables assigned by the loop are not known anywhere in it nor
+		// after it, since it may be run any number of times
+		AssignedVariables assigned = new AssignedVariables();
+		whileStatement.accept(assigned);
+		constants.keySet().removeAll(assigned.variables);
+		Map<String, Integer> constantsBefore = new HashMap<>(constants);
+
+		Binary condition = foldCondition(whileStatement.condition);
+		List<Expression> body = foldBody(whileStatement.body);
+		constants = constantsBefore;
+		return new WhileStatement(condition, body);
+	}
+
+	private List<Expression> foldBody(List<Expression> body) {
+		List<Expression> folded = new ArrayList<>(body.size());
+		for (Expression e : body) {
+			if (e instanceof IfStatement)
+				folded.addAll(foldIf((IfStatement) e));
+			else
+				folded.add(e.accept(this));
+		}
+		return folded;
+	}
+
+	// Only keeps the branch taken when the condition is known. The variables
+	// declared by a branch are declared even if it is never run, so such a
+	// branch is kept
+	private List<Expression> foldIf(IfStatement ifStatement) {
+		Boolean taken = evaluate(foldCondition(ifStatement.condition));
+		if (taken != null) {
+			List<Expression> kept = taken ? ifStatement.body1 : ifStatement.body2;
+			List<Expression> removed = taken ? ifStatement.body2 : ifStatement.body1;
+			if (kept == null)
+				kept = Collections.emptyList();
+			if (!declaresVariables(removed))
+				return foldBody(kept);
+		}
+		return Collections.singletonList(ifStatement.accept(this));
+	}
+
+	// A condition folded to a single value is no longer a condition, the
+	// compiler then reports the original one
+	private Binary foldCondition(Binary condition) {
+		Expression folded = condition.accept(this);
+		return folded instanceof Binary ? (Binary) folded : condition;
+	}
+
+	private void setValue(String variable, Expression value) {
+		Integer known = valueOf(value);
+		if (known != null)
+			constants.put(variable, known);
+		else
+			constants.remove(variable);
+	}
+
+	// Returns whether the body of an if statement with the given condition is
+	// run, or null if it is not known. The comparisons are unsigned, as done by
+	// the conditional jumps emitted by the compiler
+	private static Boolean evaluate(Binary condition) {
+		Integer left = valueOf(condition.left);
+		Integer right = valueOf(condition.right);
+		if (left == null || right == null)
+			return null;
+		switch (condition.operator.type) {
+		case SMALLER:
+			return left < right;
+		case SMALLER_OR_EQUAL:
+			return left <= right;
+		case GREATER:
+			return left > right;
+		case GREATER_OR_EQUAL:
+			return left >= right;
+		case EQUAL_EQUAL:
+			return left.equals(right);
+		case BANG_EQUAL:
+			return !left.equals(right);
+		default:
+			return null;
+		}
+	}
+
+	private static boolean isOperation(TokenType operator) {
+		switch (operator) {
+		case PLUS:
+		case MINUS:
+		case AND:
+		case OR:
+		case XOR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isAdditive(TokenType operator) {
+		return operator == TokenType.PLUS || operator == TokenType.MINUS;
+	}
+
+	// The value added by x + value or x - value
+	private static int signed(TokenType operator, int value) {
+		return operator == TokenType.PLUS ? value : -value;
+	}
+
+	private static int apply(TokenType operator, int left, int right) {
+		switch (operator) {
+		case PLUS:
+			return Bits.clip(8, left + right);
+		case MINUS:
+			return Bits.clip(8, left - right);
+		case AND:
+			return left & right;
+		case OR:
+			return left | right;
+		case XOR:
+			return left ^ right;
+		default:
+			throw new IllegalArgumentException("Unexpected operator " + operator);
+		}
+	}
+
+	private static Integer valueOf(Expression expression) {
+		if (expression instanceof Litteral) {
+			Token token = ((Litteral) expression).value;
+			if (token.type == TokenType.NUMBER)
+				return (Integer) token.litteral;
+		}
+		return null;
+	}
+
+	private static Litteral number(int value, Token origin) {
+		return new Litteral(new Token(TokenType.NUMBER, Integer.toString(value), value, origin.line));
+	}
+
+	private static boolean endsWithReturn(List<Expression> body) {
+		return !body.isEmpty() && body.get(body.size() - 1) instanceof ReturnStatement;
+	}
+
+	private static boolean declaresVariables(List<Expression> body) {
+		if (body == null)
+			return false;
+		AssignedVariables assigned = new AssignedVariables();
+		for (Expression e : body) {
+			e.accept(assigned);
+		}
+		return !assigned.declared.isEmpty();
+	}
+
+	// Collects the variables declared or assigned by the visited expressions
+	private static final class AssignedVariables implements Visitor<Void> {
+
+		private final Set<String> variables = new HashSet<>();
+		private final Set<String> declared = new HashSet<>();
+
+		@Override
+		public Void visitBinaryExpr(Binary binaryExpr) {
+			if (binaryExpr.operator.type == TokenType.EQUAL) {
+				Token assigned = ((Litteral) binaryExpr.left).value;
+				if (assigned.type == TokenType.IDENTIFIER)
+					variables.add((String) assigned.litteral);
+			} else {
+				binaryExpr.left.accept(this);
+			}
+			binaryExpr.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitLitteralExpr(Litteral litteralExpr) {
+			return null;
+		}
+
+		@Override
+		public Void visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+			variables.add(varDeclarationExpr.name);
+			declared.add(varDeclarationExpr.name);
+			varDeclarationExpr.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+			throw new IllegalArgumentException("Functions cannot be nested");
+		}
+
+		@Override
+		public Void visitFunctionCallExpr(FunctionCall funCallExpr) {
+			for (Expression argument : funCallExpr.arguments) {
+				argument.accept(this);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitIfStatementExpr(IfStatement ifStatementExpr) {
+			ifStatementExpr.condition.accept(this);
+			visitAll(ifStatementExpr.body1);
+			if (ifStatementExpr.body2 != null)
+				visitAll(ifStatementExpr.body2);
+			return null;
+		}
+
+		@Override
+		public Void visitReturnStatementExpr(ReturnStatement returnStatement) {
+			returnStatement.returnValue.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStatementExpr(WhileStatement whileStatement) {
+			whileStatement.condition.accept(this);
+			visitAll(whileStatement.body);
+			return null;
+		}
+
+		private void visitAll(List<Expression> expressions) {
+			for (Expression e : expressions) {
+				e.accept(this);
+			}
+		}
+	}
+}
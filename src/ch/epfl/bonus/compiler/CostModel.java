@@ -0,0 +1,185 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.epfl.bonus.compiler.Compiler.Function;
+
+/**
+ * Computes the static cost of the functions of a compiled program from the
+ * cycles of their instructions.
+ *
+ * The code of a function is seen as a graph whose backward jumps, which close
+ * the loops, fall through to the next instruction instead : every path through
+ * the function then goes through each loop at most once. The cost of a path is
+ * the sum of the cycles of its instructions, a branch costing its additional
+ * cycles when it is taken, and the cost of a call is the one of the called
+ * function. The bounds are the cheapest and the most expensive paths. The
+ * iteration of a loop is a path from its start to the jump closing it, which
+ * does not take the jump leaving the loop
+ */
+final class CostModel {
+
+	private final CompilationContext context;
+	private final Map<String, long[]> costs = new HashMap<>();
+	private final Set<String> inProgress = new HashSet<>();
+
+	private CostModel(CompilationContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Returns the cost of every function of the given compilation, whose
+	 * functions must have been laid out
+	 *
+	 * @param context
+	 *            the context of a compilation
+	 * @return the reports of the functions, in the order of their declaration
+	 */
+	static List<CostReport> of(CompilationContext context) {
+		CostModel model = new CostModel(context);
+		List<CostReport> reports = new ArrayList<>();
+		for (Function function : context.functions()) {
+			long[] cost = model.costOf(function);
+			reports.add(new CostReport(function.signature, function.getRomAddress(), function.size(), cost[0],
+					cost[1], model.loopsOf(function.bytecodes)));
+		}
+		return reports;
+	}
+
+	private long[] costOf(Function function) {
+		long[] cost = costs.get(function.signature);
+		if (cost != null)
+			return cost;
+		// A recursive call can be made any number of times
+		if (!inProgress.add(function.signature))
+			return new long[] { 0, CostReport.UNBOUNDED };
+		List<AugmentedOpcode> code = function.bytecodes;
+		cost = costsFrom(code, 0, code.size(), labelsOf(code))[0];
+		inProgress.remove(function.signature);
+		costs.put(function.signature, cost);
+		return cost;
+	}
+
+	private List<CostReport.Loop> loopsOf(List<AugmentedOpcode> code) {
+		Map<Label, Integer> labels = labelsOf(code);
+		List<CostReport.Loop> loops = new ArrayList<>();
+		for (int start = 0, offset = 0; start < code.size(); offset += code.get(start).size(), ++start) {
+			if (!code.get(start).isLabel())
+				continue;
+			int end = endOfLoop(code, start);
+			if (end < 0)
+				continue;
+			long[] cost = costsFrom(code, start, end + 1, labels)[0];
+			int bytes = 0;
+			for (AugmentedOpcode instruction : code.subList(start, end + 1))
+				bytes += instruction.size();
+			loops.add(new CostReport.Loop(offset, bytes, cost[0], cost[1]));
+		}
+		return loops;
+	}
+
+	// Returns the index of the last backward jump to the label at the given
+	// index, or -1 if there is none
+	private static int endOfLoop(List<AugmentedOpcode> code, int labelIndex) {
+		Label label = code.get(labelIndex).getLabel();
+		for (int k = code.size() - 1; k > labelIndex; --k) {
+			AugmentedOpcode instruction = code.get(k);
+			if (!instruction.isLabel() && instruction.getArgument() == label)
+				return k;
+		}
+		return -1;
+	}
+
+	private static Map<Label, Integer> labelsOf(List<AugmentedOpcode> code) {
+		Map<Label, Integer> labels = new IdentityHashMap<>();
+		for (int k = 0; k < code.size(); ++k) {
+			if (code.get(k).isLabel())
+				labels.put(code.get(k).getLabel(), k);
+		}
+		return labels;
+	}
+
+	// Returns the bounds of the cycles of the paths going from each instruction
+	// of the region [from, to[ of the code to its end, the jumps going out of the
+	// region being never taken
+	private long[][] costsFrom(List<AugmentedOpcode> code, int from, int to, Map<Label, Integer> labels) {
+		long[][] costs = new long[to - from + 1][];
+		costs[to - from] = new long[] { 0, 0 };
+		for (int k = to - 1; k >= from; --k) {
+			AugmentedOpcode instruction = code.get(k);
+			long[] next = costs[k + 1 - from];
+			if (instruction.isLabel()) {
+				costs[k - from] = next;
+				continue;
+			}
+			Opcode opcode = instruction.getOpcode();
+			long cycles = opcode.cycles;
+			long taken = cycles + opcode.additionalCycles;
+			long[] afterJump = next;
+			if (instruction.getArgument() instanceof Label) {
+				int target = labels.get(instruction.getLabel());
+				// Backward jumps fall through, jumps leaving the region are not taken
+				if (target > k)
+					afterJump = target < to ? costs[target - from] : null;
+			}
+			switch (opcode.family) {
+			case RET:
+			case RETI:
+			case HALT:
+			case STOP:
+			case JP_HL:
+				costs[k - from] = new long[] { cycles, cycles };
+				break;
+			case RET_CC:
+				costs[k - from] = either(new long[] { taken, taken }, plus(cycles, next));
+				break;
+			case JR_E8:
+			case JP_N16:
+				costs[k - from] = afterJump == null ? new long[] { cycles, cycles } : plus(cycles, afterJump);
+				break;
+			case JR_CC_E8:
+			case JP_CC_N16:
+				costs[k - from] = afterJump == null ? plus(cycles, next)
+						: either(plus(taken, afterJump), plus(cycles, next));
+				break;
+			case CALL_N16:
+				costs[k - from] = plus(cycles, plus(calleeOf(instruction), next));
+				break;
+			case CALL_CC_N16:
+				costs[k - from] = either(plus(taken, plus(calleeOf(instruction), next)), plus(cycles, next));
+				break;
+			default:
+				costs[k - from] = plus(cycles, next);
+			}
+		}
+		return costs;
+	}
+
+	private long[] calleeOf(AugmentedOpcode call) {
+		return costOf(context.function((String) call.getArgument()));
+	}
+
+	private static long[] either(long[] first, long[] second) {
+		return new long[] { Math.min(first[0], second[0]), Math.max(first[1], second[1]) };
+	}
+
+	private static long[] plus(long cycles, long[] cost) {
+		return plus(new long[] { cycles, cycles }, cost);
+	}
+
+	private static long[] plus(long[] first, long[] second) {
+		return new long[] { first[0] + second[0], add(first[1], second[1]) };
+	}
+
+	private static long add(long first, long second) {
+		if (first == CostReport.UNBOUNDED || second == CostReport.UNBOUNDED)
+			return CostReport.UNBOUNDED;
+		return first + second;
+	}
+}
@@ -0,0 +1,109 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The static cost of the code of a compiled function and of each of its loops.
+ *
+ * The cycles are bounds on the number of cycles taken by one execution of the
+ * function, including the functions it calls, where each loop is counted as
+ * if its body was executed once. The cycles of a loop are the ones of one of
+ * its iterations. A bound is {@link #UNBOUNDED} when it depends on a recursion
+ */
+public final class CostReport {
+
+	/**
+	 * The maximum number of cycles of code whose cost depends on a recursion
+	 */
+	public static final long UNBOUNDED = Long.MAX_VALUE;
+
+	/**
+	 * The static cost of one iteration of a loop of a function
+	 */
+	public static final class Loop {
+
+		// The offset of the first instruction of the loop in the code of the
+		// function
+		public final int offset;
+		public final int bytes;
+		public final long minCycles, maxCycles;
+
+		public Loop(int offset, int bytes, long minCycles, long maxCycles) {
+			this.offset = offset;
+			this.bytes = bytes;
+			this.minCycles = minCycles;
+			this.maxCycles = maxCycles;
+		}
+
+		@Override
+		public String toString() {
+			return "loop at " + offset + "\t" + bytes + " bytes\t" + cyclesToString(minCycles, maxCycles);
+		}
+	}
+
+	public final String function;
+	public final int romAddress;
+	public final int bytes;
+	public final long minCycles, maxCycles;
+	// The loops in the order in which they start in the code
+	public final List<Loop> loops;
+
+	public CostReport(String function, int romAddress, int bytes, long minCycles, long maxCycles, List<Loop> loops) {
+		this.function = function;
+		this.romAddress = romAddress;
+		this.bytes = bytes;
+		this.minCycles = minCycles;
+		this.maxCycles = maxCycles;
+		this.loops = Collections.unmodifiableList(loops);
+	}
+
+	/**
+	 * Returns the given reports as a JSON array, each report being an object
+	 * whose unbounded cycles are null
+	 *
+	 * @param reports
+	 *            the reports to export
+	 * @return the JSON representation of the reports
+	 */
+	public static String toJson(List<CostReport> reports) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < reports.size(); ++i) {
+			CostReport report = reports.get(i);
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("  {\"function\": \"").append(report.function).append('"');
+			sb.append(", \"romAddress\": ").append(report.romAddress);
+			sb.append(", \"bytes\": ").append(report.bytes);
+			appendCycles(sb, report.minCycles, report.maxCycles);
+			sb.append(", \"loops\": [");
+			for (int j = 0; j < report.loops.size(); ++j) {
+				Loop loop = report.loops.get(j);
+				sb.append(j == 0 ? "" : ", ");
+				sb.append("{\"offset\": ").append(loop.offset);
+				sb.append(", \"bytes\": ").append(loop.bytes);
+				appendCycles(sb, loop.minCycles, loop.maxCycles);
+				sb.append('}');
+			}
+			sb.append("]}");
+		}
+		return sb.append(reports.isEmpty() ? "]" : "\n]").toString();
+	}
+
+	private static void appendCycles(StringBuilder sb, long minCycles, long maxCycles) {
+		sb.append(", \"minCycles\": ").append(minCycles);
+		sb.append(", \"maxCycles\": ").append(maxCycles == UNBOUNDED ? "null" : Long.toString(maxCycles));
+	}
+
+	private static String cyclesToString(long minCycles, long maxCycles) {
+		return minCycles + " to " + (maxCycles == UNBOUNDED ? "unbounded" : Long.toString(maxCycles)) + " cycles";
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(
+				function + "\t" + bytes + " bytes\t" + cyclesToString(minCycles, maxCycles));
+		for (Loop loop : loops)
+			sb.append("\n\t").append(loop);
+		return sb.toString();
+	}
+}
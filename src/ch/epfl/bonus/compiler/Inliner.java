@@ -0,0 +1,329 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+import ch.epfl.bonus.parser.Expression;
+import ch.epfl.bonus.parser.Expression.Binary;
+import ch.epfl.bonus.parser.Expression.FunctionBody;
+import ch.epfl.bonus.parser.Expression.FunctionCall;
+import ch.epfl.bonus.parser.Expression.IfStatement;
+import ch.epfl.bonus.parser.Expression.Litteral;
+import ch.epfl.bonus.parser.Expression.ReturnStatement;
+import ch.epfl.bonus.parser.Expression.VariableDeclaration;
+import ch.epfl.bonus.parser.Expression.Visitor;
+import ch.epfl.bonus.parser.Expression.WhileStatement;
+import ch.epfl.bonus.scanner.Token;
+import ch.epfl.bonus.scanner.TokenType;
+
+/**
+ * Replaces the calls of small functions by the body of the function, whose
+ * variables become variables of the caller.
+ * 
+ * Only leaf functions are inlined : they call no function, write nothing to
+ * the output and only return at their end. Their body is then placed right
+ * before the statement containing the call, which is correct as long as the
+ * arguments do not call any function either, since nothing else in the
+ * statement can be affected by it. The calls made in the condition of a while
+ * loop are kept as they must be evaluated at every iteration
+ */
+final class Inliner implements Visitor<Expression> {
+
+	private final Map<String, FunctionBody> inlinable;
+	private final Map<String, Set<String>> assignedVariables;
+	// The statements to place before the statement being rewritten
+	private List<Expression> prelude;
+	// Gives a different name to the variables of every inlined call of a caller
+	private int inlinedCalls = 0;
+
+	private Inliner(Map<String, FunctionBody> inlinable, Map<String, Set<String>> assignedVariables) {
+		this.inlinable = inlinable;
+		this.assignedVariables = assignedVariables;
+	}
+
+	/**
+	 * Returns the given program where the calls of the functions whose code is
+	 * at most the given number of bytes are inlined
+	 * 
+	 * @param functions
+	 *            the top level expressions of the program, as given by the parser
+	 * @param sizeOf
+	 *            gives the number of bytes of the code of a function
+	 * @param budget
+	 *            the maximum size in bytes of an inlined function
+	 * @return the rewritten expressions, in the same order
+	 */
+	static List<Expression> inline(List<Expression> functions, ToIntFunction<FunctionBody> sizeOf, int budget) {
+		Map<String, FunctionBody> inlinable = new HashMap<>();
+		Map<String, Set<String>> assignedVariables = new HashMap<>();
+		for (Expression e : functions) {
+			if (!(e instanceof FunctionBody))
+				continue;
+			FunctionBody function = (FunctionBody) e;
+			LeafChecker checker = new LeafChecker();
+			if (isLeaf(function, checker) && sizeOf.applyAsInt(function) <= budget) {
+				String signature = function.name + function.nameOfArguments.size();
+				inlinable.put(signature, function);
+				assignedVariables.put(signature, checker.assigned);
+			}
+		}
+
+		List<Expression> inlined = new ArrayList<>(functions.size());
+		for (Expression function : functions) {
+			inlined.add(function.accept(new Inliner(inlinable, assignedVariables)));
+		}
+		return inlined;
+	}
+
+	private static boolean isLeaf(FunctionBody function, LeafChecker checker) {
+		List<Expression> body = function.expressions;
+		if (function.name.equals("main") || body.isEmpty() || !(body.get(body.size() - 1) instanceof ReturnStatement))
+			return false;
+		for (Expression e : body.subList(0, body.size() - 1)) {
+			if (!e.accept(checker))
+				return false;
+		}
+		return ((ReturnStatement) body.get(body.size() - 1)).returnValue.accept(checker);
+	}
+
+	private static boolean callsFunction(Expression expression) {
+		if (expression instanceof FunctionCall)
+			return true;
+		if (expression instanceof Binary)
+			return callsFunction(((Binary) expression).left) || callsFunction(((Binary) expression).right);
+		return false;
+	}
+
+	private List<Expression> inlineAll(List<Expression> expressions) {
+		if (expressions == null)
+			return null;
+		List<Expression> saved = prelude;
+		List<Expression> inlined = new ArrayList<>(expressions.size());
+		prelude = inlined;
+		for (Expression e : expressions) {
+			Expression statement = e.accept(this);
+			inlined.add(statement);
+		}
+		prelude = saved;
+		return inlined;
+	}
+
+	@Override
+	public Expression visitBinaryExpr(Binary binaryExpr) {
+		if (binaryExpr.operator.type == TokenType.EQUAL)
+			return new Binary(binaryExpr.left, binaryExpr.operator, binaryExpr.right.accept(this));
+		return new Binary(binaryExpr.left.accept(this), binaryExpr.operator, binaryExpr.right.accept(this));
+	}
+
+	@Override
+	public Expression visitLitteralExpr(Litteral litteralExpr) {
+		return litteralExpr;
+	}
+
+	@Override
+	public Expression visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+		return new VariableDeclaration(varDeclarationExpr.name, varDeclarationExpr.value.accept(this));
+	}
+
+	@Override
+	public Expression visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+		return new FunctionBody(funBodyExpr.name, funBodyExpr.nameOfArguments, inlineAll(funBodyExpr.expressions));
+	}
+
+	@Override
+	public Expression visitFunctionCallExpr(FunctionCall funCallExpr) {
+		List<Expression> arguments = new ArrayList<>(funCallExpr.arguments.size());
+		boolean argumentsCallFunctions = false;
+		for (Expression argument : funCallExpr.arguments) {
+			Expression inlined = argument.accept(this);
+			argumentsCallFunctions |= callsFunction(inlined);
+			arguments.add(inlined);
+		}
+		FunctionBody callee = inlinable.get(funCallExpr.name + arguments.size());
+		if (callee == null || argumentsCallFunctions)
+			return new FunctionCall(funCallExpr.name, arguments);
+
+		// The variables of the callee are renamed with a character which cannot be
+		// part of the name of a variable of the program. An argument which is a
+		// number or a variable is used directly when the callee does not assign it,
+		// as nothing can modify it before the statement is executed
+		Renamer renamer = new Renamer("@" + inlinedCalls++);
+		Set<String> assigned = assignedVariables.get(funCallExpr.name + arguments.size());
+		for (int i = 0; i < arguments.size(); ++i) {
+			String parameter = callee.nameOfArguments.get(i);
+			Expression argument = arguments.get(i);
+			if (argument instanceof Litteral && !assigned.contains(parameter))
+				renamer.substitute(parameter, argument);
+			else
+				prelude.add(new VariableDeclaration(renamer.rename(parameter), argument));
+		}
+		List<Expression> body = callee.expressions;
+		for (Expression e : body.subList(0, body.size() - 1))
+			prelude.add(e.accept(renamer));
+		return ((ReturnStatement) body.get(body.size() - 1)).returnValue.accept(renamer);
+	}
+
+	@Override
+	public Expression visitIfStatementExpr(IfStatement ifStatementExpr) {
+		Binary condition = (Binary) ifStatementExpr.condition.accept(this);
+		return new IfStatement(condition, inlineAll(ifStatementExpr.body1), inlineAll(ifStatementExpr.body2));
+	}
+
+	@Override
+	public Expression visitReturnStatementExpr(ReturnStatement returnStatement) {
+		return new ReturnStatement(returnStatement.returnValue.accept(this));
+	}
+
+	@Override
+	public Expression visitWhileStatementExpr(WhileStatement whileStatement) {
+		return new WhileStatement(whileStatement.condition, inlineAll(whileStatement.body));
+	}
+
+	// Returns true if an expression of a function calls no function, writes
+	// nothing to the output and does not return, and collects the variables it
+	// assigns
+	private static final class LeafChecker implements Visitor<Boolean> {
+
+		private final Set<String> assigned = new HashSet<>();
+
+		private boolean all(List<Expression> expressions) {
+			if (expressions == null)
+				return true;
+			for (Expression e : expressions) {
+				if (!e.accept(this))
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public Boolean visitBinaryExpr(Binary binaryExpr) {
+			if (binaryExpr.operator.type == TokenType.EQUAL) {
+				Token left = ((Litteral) binaryExpr.left).value;
+				if (left.type == TokenType.OUTPUT)
+					return false;
+				assigned.add((String) left.litteral);
+			}
+			return binaryExpr.left.accept(this) && binaryExpr.right.accept(this);
+		}
+
+		@Override
+		public Boolean visitLitteralExpr(Litteral litteralExpr) {
+			return true;
+		}
+
+		@Override
+		public Boolean visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+			return varDeclarationExpr.value.accept(this);
+		}
+
+		@Override
+		public Boolean visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+			throw new IllegalArgumentException("Functions cannot be nested");
+		}
+
+		@Override
+		public Boolean visitFunctionCallExpr(FunctionCall funCallExpr) {
+			return false;
+		}
+
+		@Override
+		public Boolean visitIfStatementExpr(IfStatement ifStatementExpr) {
+			return ifStatementExpr.condition.accept(this) && all(ifStatementExpr.body1)
+					&& all(ifStatementExpr.body2);
+		}
+
+		@Override
+		public Boolean visitReturnStatementExpr(ReturnStatement returnStatement) {
+			return false;
+		}
+
+		@Override
+		public Boolean visitWhileStatementExpr(WhileStatement whileStatement) {
+			return whileStatement.condition.accept(this) && all(whileStatement.body);
+		}
+	}
+
+	// Copies an expression of the inlined function, adding the given suffix to
+	// the name of its variables or replacing them by the expression given for
+	// them
+	private static final class Renamer implements Visitor<Expression> {
+
+		private final String suffix;
+		private final Map<String, Expression> substitutes = new HashMap<>();
+
+		Renamer(String suffix) {
+			this.suffix = suffix;
+		}
+
+		void substitute(String variable, Expression substitute) {
+			substitutes.put(variable, substitute);
+		}
+
+		String rename(String variable) {
+			return variable + suffix;
+		}
+
+		private List<Expression> renameAll(List<Expression> expressions) {
+			if (expressions == null)
+				return null;
+			List<Expression> renamed = new ArrayList<>(expressions.size());
+			for (Expression e : expressions)
+				renamed.add(e.accept(this));
+			return renamed;
+		}
+
+		@Override
+		public Expression visitBinaryExpr(Binary binaryExpr) {
+			return new Binary(binaryExpr.left.accept(this), binaryExpr.operator, binaryExpr.right.accept(this));
+		}
+
+		@Override
+		public Expression visitLitteralExpr(Litteral litteralExpr) {
+			Token value = litteralExpr.value;
+			if (value.type != TokenType.IDENTIFIER)
+				return litteralExpr;
+			if (substitutes.containsKey(value.litteral))
+				return substitutes.get(value.litteral);
+			String name = rename((String) value.litteral);
+			return new Litteral(new Token(TokenType.IDENTIFIER, name, name, value.line));
+		}
+
+		@Override
+		public Expression visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+			return new VariableDeclaration(rename(varDeclarationExpr.name), varDeclarationExpr.value.accept(this));
+		}
+
+		@Override
+		public Expression visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+			throw new IllegalArgumentException("Functions cannot be nested");
+		}
+
+		@Override
+		public Expression visitFunctionCallExpr(FunctionCall funCallExpr) {
+			return new FunctionCall(funCallExpr.name, renameAll(funCallExpr.arguments));
+		}
+
+		@Override
+		public Expression visitIfStatementExpr(IfStatement ifStatementExpr) {
+			return new IfStatement((Binary) ifStatementExpr.condition.accept(this), renameAll(ifStatementExpr.body1),
+					renameAll(ifStatementExpr.body2));
+		}
+
+		@Override
+		public Expression visitReturnStatementExpr(ReturnStatement returnStatement) {
+			return new ReturnStatement(returnStatement.returnValue.accept(this));
+		}
+
+		@Override
+		public Expression visitWhileStatementExpr(WhileStatement whileStatement) {
+			return new WhileStatement((Binary) whileStatement.condition.accept(this),
+					renameAll(whileStatement.body));
+		}
+	}
+}
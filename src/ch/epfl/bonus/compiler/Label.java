@@ -0,0 +1,34 @@
+package ch.epfl.bonus.compiler;
+
+/**
+ * A position in the code of a function that relative jumps can target. A label
+ * is placed in the code with {@link AugmentedOpcode#label(Label)} and only gets
+ * its address once the function containing it has been laid out in the rom
+ */
+final class Label {
+
+	private int address = -1;
+
+	/**
+	 * Gives its final address to the label
+	 * 
+	 * @param address
+	 *            the address in the rom of the instruction following the label
+	 */
+	void bind(int address) {
+		this.address = address;
+	}
+
+	/**
+	 * Returns the address of the label
+	 * 
+	 * @return the address in the rom of the instruction following the label
+	 * @throws IllegalStateException
+	 *             if the label has not been laid out yet
+	 */
+	int address() {
+		if (address < 0)
+			throw new IllegalStateException("Label used before being laid out");
+		return address;
+	}
+}
@@ -0,0 +1,260 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.epfl.bonus.compiler.Compiler.Function;
+import ch.epfl.bonus.parser.Expression;
+import ch.epfl.bonus.parser.Expression.Binary;
+import ch.epfl.bonus.parser.Expression.FunctionBody;
+import ch.epfl.bonus.parser.Expression.FunctionCall;
+import ch.epfl.bonus.parser.Expression.IfStatement;
+import ch.epfl.bonus.parser.Expression.Litteral;
+import ch.epfl.bonus.parser.Expression.ReturnStatement;
+import ch.epfl.bonus.parser.Expression.VariableDeclaration;
+import ch.epfl.bonus.parser.Expression.Visitor;
+import ch.epfl.bonus.parser.Expression.WhileStatement;
+import ch.epfl.bonus.scanner.TokenType;
+import ch.epfl.gameboj.AddressMap;
+
+/**
+ * The functions whose results are remembered in a table of the work ram.
+ * 
+ * Only functions of a single argument that are pure, that is which write
+ * nothing to the output and only call pure functions, are memoized, as long as
+ * they may call themselves several times so that their results are reused.
+ * Every such function has two tables of 256 bytes indexed by its argument : one
+ * holding the results already computed and one telling which of them are
+ * valid. The tables lie at the end of the work ram, while the frames of the
+ * functions grow from its start : a program whose frames could reach the
+ * tables is compiled without memoization, see {@link #isAboveFrames}
+ */
+final class Memoization {
+
+	static final int TABLE_SIZE = 256;
+	// Each function takes two tables, this keeps 2 KiB of work ram for them
+	private static final int MAX_FUNCTIONS = 4;
+	// The return addresses are pushed from 0xFFFE down to the start of the high
+	// ram, below which they would be lost, so a working program never nests
+	// more calls than the high ram holds return addresses
+	private static final int MAX_CALL_DEPTH = (0xFFFE - AddressMap.HIGH_RAM_START) / 2;
+
+	private static final Memoization NONE = new Memoization(Collections.emptyMap());
+
+	private final Map<String, Integer> resultTables;
+
+	private Memoization(Map<String, Integer> resultTables) {
+		this.resultTables = resultTables;
+	}
+
+	/**
+	 * Returns the memoization remembering no result
+	 * 
+	 * @return the memoization remembering no result
+	 */
+	static Memoization none() {
+		return NONE;
+	}
+
+	/**
+	 * Chooses the functions of the given program to memoize, in the order they
+	 * are declared
+	 * 
+	 * @param program
+	 *            the top level expressions of a program
+	 * @return the memoization of the functions of the program
+	 */
+	static Memoization of(List<Expression> program) {
+		Map<String, Effects> effects = new LinkedHashMap<>();
+		for (Expression e : program) {
+			if (e instanceof FunctionBody) {
+				FunctionBody function = (FunctionBody) e;
+				effects.put(function.name + function.nameOfArguments.size(), new Effects(function));
+			}
+		}
+
+		// A function is pure until it is known to call an impure one
+		Set<String> pure = new HashSet<>();
+		for (Map.Entry<String, Effects> e : effects.entrySet()) {
+			if (!e.getValue().writesOutput)
+				pure.add(e.getKey());
+		}
+		boolean changed = true;
+		while (changed)
+			changed = pure.removeIf(signature -> !pure.containsAll(effects.get(signature).callees));
+
+		Map<String, Integer> resultTables = new LinkedHashMap<>();
+		for (Map.Entry<String, Effects> e : effects.entrySet()) {
+			String signature = e.getKey();
+			Effects function = e.getValue();
+			if (resultTables.size() == MAX_FUNCTIONS)
+				break;
+			if (pure.contains(signature) && function.arguments.size() == 1 && !function.assignsArgument
+					&& function.callsToItself >= 2) {
+				int address = AddressMap.WORK_RAM_END - 2 * TABLE_SIZE * (resultTables.size() + 1);
+				resultTables.put(signature, address);
+			}
+		}
+		return resultTables.isEmpty() ? NONE : new Memoization(resultTables);
+	}
+
+	/**
+	 * Returns the signatures of the memoized functions
+	 * 
+	 * @return the signatures of the memoized functions
+	 */
+	Collection<String> functions() {
+		return Collections.unmodifiableSet(resultTables.keySet());
+	}
+
+	/**
+	 * Returns true if the function with the given signature is memoized
+	 * 
+	 * @param signature
+	 *            the signature of a function
+	 * @return true if the function is memoized
+	 */
+	boolean isMemoized(String signature) {
+		return resultTables.containsKey(signature);
+	}
+
+	/**
+	 * Returns true if the tables lie above every frame the given compiled
+	 * program may use. The frames of main and of MAX_CALL_DEPTH nested calls
+	 * to its largest function must fit between the start of the stack and
+	 * the lowest table
+	 * 
+	 * @param context
+	 *            the context in which the program was compiled with this
+	 *            memoization
+	 * @return true if the frames of the program cannot overwrite the tables
+	 */
+	boolean isAboveFrames(CompilationContext context) {
+		if (resultTables.isEmpty() || !context.hasFunction("main0"))
+			return true;
+		int largestFrame = 0;
+		for (Function function : context.functions())
+			largestFrame = Math.max(largestFrame, function.getVariablesSize());
+		int framesEnd = CartridgeOrganization.STACK_START + context.function("main0").getVariablesSize()
+				+ MAX_CALL_DEPTH * largestFrame;
+		return framesEnd <= AddressMap.WORK_RAM_END - 2 * TABLE_SIZE * resultTables.size();
+	}
+
+	/**
+	 * Returns the address of the table holding the results of the given
+	 * function, it is a multiple of 256
+	 * 
+	 * @param signature
+	 *            the signature of a memoized function
+	 * @return the address of its table of results
+	 */
+	int resultTable(String signature) {
+		return resultTables.get(signature);
+	}
+
+	/**
+	 * Returns the address of the table telling which results of the given
+	 * function are valid, it is a multiple of 256
+	 * 
+	 * @param signature
+	 *            the signature of a memoized function
+	 * @return the address of its table of valid results
+	 */
+	int validTable(String signature) {
+		return resultTables.get(signature) + TABLE_SIZE;
+	}
+
+	// Collects what a function does besides computing its result
+	private static final class Effects implements Visitor<Void> {
+
+		private final String signature;
+		private final List<String> arguments;
+		private final Set<String> callees = new HashSet<>();
+		// A call inside of a loop counts as several calls
+		private int callsToItself = 0;
+		private int loopDepth = 0;
+		private boolean writesOutput = false;
+		private boolean assignsArgument = false;
+
+		Effects(FunctionBody function) {
+			signature = function.name + function.nameOfArguments.size();
+			arguments = function.nameOfArguments;
+			visit(function.expressions);
+		}
+
+		private void visit(List<Expression> expressions) {
+			for (Expression e : expressions)
+				e.accept(this);
+		}
+
+		@Override
+		public Void visitBinaryExpr(Binary binaryExpr) {
+			if (binaryExpr.operator.type == TokenType.EQUAL) {
+				Litteral left = (Litteral) binaryExpr.left;
+				if (left.value.type == TokenType.OUTPUT)
+					writesOutput = true;
+				else if (arguments.contains(left.value.litteral))
+					assignsArgument = true;
+			} else {
+				binaryExpr.left.accept(this);
+			}
+			binaryExpr.right.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitLitteralExpr(Litteral litteralExpr) {
+			return null;
+		}
+
+		@Override
+		public Void visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+			varDeclarationExpr.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+			throw new IllegalArgumentException("Functions cannot be nested");
+		}
+
+		@Override
+		public Void visitFunctionCallExpr(FunctionCall funCallExpr) {
+			String callee = funCallExpr.name + funCallExpr.arguments.size();
+			callees.add(callee);
+			if (callee.equals(signature))
+				callsToItself += loopDepth == 0 ? 1 : 2;
+			visit(funCallExpr.arguments);
+			return null;
+		}
+
+		@Override
+		public Void visitIfStatementExpr(IfStatement ifStatementExpr) {
+			ifStatementExpr.condition.accept(this);
+			visit(ifStatementExpr.body1);
+			if (ifStatementExpr.body2 != null)
+				visit(ifStatementExpr.body2);
+			return null;
+		}
+
+		@Override
+		public Void visitReturnStatementExpr(ReturnStatement returnStatement) {
+			returnStatement.returnValue.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStatementExpr(WhileStatement whileStatement) {
+			++loopDepth;
+			whileStatement.condition.accept(this);
+			visit(whileStatement.body);
+			--loopDepth;
+			return null;
+		}
+	}
+}
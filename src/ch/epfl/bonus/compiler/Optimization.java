@@ -0,0 +1,50 @@
+package ch.epfl.bonus.compiler;
+
+/**
+ * The optimizations the compiler can apply to the code it generates, they are
+ * chosen when the compiler is created
+ */
+public enum Optimization {
+	/**
+	 * Rewrites small windows of consecutive instructions into shorter and faster
+	 * equivalent ones, for example by merging the successive moves of the frame
+	 * pointer HL done around every variable access
+	 */
+	PEEPHOLE,
+
+	/**
+	 * Keeps the most used variables of each function in a register instead of
+	 * in the stack, so that accessing them does not require moving the frame
+	 * pointer HL
+	 */
+	REGISTER_ALLOCATION,
+
+	/**
+	 * Computes the operations whose operands are known at compile time, replaces
+	 * the variables whose value is known by it and removes the branches of the
+	 * if statements that are never taken
+	 */
+	CONSTANT_FOLDING,
+
+	/**
+	 * Compiles the calls of a function to itself whose result is directly
+	 * returned into a jump to the start of the function, after its arguments
+	 * have been replaced by the ones of the call, so that the recursion runs as
+	 * a loop without growing the stack
+	 */
+	TAIL_CALLS,
+
+	/**
+	 * Remembers the results of the recursive functions of a single argument
+	 * that have no effect besides computing their result, in tables of the work
+	 * ram indexed by the argument
+	 */
+	MEMOIZATION,
+
+	/**
+	 * Replaces the calls of the small functions which call no other function by
+	 * their body, so that the arguments are not copied to a new frame and no
+	 * call is made
+	 */
+	INLINING
+}
@@ -0,0 +1,49 @@
+package ch.epfl.bonus.compiler;
+
+/**
+ * Describes the effect of an optimization on the code of a function. The
+ * cycles are counted statically, each instruction of the function being
+ * counted once with the number of cycles it takes when it does not branch
+ */
+public final class OptimizationReport {
+
+	public final String function;
+	public final Optimization optimization;
+	public final int bytesBefore, bytesAfter;
+	public final int cyclesBefore, cyclesAfter;
+
+	public OptimizationReport(String function, Optimization optimization, int bytesBefore, int bytesAfter,
+			int cyclesBefore, int cyclesAfter) {
+		this.function = function;
+		this.optimization = optimization;
+		this.bytesBefore = bytesBefore;
+		this.bytesAfter = bytesAfter;
+		this.cyclesBefore = cyclesBefore;
+		this.cyclesAfter = cyclesAfter;
+	}
+
+	/**
+	 * Returns the number of bytes removed from the function by the optimization
+	 * 
+	 * @return the number of bytes saved, negative if the function grew
+	 */
+	public int bytesSaved() {
+		return bytesBefore - bytesAfter;
+	}
+
+	/**
+	 * Returns the number of cycles removed from the function by the
+	 * optimization
+	 * 
+	 * @return the number of cycles saved, negative if the function got slower
+	 */
+	public int cyclesSaved() {
+		return cyclesBefore - cyclesAfter;
+	}
+
+	@Override
+	public String toString() {
+		return function + "\t" + optimization + "\t" + bytesBefore + " -> " + bytesAfter + " bytes\t" + cyclesBefore
+				+ " -> " + cyclesAfter + " cycles";
+	}
+}
@@ -0,0 +1,423 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.epfl.bonus.compiler.AugmentedOpcode.TO_RETRIEVE;
+
+/**
+ * Rewrites the code of a function into shorter and faster equivalent code by
+ * looking at small windows of consecutive instructions, until no rule applies
+ * anymore.
+ * 
+ * The rules rely on the conventions followed by the code generated by the
+ * compiler : DE is only loaded to be added to HL right after, and the
+ * registers B and C as well as the flags are never read after a jump or a
+ * label before being written again. D and E may hold variables, which are
+ * written back to the stack before every call. Inside of a straight sequence
+ * of instructions the registers and the flags are only rewritten when the
+ * sequence itself shows that their old value is not read anymore
+ */
+final class PeepholeOptimizer {
+
+	// Moves of HL by at most this amount are done with INC HL or DEC HL rather
+	// than by loading DE and adding it to HL
+	private static final int MAX_INC_DEC = 2;
+
+	private static final String FLAGS = "F";
+
+	private PeepholeOptimizer() {
+	}
+
+	/**
+	 * Returns the optimized version of the given code, which is left unchanged
+	 * 
+	 * @param code
+	 *            the code of a function
+	 * @return the optimized code
+	 */
+	static List<AugmentedOpcode> optimize(List<AugmentedOpcode> code) {
+		List<AugmentedOpcode> current = code;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			List<AugmentedOpcode> next = new ArrayList<>(current.size());
+			int i = 0;
+			while (i < current.size()) {
+				int replaced = rewrite(current, i, next);
+				if (replaced == 0) {
+					next.add(current.get(i));
+					++i;
+				} else {
+					i += replaced;
+					changed = true;
+				}
+			}
+			current = next;
+		}
+		return current;
+	}
+
+	// Tries every rule at the given index. If one of them applies, its
+	// replacement is added to out and the number of instructions it replaces is
+	// returned, otherwise nothing is added and 0 is returned
+	private static int rewrite(List<AugmentedOpcode> code, int i, List<AugmentedOpcode> out) {
+		int replaced = foldMovesOfHl(code, i, out);
+		if (replaced == 0)
+			replaced = removeSwap(code, i, out);
+		if (replaced == 0)
+			replaced = useOperandDirectly(code, i, out);
+		if (replaced == 0)
+			replaced = removeReload(code, i, out);
+		return replaced;
+	}
+
+	// Every variable access moves HL down to the variable and then back up, and
+	// every argument written for a call moves HL by the size of the frame of the
+	// called function and then byte by byte. The successive moves are replaced
+	// by a single one, which depends on at most one stack size
+	private static int foldMovesOfHl(List<AugmentedOpcode> code, int i, List<AugmentedOpcode> out) {
+		int end = i;
+		int constant = 0;
+		String signature = null;
+		int stackCount = 0;
+		List<AugmentedOpcode> original = new ArrayList<>();
+		int length;
+		while ((length = moveOfHlLength(code, end)) != 0) {
+			AugmentedOpcode move = code.get(end);
+			switch (move.getOpcode()) {
+			case INC_HL:
+				constant += 1;
+				break;
+			case DEC_HL:
+				constant -= 1;
+				break;
+			default:
+				if (move.getArgument() instanceof Integer) {
+					constant += (int) move.getArgument();
+				} else {
+					String moveSignature = (String) move.getArgument();
+					if (move.getParamToRetrieve() == TO_RETRIEVE.ROM_ADDRESS)
+						return 0;
+					if (stackCount == 0)
+						signature = moveSignature;
+					else if (!signature.equals(moveSignature))
+						return 0;
+					stackCount += move.getParamToRetrieve() == TO_RETRIEVE.STACK ? 1 : -1;
+					constant += move.getOffset();
+				}
+			}
+			original.addAll(code.subList(end, end + length));
+			end += length;
+		}
+		if (original.isEmpty() || Math.abs(stackCount) > 1)
+			return 0;
+
+		// HL is only 16 bits wide
+		constant = (short) constant;
+		List<AugmentedOpcode> replacement = new ArrayList<>();
+		if (stackCount != 0) {
+			TO_RETRIEVE stack = stackCount > 0 ? TO_RETRIEVE.STACK : TO_RETRIEVE.COMPLEMENT_STACK;
+			replacement.add(new AugmentedOpcode(Opcode.LD_DE_N16, signature, stack, constant));
+			replacement.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
+		} else if (Math.abs(constant) <= MAX_INC_DEC) {
+			for (int k = 0; k < Math.abs(constant); ++k)
+				replacement.add(new AugmentedOpcode(constant > 0 ? Opcode.INC_HL : Opcode.DEC_HL));
+		} else {
+			replacement.add(new AugmentedOpcode(Opcode.LD_DE_N16, constant & 0xFFFF));
+			replacement.add(new AugmentedOpcode(Opcode.ADD_HL_DE));
+		}
+
+		// Contrary to INC HL and DEC HL, ADD HL,DE modifies the flags
+		boolean changesFlags = contains(original, Opcode.ADD_HL_DE) || contains(replacement, Opcode.ADD_HL_DE);
+		if (!isCheaper(replacement, original) || (changesFlags && !isDeadAfter(code, end, FLAGS)))
+			return 0;
+		// DE can only be loaded if it was already loaded or does not hold variables
+		if (!contains(original, Opcode.LD_DE_N16) && contains(replacement, Opcode.LD_DE_N16)
+				&& !(isDeadAfter(code, end, "D") && isDeadAfter(code, end, "E")))
+			return 0;
+		out.addAll(replacement);
+		return end - i;
+	}
+
+	// The operands of a subtraction or of a comparison are swapped through C,
+	// the operation can instead be done with C as its second operand
+	private static int removeSwap(List<AugmentedOpcode> code, int i, List<AugmentedOpcode> out) {
+		if (matches(code, i, Opcode.LD_C_B, Opcode.LD_B_A, Opcode.LD_A_C, Opcode.SUB_A_B)
+				&& isDeadAfter(code, i + 4, "B") && isDeadAfter(code, i + 4, "C")) {
+			add(out, Opcode.LD_C_A, Opcode.LD_A_B, Opcode.SUB_A_C);
+			return 4;
+		}
+		if (matches(code, i, Opcode.LD_C_A, Opcode.LD_A_B, Opcode.LD_B_C, Opcode.CP_A_B)
+				&& isDeadAfter(code, i + 4, "B")) {
+			add(out, Opcode.LD_C_A, Opcode.LD_A_B, Opcode.CP_A_C);
+			return 4;
+		}
+		return 0;
+	}
+
+	// The left operand of a binary operator is kept in B while its right
+	// operand is loaded in A. When the right operand is a number, the variable
+	// pointed by HL or a variable kept in a register, the operator can directly
+	// use it instead
+	private static int useOperandDirectly(List<AugmentedOpcode> code, int i, List<AugmentedOpcode> out) {
+		if (!matches(code, i, Opcode.LD_B_A))
+			return 0;
+		int loadStart = skipMovesOfHl(code, i + 1);
+		if (loadStart >= code.size() || code.get(loadStart).isLabel())
+			return 0;
+		AugmentedOpcode load = code.get(loadStart);
+		String operand;
+		switch (load.getOpcode()) {
+		case LD_A_N8:
+			operand = "N8";
+			break;
+		case LD_A_HLR:
+			operand = "HLR";
+			break;
+		case LD_A_D:
+			operand = "D";
+			break;
+		case LD_A_E:
+			operand = "E";
+			break;
+		default:
+			return 0;
+		}
+		// Only the variable pointed by HL depends on the moves of HL
+		boolean isInMemory = load.getOpcode() == Opcode.LD_A_HLR;
+		int loadEnd = skipMovesOfHl(code, loadStart + 1);
+
+		String operator;
+		int end;
+		if (matches(code, loadEnd, Opcode.LD_C_A, Opcode.LD_A_B, Opcode.SUB_A_C)) {
+			operator = "SUB";
+			end = loadEnd + 3;
+		} else if (matches(code, loadEnd, Opcode.LD_C_A, Opcode.LD_A_B, Opcode.CP_A_C)) {
+			operator = "CP";
+			end = loadEnd + 3;
+		} else if (matches(code, loadEnd, Opcode.ADD_A_B)) {
+			operator = "ADD";
+			end = loadEnd + 1;
+		} else if (matches(code, loadEnd, Opcode.AND_A_B)) {
+			operator = "AND";
+			end = loadEnd + 1;
+		} else if (matches(code, loadEnd, Opcode.OR_A_B)) {
+			operator = "OR";
+			end = loadEnd + 1;
+		} else if (matches(code, loadEnd, Opcode.XOR_A_B)) {
+			operator = "XOR";
+			end = loadEnd + 1;
+		} else {
+			return 0;
+		}
+		Opcode operation = Opcode.valueOf(operator + "_A_" + operand);
+		// C is only used by the subtraction and the comparison
+		boolean usesC = end == loadEnd + 3;
+		if (!isDeadAfter(code, end, "B") || (usesC && !isDeadAfter(code, end, "C")))
+			return 0;
+		// The moves of HL following a load from memory now follow the operation,
+		// so they must not overwrite flags that are read afterwards
+		List<AugmentedOpcode> movesAfterLoad = code.subList(loadStart + 1, loadEnd);
+		if (isInMemory && contains(movesAfterLoad, Opcode.ADD_HL_DE) && !isDeadAfter(code, end, FLAGS))
+			return 0;
+
+		out.addAll(code.subList(i + 1, loadStart));
+		if (isInMemory) {
+			out.add(new AugmentedOpcode(operation));
+			out.addAll(movesAfterLoad);
+		} else {
+			out.addAll(movesAfterLoad);
+			out.add(new AugmentedOpcode(operation, load.getArgument()));
+		}
+		return end - i;
+	}
+
+	// A value that has just been stored at the address pointed by HL is still
+	// in A
+	private static int removeReload(List<AugmentedOpcode> code, int i, List<AugmentedOpcode> out) {
+		if (matches(code, i, Opcode.LD_HLR_A, Opcode.LD_A_HLR)) {
+			out.add(code.get(i));
+			return 2;
+		}
+		return 0;
+	}
+
+	// Returns the number of instructions of the move of HL starting at the given
+	// index, or 0 if there is none
+	private static int moveOfHlLength(List<AugmentedOpcode> code, int i) {
+		if (matches(code, i, Opcode.INC_HL) || matches(code, i, Opcode.DEC_HL))
+			return 1;
+		if (matches(code, i, Opcode.LD_DE_N16, Opcode.ADD_HL_DE))
+			return 2;
+		return 0;
+	}
+
+	private static int skipMovesOfHl(List<AugmentedOpcode> code, int i) {
+		int length;
+		while ((length = moveOfHlLength(code, i)) != 0)
+			i += length;
+		return i;
+	}
+
+	private static boolean matches(List<AugmentedOpcode> code, int i, Opcode... opcodes) {
+		if (i + opcodes.length > code.size())
+			return false;
+		for (int k = 0; k < opcodes.length; ++k) {
+			if (code.get(i + k).getOpcode() != opcodes[k])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean contains(List<AugmentedOpcode> code, Opcode opcode) {
+		for (AugmentedOpcode instruction : code) {
+			if (instruction.getOpcode() == opcode)
+				return true;
+		}
+		return false;
+	}
+
+	private static void add(List<AugmentedOpcode> out, Opcode... opcodes) {
+		for (Opcode opcode : opcodes)
+			out.add(new AugmentedOpcode(opcode));
+	}
+
+	private static boolean isCheaper(List<AugmentedOpcode> replacement, List<AugmentedOpcode> original) {
+		int cyclesDifference = cycles(replacement) - cycles(original);
+		return cyclesDifference < 0 || (cyclesDifference == 0 && size(replacement) < size(original));
+	}
+
+	private static int size(List<AugmentedOpcode> code) {
+		int size = 0;
+		for (AugmentedOpcode instruction : code)
+			size += instruction.size();
+		return size;
+	}
+
+	private static int cycles(List<AugmentedOpcode> code) {
+		int cycles = 0;
+		for (AugmentedOpcode instruction : code)
+			cycles += instruction.cycles();
+		return cycles;
+	}
+
+	// Returns true if the value of the given register (or of the flags) at the
+	// given index is never read, by looking at the instructions following it
+	// until the register is written again or the straight sequence ends
+	private static boolean isDeadAfter(List<AugmentedOpcode> code, int i, String register) {
+		// D and E may hold variables across jumps, they are only known to be dead
+		// when a function is called or returns
+		boolean mayHoldVariable = register.equals("D") || register.equals("E");
+		for (int j = i; j < code.size(); ++j) {
+			AugmentedOpcode instruction = code.get(j);
+			if (instruction.isLabel())
+				return !mayHoldVariable;
+			Opcode opcode = instruction.getOpcode();
+			if (mayHoldVariable && endsSequence(opcode))
+				return endsFunction(opcode);
+			if (register.equals(FLAGS)) {
+				switch (opcode.family) {
+				case JR_CC_E8:
+				case JP_CC_N16:
+				case CALL_CC_N16:
+				case RET_CC:
+				case PUSH_R16:
+				case ROTA:
+				case ROT_R8:
+				case ROT_HLR:
+				case DAA:
+				case SCCF:
+					return false;
+				case ADD_A_R8:
+				case ADD_A_N8:
+				case ADD_A_HLR:
+				case SUB_A_R8:
+				case SUB_A_N8:
+				case SUB_A_HLR:
+					// ADC and SBC read the carry
+					if (opcode.name().startsWith("ADC") || opcode.name().startsWith("SBC"))
+						return false;
+					return true;
+				case AND_A_R8:
+				case AND_A_N8:
+				case AND_A_HLR:
+				case OR_A_R8:
+				case OR_A_N8:
+				case OR_A_HLR:
+				case XOR_A_R8:
+				case XOR_A_N8:
+				case XOR_A_HLR:
+				case CP_A_R8:
+				case CP_A_N8:
+				case CP_A_HLR:
+					return true;
+				default:
+					if (endsSequence(opcode))
+						return true;
+				}
+			} else {
+				if (endsSequence(opcode))
+					return true;
+				String[] parts = opcode.name().split("_");
+				switch (opcode.family) {
+				case LD_R8_R8:
+					if (parts[2].equals(register))
+						return false;
+					if (parts[1].equals(register))
+						return true;
+					break;
+				case LD_R8_N8:
+				case LD_R8_HLR:
+					if (parts[1].equals(register))
+						return true;
+					break;
+				default:
+					// Any other instruction naming the register, alone, in a pair or in a
+					// pair pointing to memory, is assumed to read it
+					for (int k = 1; k < parts.length; ++k) {
+						if (parts[k].length() <= 3 && !parts[k].startsWith("HL") && parts[k].contains(register))
+							return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	// Calls are included since D and E are written back to the stack before them
+	private static boolean endsFunction(Opcode opcode) {
+		switch (opcode.family) {
+		case CALL_N16:
+		case CALL_CC_N16:
+		case RST_U3:
+		case RET:
+		case RET_CC:
+		case RETI:
+		case HALT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean endsSequence(Opcode opcode) {
+		switch (opcode.family) {
+		case JP_HL:
+		case JP_N16:
+		case JP_CC_N16:
+		case JR_E8:
+		case JR_CC_E8:
+		case CALL_N16:
+		case CALL_CC_N16:
+		case RST_U3:
+		case RET:
+		case RET_CC:
+		case RETI:
+		case HALT:
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,454 @@
+package ch.epfl.bonus.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.epfl.bonus.parser.Expression;
+import ch.epfl.bonus.parser.Expression.Binary;
+import ch.epfl.bonus.parser.Expression.FunctionBody;
+import ch.epfl.bonus.parser.Expression.FunctionCall;
+import ch.epfl.bonus.parser.Expression.IfStatement;
+import ch.epfl.bonus.parser.Expression.Litteral;
+import ch.epfl.bonus.parser.Expression.ReturnStatement;
+import ch.epfl.bonus.parser.Expression.VariableDeclaration;
+import ch.epfl.bonus.parser.Expression.Visitor;
+import ch.epfl.bonus.parser.Expression.WhileStatement;
+import ch.epfl.bonus.scanner.TokenType;
+
+/**
+ * The variables of a function that are kept in a register instead of in the
+ * stack.
+ * 
+ * A and B hold the operands of the expressions and C is used to swap them, so
+ * only D and E can hold variables. While they do, HL is moved with INC HL and
+ * DEC HL instead of being added DE, and since a called function may modify
+ * every register the variables are written back to the stack before every
+ * call and read again after it when they are still live
+ */
+final class RegisterAllocation {
+
+	/**
+	 * A register able to hold a variable, along with the instructions moving
+	 * the variable between A, the register and the stack
+	 */
+	enum Register {
+		D(Opcode.LD_A_D, Opcode.LD_D_A, Opcode.LD_D_HLR, Opcode.LD_HLR_D),
+		E(Opcode.LD_A_E, Opcode.LD_E_A, Opcode.LD_E_HLR, Opcode.LD_HLR_E);
+
+		final Opcode load;
+		final Opcode store;
+		final Opcode fill;
+		final Opcode spill;
+
+		private Register(Opcode load, Opcode store, Opcode fill, Opcode spill) {
+			this.load = load;
+			this.store = store;
+			this.fill = fill;
+			this.spill = spill;
+		}
+	}
+
+	// A use inside of a loop is assumed to be executed this many times more
+	// than a use outside of it
+	private static final int LOOP_WEIGHT = 8;
+	private static final int MAX_LOOP_DEPTH = 5;
+
+	// Cycles taken by the accesses to a variable, see cost
+	private static final int REGISTER_ACCESS_CYCLES = 1;
+	private static final int STACK_ACCESS_CYCLES = 2;
+	private static final int MOVE_WITH_DE_CYCLES = 10;
+	private static final int MOVE_WITH_INC_DEC_CYCLES = 4;
+
+	private static final RegisterAllocation NONE = new RegisterAllocation(Collections.emptyMap(),
+			Collections.emptyMap(), Collections.emptyMap());
+
+	private final Map<String, Register> registers;
+	private final Map<FunctionCall, Set<String>> liveBeforeCalls;
+	private final Map<FunctionCall, Set<String>> liveAfterCalls;
+
+	private RegisterAllocation(Map<String, Register> registers, Map<FunctionCall, Set<String>> liveBeforeCalls,
+			Map<FunctionCall, Set<String>> liveAfterCalls) {
+		this.registers = registers;
+		this.liveBeforeCalls = liveBeforeCalls;
+		this.liveAfterCalls = liveAfterCalls;
+	}
+
+	/**
+	 * Returns the allocation keeping every variable in the stack
+	 * 
+	 * @return the allocation keeping every variable in the stack
+	 */
+	static RegisterAllocation none() {
+		return NONE;
+	}
+
+	/**
+	 * Chooses the variables of the given function to keep in a register. A
+	 * variable is only kept in a register when the accesses it saves, weighted
+	 * by the depth of the loops they are in, outweigh the cost of writing it
+	 * back to the stack around the calls and of moving HL without DE
+	 * 
+	 * @param function
+	 *            the body of a function
+	 * @return the allocation of the variables of the function
+	 */
+	static RegisterAllocation of(FunctionBody function) {
+		Usage usage = new Usage(function);
+		Liveness liveness = new Liveness(function);
+
+		List<String> candidates = new ArrayList<>(usage.weights.keySet());
+		candidates.removeIf(usage::isTemporary);
+		candidates.sort((v1, v2) -> Integer.compare(usage.weights.get(v2), usage.weights.get(v1)));
+
+		Map<String, Register> registers = new LinkedHashMap<>();
+		long bestCost = cost(usage, liveness, registers.keySet());
+		for (String candidate : candidates) {
+			if (registers.size() == Register.values().length)
+				break;
+			registers.put(candidate, Register.values()[registers.size()]);
+			long cost = cost(usage, liveness, registers.keySet());
+			if (cost < bestCost)
+				bestCost = cost;
+			else
+				registers.remove(candidate);
+		}
+		if (registers.isEmpty())
+			return NONE;
+		return new RegisterAllocation(registers, liveness.liveBeforeCalls, liveness.liveAfterCalls);
+	}
+
+	/**
+	 * Returns true if every variable is kept in the stack
+	 * 
+	 * @return true if every variable is kept in the stack
+	 */
+	boolean isEmpty() {
+		return registers.isEmpty();
+	}
+
+	/**
+	 * Returns the register holding the given variable, or null if it is kept
+	 * in the stack
+	 * 
+	 * @param variable
+	 *            the name of a variable
+	 * @return the register holding the variable or null
+	 */
+	Register registerOf(String variable) {
+		return registers.get(variable);
+	}
+
+	/**
+	 * Returns the variables kept in a register, in the order of their registers
+	 * 
+	 * @return the variables kept in a register
+	 */
+	Set<String> variables() {
+		return Collections.unmodifiableSet(registers.keySet());
+	}
+
+	/**
+	 * Returns the variables kept in a register that must be written back to
+	 * the stack before the given call, either because its arguments use them
+	 * or because they are still needed after it
+	 * 
+	 * @param call
+	 *            a call of the function
+	 * @return the variables to write back to the stack
+	 */
+	Set<String> spilledBefore(FunctionCall call) {
+		return inRegisters(liveBeforeCalls.get(call));
+	}
+
+	/**
+	 * Returns the variables kept in a register that must be read again from
+	 * the stack after the given call
+	 * 
+	 * @param call
+	 *            a call of the function
+	 * @return the variables to read from the stack
+	 */
+	Set<String> filledAfter(FunctionCall call) {
+		return inRegisters(liveAfterCalls.get(call));
+	}
+
+	private Set<String> inRegisters(Set<String> live) {
+		if (registers.isEmpty())
+			return Collections.emptySet();
+		Set<String> variables = new LinkedHashSet<>(registers.keySet());
+		variables.retainAll(live);
+		return variables;
+	}
+
+	// Estimates the number of cycles spent accessing the variables when the
+	// given ones are kept in a register. Small moves of HL are assumed to be
+	// done with INC HL and DEC HL even when DE is free, as the peephole
+	// optimizer does
+	private static long cost(Usage usage, Liveness liveness, Set<String> inRegisters) {
+		long cost = 0;
+		for (Map.Entry<String, Integer> e : usage.weights.entrySet()) {
+			String variable = e.getKey();
+			if (inRegisters.contains(variable)) {
+				cost += (long) e.getValue() * REGISTER_ACCESS_CYCLES;
+			} else {
+				int index = usage.indices.get(variable);
+				int move = MOVE_WITH_INC_DEC_CYCLES * index;
+				if (inRegisters.isEmpty())
+					move = Math.min(move, MOVE_WITH_DE_CYCLES);
+				cost += (long) e.getValue() * (STACK_ACCESS_CYCLES + move);
+			}
+		}
+		for (String variable : inRegisters) {
+			if (usage.arguments.contains(variable))
+				cost += stackAccessCost(usage, variable);
+		}
+		for (Map.Entry<FunctionCall, Integer> e : usage.calls.entrySet()) {
+			for (String variable : inRegisters) {
+				if (liveness.liveBeforeCalls.get(e.getKey()).contains(variable))
+					cost += (long) e.getValue() * stackAccessCost(usage, variable);
+				if (liveness.liveAfterCalls.get(e.getKey()).contains(variable))
+					cost += (long) e.getValue() * stackAccessCost(usage, variable);
+			}
+		}
+		return cost;
+	}
+
+	private static int stackAccessCost(Usage usage, String variable) {
+		return STACK_ACCESS_CYCLES + MOVE_WITH_INC_DEC_CYCLES * usage.indices.get(variable);
+	}
+
+	// Computes the index in the stack of every variable, in the same order as the
+	// compiler allocates them, and how often every variable is accessed and every
+	// call is made
+	private static final class Usage implements Visitor<Void> {
+
+		private final Set<String> arguments = new HashSet<>();
+		private final Map<String, Integer> indices = new HashMap<>();
+		private final Map<String, Integer> weights = new HashMap<>();
+		private final Map<FunctionCall, Integer> calls = new IdentityHashMap<>();
+		private int loopDepth = 0;
+		private int callsBeingPrepared = 0;
+
+		Usage(FunctionBody function) {
+			// The arguments are written by the caller
+			arguments.addAll(function.nameOfArguments);
+			for (String argument : function.nameOfArguments) {
+				indices.put(argument, indices.size());
+				weights.put(argument, 0);
+			}
+			for (Expression e : function.expressions)
+				e.accept(this);
+		}
+
+		boolean isTemporary(String variable) {
+			return variable.startsWith("_");
+		}
+
+		private int weight() {
+			int weight = 1;
+			for (int i = 0; i < Math.min(loopDepth, MAX_LOOP_DEPTH); ++i)
+				weight *= LOOP_WEIGHT;
+			return weight;
+		}
+
+		private void declare(String variable) {
+			indices.putIfAbsent(variable, indices.size());
+			use(variable);
+		}
+
+		private void use(String variable) {
+			// A variable used before being declared is reported by the compiler, and
+			// the arguments of a call are always read from the stack
+			if (indices.containsKey(variable) && callsBeingPrepared == 0)
+				weights.merge(variable, weight(), Integer::sum);
+		}
+
+		@Override
+		public Void visitBinaryExpr(Binary binaryExpr) {
+			if (binaryExpr.operator.type == TokenType.EQUAL) {
+				binaryExpr.right.accept(this);
+				if (binaryExpr.left instanceof Litteral)
+					binaryExpr.left.accept(this);
+			} else if (binaryExpr.right instanceof FunctionCall || binaryExpr.right instanceof Binary) {
+				// The left operand is kept in a temporary variable during the right one
+				String temporary = "_" + indices.size();
+				declare(temporary);
+				binaryExpr.left.accept(this);
+				binaryExpr.right.accept(this);
+				use(temporary);
+			} else {
+				binaryExpr.left.accept(this);
+				binaryExpr.right.accept(this);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitLitteralExpr(Litteral litteralExpr) {
+			if (litteralExpr.value.type == TokenType.IDENTIFIER)
+				use((String) litteralExpr.value.litteral);
+			return null;
+		}
+
+		@Override
+		public Void visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+			declare(varDeclarationExpr.name);
+			varDeclarationExpr.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+			throw new IllegalArgumentException("Functions cannot be nested");
+		}
+
+		@Override
+		public Void visitFunctionCallExpr(FunctionCall funCallExpr) {
+			++callsBeingPrepared;
+			for (Expression argument : funCallExpr.arguments)
+				argument.accept(this);
+			--callsBeingPrepared;
+			// Only the outermost call writes the variables back to the stack
+			if (callsBeingPrepared == 0)
+				calls.put(funCallExpr, weight());
+			return null;
+		}
+
+		@Override
+		public Void visitIfStatementExpr(IfStatement ifStatementExpr) {
+			ifStatementExpr.condition.accept(this);
+			for (Expression e : ifStatementExpr.body1)
+				e.accept(this);
+			if (ifStatementExpr.body2 != null) {
+				for (Expression e : ifStatementExpr.body2)
+					e.accept(this);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitReturnStatementExpr(ReturnStatement returnStatement) {
+			returnStatement.returnValue.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStatementExpr(WhileStatement whileStatement) {
+			++loopDepth;
+			whileStatement.condition.accept(this);
+			for (Expression e : whileStatement.body)
+				e.accept(this);
+			--loopDepth;
+			return null;
+		}
+	}
+
+	// Computes the variables whose value may still be read before and after
+	// every call, by going through the function backwards. The set live always
+	// contains the variables that are live after the expression being visited,
+	// and once it has been visited the ones that are live before it
+	private static final class Liveness implements Visitor<Void> {
+
+		private final Map<FunctionCall, Set<String>> liveBeforeCalls = new IdentityHashMap<>();
+		private final Map<FunctionCall, Set<String>> liveAfterCalls = new IdentityHashMap<>();
+		private Set<String> live = new HashSet<>();
+
+		Liveness(FunctionBody function) {
+			visitBackwards(function.expressions);
+		}
+
+		private void visitBackwards(List<Expression> expressions) {
+			for (int i = expressions.size() - 1; i >= 0; --i)
+				expressions.get(i).accept(this);
+		}
+
+		@Override
+		public Void visitBinaryExpr(Binary binaryExpr) {
+			if (binaryExpr.operator.type == TokenType.EQUAL) {
+				Litteral left = (Litteral) binaryExpr.left;
+				if (left.value.type == TokenType.IDENTIFIER)
+					live.remove(left.value.litteral);
+				binaryExpr.right.accept(this);
+			} else {
+				binaryExpr.right.accept(this);
+				binaryExpr.left.accept(this);
+			}
+			return null;
+		}
+
+		@Override
+		public Void visitLitteralExpr(Litteral litteralExpr) {
+			if (litteralExpr.value.type == TokenType.IDENTIFIER)
+				live.add((String) litteralExpr.value.litteral);
+			return null;
+		}
+
+		@Override
+		public Void visitVariableDeclarationExpr(VariableDeclaration varDeclarationExpr) {
+			live.remove(varDeclarationExpr.name);
+			varDeclarationExpr.value.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitFunctionBodyExpr(FunctionBody funBodyExpr) {
+			throw new IllegalArgumentException("Functions cannot be nested");
+		}
+
+		@Override
+		public Void visitFunctionCallExpr(FunctionCall funCallExpr) {
+			liveAfterCalls.put(funCallExpr, new HashSet<>(live));
+			visitBackwards(funCallExpr.arguments);
+			liveBeforeCalls.put(funCallExpr, new HashSet<>(live));
+			return null;
+		}
+
+		@Override
+		public Void visitIfStatementExpr(IfStatement ifStatementExpr) {
+			Set<String> liveAfter = live;
+			live = new HashSet<>(liveAfter);
+			visitBackwards(ifStatementExpr.body1);
+			Set<String> liveBeforeBody1 = live;
+			live = new HashSet<>(liveAfter);
+			if (ifStatementExpr.body2 != null)
+				visitBackwards(ifStatementExpr.body2);
+			live.addAll(liveBeforeBody1);
+			ifStatementExpr.condition.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitReturnStatementExpr(ReturnStatement returnStatement) {
+			// Nothing is read after a return
+			live = new HashSet<>();
+			returnStatement.returnValue.accept(this);
+			return null;
+		}
+
+		@Override
+		public Void visitWhileStatementExpr(WhileStatement whileStatement) {
+			// The variables live before the condition are live after the body, the
+			// loop is visited again until they do not change anymore
+			Set<String> liveAfter = live;
+			Set<String> liveBeforeCondition = new HashSet<>();
+			Set<String> previous;
+			do {
+				previous = liveBeforeCondition;
+				live = new HashSet<>(previous);
+				visitBackwards(whileStatement.body);
+				live.addAll(liveAfter);
+				whileStatement.condition.accept(this);
+				liveBeforeCondition = live;
+			} while (!liveBeforeCondition.equals(previous));
+			return null;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package ch.epfl.bonus.runner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ch.epfl.bonus.compiler.Compiler;
+import ch.epfl.bonus.parser.Expression;
+import ch.epfl.bonus.parser.Parser;
+import ch.epfl.bonus.scanner.Scanner;
+import ch.epfl.gameboj.GameBoy;
+import ch.epfl.gameboj.Preconditions;
+import ch.epfl.gameboj.component.cartridge.Cartridge;
+
+/**
+ * Compiles and runs many programs without any user interface, each program
+ * being executed by its own GameBoy on a pool of threads.
+ * 
+ * It can be used from the command line with a directory containing the
+ * programs, each regular file of the directory being a program :
+ * 
+ * BatchRunner directory [threads] [cycleLimit]
+ * 
+ * The result of each program is then printed on its own line, in the order
+ * of the names of the files
+ */
+public final class BatchRunner {
+
+	/**
+	 * The number of cycles after which a program is stopped by default, a bit
+	 * more than a minute of emulated time
+	 */
+	public static final long DEFAULT_CYCLE_LIMIT = 1L << 26;
+
+	// The compiler keeps no state between compilations so it can be shared by
+	// all the threads
+	private static final Compiler COMPILER = new Compiler();
+
+	private final int parallelism;
+	private final long cycleLimit;
+
+	/**
+	 * Creates a batch runner executing at most parallelism programs at the same
+	 * time, each of them for at most cycleLimit cycles
+	 * 
+	 * @param parallelism
+	 *            the number of threads used (must be strictly positive)
+	 * @param cycleLimit
+	 *            the number of cycles after which a program still running is
+	 *            stopped (must be strictly positive)
+	 * @throws IllegalArgumentException
+	 *             if parallelism or cycleLimit is not strictly positive
+	 */
+	public BatchRunner(int parallelism, long cycleLimit) {
+		Preconditions.checkArgument(parallelism > 0 && cycleLimit > 0);
+		this.parallelism = parallelism;
+		this.cycleLimit = cycleLimit;
+	}
+
+	/**
+	 * Compiles and runs every regular file of the given directory
+	 * 
+	 * @param directory
+	 *            the directory containing the programs
+	 * @return the results of the programs, sorted by file name
+	 * @throws IOException
+	 *             if the content of the directory cannot be listed
+	 */
+	public List<RunResult> runDirectory(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return runAll(files.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+		}
+	}
+
+	/**
+	 * Compiles and runs each one of the given programs
+	 * 
+	 * @param programs
+	 *            the files containing the programs
+	 * @return the results of the programs, in the same order as the programs
+	 */
+	public List<RunResult> runAll(List<Path> programs) {
+		List<Callable<RunResult>> tasks = new ArrayList<>();
+		for (Path program : programs) {
+			tasks.add(() -> run(program));
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<RunResult> results = new ArrayList<>();
+			for (Future<RunResult> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while running the programs", e);
+		} catch (ExecutionException e) {
+			// run turns every exception and error thrown while compiling or
+			// executing a program into a result, so this is a bug of the runner
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Compiles and runs the given program in the calling thread. Any exception
+	 * thrown while compiling the program and any exception or error thrown
+	 * while executing it, such as the one of an unimplemented instruction, is
+	 * reported as an ERROR result
+	 * 
+	 * @param program
+	 *            the file containing the program
+	 * @return the result of the program
+	 */
+	public RunResult run(Path program) {
+		String name = program.getFileName().toString();
+		GameBoy gameboy;
+		try {
+			String code = new String(Files.readAllBytes(program), StandardCharsets.UTF_8);
+			List<Expression> expressions = new Parser(new Scanner(code).getTokens()).parse();
+			gameboy = new GameBoy(Cartridge.ofBuffer(COMPILER.compileToRom(expressions)));
+		} catch (Exception e) {
+			return new RunResult(name, RunResult.Status.ERROR, "", 0, "compilation failed: " + describe(e));
+		}
+
+		try {
+			gameboy.runUntilCpuHalted(cycleLimit);
+		} catch (RuntimeException | Error e) {
+			return new RunResult(name, RunResult.Status.ERROR, output(gameboy), gameboy.cycles(),
+					"execution failed: " + describe(e));
+		}
+		RunResult.Status status = gameboy.cpu().isHalted() ? RunResult.Status.HALTED : RunResult.Status.CYCLE_LIMIT;
+		return new RunResult(name, status, output(gameboy), gameboy.cycles(), null);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println("Usage: BatchRunner directory [threads] [cycleLimit]");
+			System.exit(2);
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long cycleLimit = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_CYCLE_LIMIT;
+
+		List<RunResult> results = new BatchRunner(threads, cycleLimit).runDirectory(Paths.get(args[0]));
+		boolean failed = false;
+		for (RunResult result : results) {
+			System.out.println(result);
+			failed |= result.status == RunResult.Status.ERROR;
+		}
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static String output(GameBoy gameboy) {
+		return gameboy.serialPortPrintComponent().consoleProperty.get();
+	}
+
+	private static String describe(Throwable e) {
+		return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+	}
+
+}
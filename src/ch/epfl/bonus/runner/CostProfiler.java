@@ -0,0 +1,44 @@
+package ch.epfl.bonus.runner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.List;
+
+import ch.epfl.bonus.compiler.Compiler;
+import ch.epfl.bonus.compiler.CostReport;
+import ch.epfl.bonus.compiler.Optimization;
+import ch.epfl.bonus.parser.Expression;
+import ch.epfl.bonus.parser.Parser;
+import ch.epfl.bonus.scanner.Scanner;
+
+/**
+ * Prints the static cost of the functions of a program as JSON, without
+ * running it. It can be used from the command line with the file containing
+ * the program and optionally the optimizations to apply, separated by commas :
+ *
+ * CostProfiler program [PEEPHOLE,INLINING,...]
+ */
+public final class CostProfiler {
+
+	private CostProfiler() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: CostProfiler program [optimizations]");
+			System.exit(2);
+		}
+		EnumSet<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+		if (args.length > 1) {
+			for (String name : args[1].split(","))
+				optimizations.add(Optimization.valueOf(name.trim()));
+		}
+		String code = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+		List<Expression> expressions = new Parser(new Scanner(code).getTokens()).parse();
+		List<CostReport> reports = new Compiler(optimizations).estimateCosts(expressions);
+		System.out.println(CostReport.toJson(reports));
+	}
+}
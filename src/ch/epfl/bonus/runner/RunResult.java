@@ -0,0 +1,43 @@
+package ch.epfl.bonus.runner;
+
+/**
+ * The outcome of the compilation and execution of one program by the batch
+ * runner
+ */
+public final class RunResult {
+
+	/**
+	 * How the execution of a program ended
+	 */
+	public enum Status {
+		// The program ran until the end of main
+		HALTED,
+		// The program was still running when the cycle limit was reached
+		CYCLE_LIMIT,
+		// The program could not be compiled or its execution failed
+		ERROR
+	}
+
+	public final String program;
+	public final Status status;
+	// The values written to the serial port, in order
+	public final String output;
+	public final long cycles;
+	// The message of the error if the status is ERROR, null otherwise
+	public final String error;
+
+	public RunResult(String program, Status status, String output, long cycles, String error) {
+		this.program = program;
+		this.status = status;
+		this.output = output;
+		this.cycles = cycles;
+		this.error = error;
+	}
+
+	@Override
+	public String toString() {
+		String details = (status == Status.ERROR ? error : output.replace('\n', ','));
+		return program + '\t' + status + '\t' + cycles + '\t' + details;
+	}
+
+}
@@ -0,0 +1,90 @@
+package ch.epfl.bonus.tools;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of bytes to which bytes can only be appended, used to
+ * build the rom produced by the compiler without boxing any of its bytes
+ */
+public final class ByteArrayBuilder {
+
+	private byte[] bytes;
+	private int size;
+
+	/**
+	 * Creates an empty builder able to hold the given number of bytes before
+	 * having to grow
+	 * 
+	 * @param initialCapacity
+	 *            the initial capacity of the builder (must be positive)
+	 * @throws IllegalArgumentException
+	 *             if the initial capacity is negative
+	 */
+	public ByteArrayBuilder(int initialCapacity) {
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException("Negative capacity : " + initialCapacity);
+		bytes = new byte[initialCapacity];
+		size = 0;
+	}
+
+	/**
+	 * Appends the 8 least significant bits of the given value
+	 * 
+	 * @param value
+	 *            the value to append
+	 */
+	public void write(int value) {
+		ensureCapacity(size + 1);
+		bytes[size++] = (byte) value;
+	}
+
+	/**
+	 * Appends the 16 least significant bits of the given value in little
+	 * endian order, as expected by the instructions of the gameboy
+	 * 
+	 * @param value
+	 *            the value to append
+	 */
+	public void write16(int value) {
+		write(value);
+		write(value >> 8);
+	}
+
+	/**
+	 * Appends zeroes until the builder contains the given number of bytes,
+	 * nothing is appended if it already contains at least as many bytes
+	 * 
+	 * @param newSize
+	 *            the number of bytes the builder must contain
+	 */
+	public void padTo(int newSize) {
+		if (newSize > size) {
+			ensureCapacity(newSize);
+			// The bytes after size are always zeroes
+			size = newSize;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes appended so far
+	 * 
+	 * @return the number of bytes appended so far
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a new array containing the bytes appended so far
+	 * 
+	 * @return a new array containing the bytes appended so far
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > bytes.length)
+			bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+	}
+}
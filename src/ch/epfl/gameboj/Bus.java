@@ -1,21 +1,66 @@
 package ch.epfl.gameboj;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
 
 import ch.epfl.gameboj.component.Component;
 
 /**
  * @author Axel Marmet (288862)
- *
+ * 
  */
 public final class Bus {
 
-    private List<Component> components = new ArrayList<Component>();
+    // The address space is split in pages of 256 bytes, indexed by the most
+    // significant byte of the address. Each page holds, in order of attachment,
+    // the components that may answer an access to one of its addresses, so
+    // that an access only has to go through the components owning its page
+    private static final int PAGE_COUNT = 0x100;
+    private static final int ADDRESS_SPACE_END = 0x10000;
+
+    private final Component[][] pages = new Component[PAGE_COUNT][];
+
+    private WriteListener writeListener = null;
+
+    /**
+     * A listener told about the writes to the bus before they happen
+     */
+    @FunctionalInterface
+    public interface WriteListener {
+
+        /**
+         * Called before the given address is written to
+         * 
+         * @param address
+         *            the address written to
+         * @param oldValue
+         *            the value read at this address before the write
+         */
+        void beforeWrite(int address, int oldValue);
+    }
 
     /**
-     * Attaches the given component to the bus
+     * Creates a new bus to which no component is attached
+     */
+    public Bus() {
+        Arrays.fill(pages, new Component[0]);
+    }
+
+    /**
+     * Sets the listener told about the writes to the bus, or removes it if
+     * the given listener is null. Without a listener, the previous value of
+     * the written addresses is not read
+     * 
+     * @param writeListener
+     *            the new listener, or null
+     */
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Attaches the given component to the bus, the component will be asked
+     * for every address since the range it responds to is unknown
      * 
      * @param component
      *            the component that will be attached (must not be null)
@@ -23,8 +68,42 @@ public final class Bus {
      *             if the given component is null
      */
     public void attach(Component component) {
-        component = Objects.requireNonNull(component);
-        components.add(component);
+        attach(component, 0, ADDRESS_SPACE_END);
+    }
+
+    /**
+     * Attaches the given component to the bus for the addresses going from
+     * startAddress (inclusive) to endAddress (exclusive), the component will
+     * only be asked for the addresses located in the pages covering this
+     * range. A component may be attached several times to map several ranges
+     * 
+     * @param component
+     *            the component that will be attached (must not be null)
+     * @param startAddress
+     *            the first address the component responds to (must fit in 16
+     *            bits)
+     * @param endAddress
+     *            the first address after startAddress the component does not
+     *            respond to anymore (must be greater than startAddress and
+     *            smaller or equal to 0x10000)
+     * @throws NullPointerException
+     *             if the given component is null
+     * @throws IllegalArgumentException
+     *             if startAddress and endAddress do not describe a non empty
+     *             range of 16 bits addresses
+     */
+    public void attach(Component component, int startAddress, int endAddress) {
+        Objects.requireNonNull(component);
+        Preconditions.checkArgument(0 <= startAddress
+                && startAddress < endAddress && endAddress <= ADDRESS_SPACE_END);
+        for (int page = startAddress >> 8; page <= (endAddress - 1) >> 8; ++page) {
+            Component[] owners = pages[page];
+            if (!Arrays.asList(owners).contains(component)) {
+                owners = Arrays.copyOf(owners, owners.length + 1);
+                owners[owners.length - 1] = component;
+                pages[page] = owners;
+            }
+        }
     }
 
     /**
@@ -40,7 +119,7 @@ public final class Bus {
      */
     public int read(int address) {
         Preconditions.checkBits16(address);
-        for (Component c : components) {
+        for (Component c : pages[address >> 8]) {
             int value = c.read(address);
             if (value != Component.NO_DATA) {
                 return value;
@@ -50,8 +129,8 @@ public final class Bus {
     }
 
     /**
-     * Tell all the components linked to the bus to write the given value at the
-     * given address
+     * Tell all the components linked to the bus at the page of the given
+     * address to write the given value at the given address
      * 
      * @param address
      *            the address (must fit in 16 bits)
@@ -64,7 +143,10 @@ public final class Bus {
     public void write(int address, int value) {
         Preconditions.checkBits16(address);
         Preconditions.checkBits8(value);
-        for (Component c : components) {
+        if (writeListener != null) {
+            writeListener.beforeWrite(address, read(address));
+        }
+        for (Component c : pages[address >> 8]) {
             c.write(address, value);
         }
     }
@@ -1,24 +1,30 @@
 package ch.epfl.gameboj;
 
+import static ch.epfl.gameboj.AddressMap.BOOT_ROM_END;
+import static ch.epfl.gameboj.AddressMap.CARTRIDGE_ROM_END;
 import static ch.epfl.gameboj.AddressMap.ECHO_RAM_END;
 import static ch.epfl.gameboj.AddressMap.ECHO_RAM_START;
 import static ch.epfl.gameboj.AddressMap.WORK_RAM_END;
 import static ch.epfl.gameboj.AddressMap.WORK_RAM_SIZE;
 import static ch.epfl.gameboj.AddressMap.WORK_RAM_START;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
+import ch.epfl.gameboj.component.Joypad;
 import ch.epfl.gameboj.component.SerialPortPrintComponent;
 import ch.epfl.gameboj.component.Timer;
 import ch.epfl.gameboj.component.cartridge.Cartridge;
 import ch.epfl.gameboj.component.cpu.Cpu;
+import ch.epfl.gameboj.component.cpu.Cpu.Interrupt;
 import ch.epfl.gameboj.component.memory.BootRomController;
 import ch.epfl.gameboj.component.memory.Ram;
 import ch.epfl.gameboj.component.memory.RamController;
 
 /**
  * @author Axel Marmet (288862)
- *
+ * 
  */
 public final class GameBoy {
 
@@ -26,11 +32,20 @@ public final class GameBoy {
 	private final Cpu cpu;
 	private final Timer timer;
 	private final SerialPortPrintComponent printer;
+	private final Joypad joypad;
+	private final Ram workRam;
+	private final BootRomController bootRomController;
 
 	public static final long cyclesPerSecond = 1 << 20;
 	public static final double cyclesPerNanoSecond = (double) cyclesPerSecond * 1e-9;
 
+	/**
+	 * The version of the format of the states, written at their start
+	 */
+	public static final int STATE_VERSION = 2;
+
 	private long cycles = 0;
+	private UndoLog undoLog = null;
 
 	/**
 	 * Create a new GameBoy having for cartridge the one given in the parameter
@@ -42,16 +57,33 @@ public final class GameBoy {
 	 */
 	// Disabled graphics
 	public GameBoy(Cartridge cartridge) {
-		Objects.requireNonNull(cartridge);
+		this(new Cpu(), Objects.requireNonNull(cartridge));
+	}
+
+	private GameBoy(Cpu cpu, Cartridge cartridge) {
+		this(cpu, new Timer(cpu), new Ram(WORK_RAM_SIZE), new BootRomController(cartridge),
+				new SerialPortPrintComponent(), new Joypad(cpu));
+
+		// The code of a cartridge without bank switching located after the
+		// boot rom never changes, so it only has to be decoded once
+		if (cartridge.hasImmutableRom()) {
+			cpu.setImmutableCodeRange(BOOT_ROM_END, CARTRIDGE_ROM_END);
+		}
+	}
+
+	// Attaches the given components to a new bus
+	private GameBoy(Cpu cpu, Timer timer, Ram workRam, BootRomController bootRomController,
+			SerialPortPrintComponent printer, Joypad joypad) {
 		bus = new Bus();
-		cpu = new Cpu();
-		timer = new Timer(cpu);
-		printer = new SerialPortPrintComponent();
+		this.cpu = cpu;
+		this.timer = timer;
+		this.workRam = workRam;
+		this.bootRomController = bootRomController;
+		this.printer = printer;
+		this.joypad = joypad;
 
-		Ram workRam = new Ram(WORK_RAM_SIZE);
 		RamController workRamController = new RamController(workRam, WORK_RAM_START, WORK_RAM_END);
 		RamController echoRamController = new RamController(workRam, ECHO_RAM_START, ECHO_RAM_END);
-		BootRomController bootRomController = new BootRomController(cartridge);
 
 		workRamController.attachTo(bus);
 		echoRamController.attachTo(bus);
@@ -59,6 +91,26 @@ public final class GameBoy {
 		printer.attachTo(bus);
 		cpu.attachTo(bus);
 		timer.attachTo(bus);
+		joypad.attachTo(bus);
+	}
+
+	/**
+	 * Returns a new GameBoy in the same state as this one, whose simulation
+	 * then continues independently. The work ram, the high ram and the ram of
+	 * the cartridge are copied on write : the copy shares the pages of memory
+	 * of this GameBoy until one of them writes to a page, so that forking costs
+	 * almost nothing and each fork only keeps the pages it modified. The forks
+	 * can be run by different threads, but this GameBoy must not be running
+	 * while it is forked. The instructions kept to be undone are not copied
+	 * 
+	 * @return a copy of this GameBoy
+	 */
+	public GameBoy fork() {
+		Cpu cpuCopy = cpu.fork();
+		GameBoy copy = new GameBoy(cpuCopy, timer.fork(cpuCopy), workRam.fork(), bootRomController.fork(),
+				printer.fork(), joypad.fork(cpuCopy));
+		copy.cycles = cycles;
+		return copy;
 	}
 
 	/**
@@ -78,25 +130,185 @@ public final class GameBoy {
 			throw new IllegalArgumentException(
 					"The limit cycle is smaller than the amount of cycles already simulated");
 		}
-		while (cycles < limitCycle) {
-			timer.cycle(cycles);
-			cpu.cycle(cycles);
-			cycles++;
+		// Only the cycles at which a component has something to do are
+		// simulated, the others are skipped since cycling the components at
+		// those cycles would have no effect
+		long nextCycle = nextEventCycle();
+		while (nextCycle < limitCycle) {
+			runCycle(nextCycle, limitCycle);
+			nextCycle = nextEventCycle();
+		}
+		if (cycles < limitCycle) {
+			timer.cycle(limitCycle - 1);
+			cycles = limitCycle;
 		}
 	}
 
 	// Added for compiler
 	public void runUntilCpuHalted() {
-		while (!cpu.isHalted()) {
-			timer.cycle(cycles);
-			cpu.cycle(cycles);
-			cycles++;
+		runUntilCpuHalted(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Simulates the behaviour of the GameBoy until its cpu is halted or until
+	 * the given limitCycle - 1 if the cpu is still running at that point
+	 * 
+	 * @param limitCycle
+	 *            the number of simulated cycles after which the simulation stops
+	 *            even if the cpu is not halted (must not be smaller than the
+	 *            number of cycles already simulated if the cpu is not halted)
+	 * @throws IllegalArgumentException
+	 *             if the cpu is not halted and the limit cycle is smaller than
+	 *             the amount of cycles already simulated
+	 */
+	// Added for compiler
+	public void runUntilCpuHalted(long limitCycle) {
+		long nextCycle = nextEventCycle();
+		while (!cpu.isHalted() && nextCycle < limitCycle) {
+			runCycle(nextCycle, limitCycle);
+			nextCycle = nextEventCycle();
+		}
+		if (!cpu.isHalted()) {
+			runUntil(limitCycle);
 		}
 	}
 
 	// Added for compiler
 	public void runOneCpuInstruction() {
-		runUntil(cpu.getNextNonIdleCycle() + 1);
+		// A halted cpu executes its next instruction at the cycle at which it
+		// is woken up, if it ever is
+		long cycle = cpu.isHalted() ? nextEventCycle() : cpu.getNextNonIdleCycle();
+		if (cycle != Long.MAX_VALUE) {
+			runUntil(cycle + 1);
+		}
+	}
+
+	/**
+	 * Sets the number of instructions executed by the cpu which are kept so
+	 * that they can be undone by stepBack, the instructions executed so far
+	 * being forgotten. Keeping them costs a few dozens of bytes per
+	 * instruction, the instructions are not kept by default
+	 * 
+	 * @param instructions
+	 *            the number of instructions to keep, or 0 to keep none (must
+	 *            not be negative)
+	 * @throws IllegalArgumentException
+	 *             if instructions is negative
+	 */
+	public void setUndoWindow(int instructions) {
+		Preconditions.checkArgument(instructions >= 0);
+		undoLog = instructions == 0 ? null : new UndoLog(instructions, bus, cpu, timer, joypad, printer);
+		bus.setWriteListener(undoLog);
+	}
+
+	/**
+	 * Brings the GameBoy back to the state it had before the cpu executed its
+	 * last kept instruction, see setUndoWindow. The writes to the cartridge
+	 * and to the register disabling the boot rom cannot be undone, the
+	 * instructions executed before them are thus forgotten
+	 * 
+	 * @return true if an instruction was undone, false if there was none left
+	 *         to undo
+	 */
+	public boolean stepBack() {
+		if (undoLog == null || undoLog.isEmpty()) {
+			return false;
+		}
+		cycles = undoLog.undo();
+		return true;
+	}
+
+	/**
+	 * Returns the state of the GameBoy : its number of cycles, the registers of
+	 * the cpu, the counters of the timer, the work ram, the high ram, the state
+	 * of the cartridge, the keys of the joypad and the output printed so far.
+	 * The GameBoy can later be brought back to this state with restoreState, as
+	 * can any other GameBoy having the same kind of cartridge
+	 * 
+	 * @return a read-only buffer containing the state, prefixed by its version
+	 */
+	public ByteBuffer saveState() {
+		ByteBuffer state = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + cpu.stateSize() + timer.stateSize()
+				+ workRam.stateSize() + bootRomController.stateSize() + printer.stateSize() + joypad.stateSize());
+		state.putInt(STATE_VERSION);
+		state.putLong(cycles);
+		cpu.saveState(state);
+		timer.saveState(state);
+		workRam.saveState(state);
+		bootRomController.saveState(state);
+		printer.saveState(state);
+		joypad.saveState(state);
+		state.flip();
+		return state.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Replaces the state of the GameBoy by the one contained in the remaining
+	 * bytes of the given buffer, as returned by saveState. The position of the
+	 * buffer is left unchanged. The rom of the cartridge is not part of the
+	 * state, the simulation continues with the one of this GameBoy. The
+	 * instructions kept to be undone are forgotten
+	 * 
+	 * @param state
+	 *            the buffer containing the state (must not be null)
+	 * @throws NullPointerException
+	 *             if state is null
+	 * @throws IllegalArgumentException
+	 *             if the buffer does not contain a state of this version fitting
+	 *             this GameBoy
+	 */
+	public void restoreState(ByteBuffer state) {
+		ByteBuffer buffer = state.duplicate();
+		try {
+			Preconditions.checkArgument(buffer.getInt() == STATE_VERSION);
+			cycles = buffer.getLong();
+			cpu.restoreState(buffer);
+			timer.restoreState(buffer);
+			workRam.restoreState(buffer);
+			bootRomController.restoreState(buffer);
+			printer.restoreState(buffer);
+			joypad.restoreState(buffer);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated state", e);
+		}
+		Preconditions.checkArgument(!buffer.hasRemaining());
+		if (undoLog != null) {
+			undoLog.clear();
+		}
+	}
+
+	// A halted cpu only wakes up at the cycle at which the timer requests an
+	// enabled interrupt, which is the cycle at which its counter overflows. If
+	// the timer interrupt is disabled the timer has nothing to do until the cpu
+	// wakes up, the cycles skipped being simulated by the next call to cycle
+	private long nextEventCycle() {
+		long cpuCycle = cpu.nextEventCycle(cycles);
+		if (cpu.isHalted() && !cpu.isInterruptEnabled(Interrupt.TIMER)) {
+			return cpuCycle;
+		}
+		return Math.min(timer.nextEventCycle(cycles), cpuCycle);
+	}
+
+	// The cycles skipped before the given one had nothing to simulate, so the
+	// components see it as the current cycle while they are cycled. The cpu
+	// may execute the following instructions of its block until the timer or
+	// the caller, at limitCycle, next does something, except when they have to
+	// be undone one by one
+	private void runCycle(long cycle, long limitCycle) {
+		cycles = cycle;
+		// The cpu executes an instruction at this cycle if it is running and
+		// has finished the previous one, or if it is halted since it is only
+		// cycled when it is woken up
+		if (undoLog != null && (cpu.isHalted() || cpu.nextEventCycle(cycle) == cycle)) {
+			undoLog.record(cycle);
+		}
+		timer.cycle(cycle);
+		if (undoLog == null) {
+			cpu.cycleUntil(cycle, Math.min(limitCycle, timer.nextEventCycle(cycle + 1)));
+		} else {
+			cpu.cycle(cycle);
+		}
+		cycles = cycle + 1;
 	}
 
 	/**
@@ -126,6 +338,15 @@ public final class GameBoy {
 		return cpu;
 	}
 
+	/**
+	 * Returns the joypad associated to the GameBoy
+	 * 
+	 * @return the joypad associated to the GameBoy
+	 */
+	public Joypad joypad() {
+		return joypad;
+	}
+
 	// Added for compiler
 	public SerialPortPrintComponent serialPortPrintComponent() {
 		return printer;
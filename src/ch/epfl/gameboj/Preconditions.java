@@ -6,6 +6,16 @@ package ch.epfl.gameboj;
  */
 public interface Preconditions {
 
+    /**
+     * True if the emulator runs in trusted mode, which is enabled by setting
+     * the system property gameboj.trusted to true. In this mode the bus is the
+     * only place where addresses and values are checked, the components
+     * behind it trust what they receive and skip the checks made through
+     * checkInternalBits8 and checkInternalBits16. Being a constant, it lets
+     * the JIT remove those checks entirely
+     */
+    boolean TRUSTED = Boolean.getBoolean("gameboj.trusted");
+
     /**
      * Throws an IllegalArgumentException if the param b is false
      * 
@@ -50,6 +60,36 @@ public interface Preconditions {
         return value;
     }
 
+    /**
+     * Checks that the value given is contained in 8 bits unless the emulator
+     * runs in trusted mode, and returns it
+     * 
+     * @param value
+     *            the value that will be evaluated (must fit in 8 bits)
+     * @throws IllegalArgumentException
+     *             if the given value does not fit in 8 bits and the emulator
+     *             does not run in trusted mode
+     * @return the value passed in the parameters
+     */
+    static public int checkInternalBits8(int value) {
+        return TRUSTED ? value : checkBits8(value);
+    }
+
+    /**
+     * Checks that the value given is contained in 16 bits unless the emulator
+     * runs in trusted mode, and returns it
+     * 
+     * @param value
+     *            the value that will be evaluated (must fit in 16 bits)
+     * @throws IllegalArgumentException
+     *             if the given value does not fit in 16 bits and the emulator
+     *             does not run in trusted mode
+     * @return the value passed in the parameters
+     */
+    static public int checkInternalBits16(int value) {
+        return TRUSTED ? value : checkBits16(value);
+    }
+
     /**
      * Checks that the given value is strictly positive and can be divided by 32
      * 
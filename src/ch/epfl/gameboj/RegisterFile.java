@@ -50,10 +50,12 @@ public final class RegisterFile<E extends Register> {
      * @throws NullPointerException
      *             if register is null
      * @throws IllegalArgumentException
-     *             if newValue does not fit in 8 bits
+     *             if newValue does not fit in 8 bits, which is not checked
+     *             when the system property gameboj.trusted is set, see
+     *             Preconditions.TRUSTED
      */
     public void set(E register, int newValue) {
-        Preconditions.checkBits8(newValue);
+        Preconditions.checkInternalBits8(newValue);
         data[register.index()] = (byte) newValue;
     }
 
@@ -0,0 +1,159 @@
+package ch.epfl.gameboj;
+
+import static ch.epfl.gameboj.AddressMap.CARTRIDGE_ROM_END;
+import static ch.epfl.gameboj.AddressMap.HIGH_RAM_START;
+import static ch.epfl.gameboj.AddressMap.REGS_START;
+import static ch.epfl.gameboj.AddressMap.REG_BOOT_ROM_DISABLE;
+import static ch.epfl.gameboj.AddressMap.REG_IE;
+
+import java.nio.ByteBuffer;
+
+import ch.epfl.gameboj.component.Joypad;
+import ch.epfl.gameboj.component.SerialPortPrintComponent;
+import ch.epfl.gameboj.component.Timer;
+import ch.epfl.gameboj.component.cpu.Cpu;
+
+/**
+ * The last instructions executed by the cpu of a GameBoy, kept so that they
+ * can be undone one by one, the most recent first. Before each instruction the
+ * registers of the cpu, the counters of the timer, the keys of the joypad and
+ * the length of the output printed so far are recorded, then the bus reports
+ * the previous value of each byte written by the instruction. The records are
+ * stored in a ring of fixed capacity, the oldest one being overwritten by each
+ * new one.
+ *
+ * The writes to the cartridge and to the register disabling the boot rom
+ * change a state which is not recorded, the instructions performing them
+ * thus clear the log and cannot be undone
+ */
+final class UndoLog implements Bus.WriteListener {
+
+	// An instruction writes at most two bytes, when it pushes a value or
+	// stores SP
+	private static final int MAX_WRITES = 2;
+
+	private final Bus bus;
+	private final Cpu cpu;
+	private final Timer timer;
+	private final Joypad joypad;
+	private final SerialPortPrintComponent printer;
+
+	private final int capacity;
+	private final int stateSize;
+	private final ByteBuffer states;
+	private final long[] cycles;
+	private final int[] outputLengths;
+	// The address written to, shifted by 8 bits, and the previous value
+	private final int[] writes;
+	private final int[] writeCounts;
+
+	// The index of the most recent record and the number of records
+	private int newest = 0;
+	private int size = 0;
+	// False while nothing is being recorded, the writes being then ignored
+	private boolean isRecording = false;
+
+	UndoLog(int capacity, Bus bus, Cpu cpu, Timer timer, Joypad joypad, SerialPortPrintComponent printer) {
+		Preconditions.checkArgument(capacity > 0);
+		this.capacity = capacity;
+		this.bus = bus;
+		this.cpu = cpu;
+		this.timer = timer;
+		this.joypad = joypad;
+		this.printer = printer;
+		stateSize = cpu.registersStateSize() + timer.stateSize() + joypad.stateSize();
+		states = ByteBuffer.allocate(capacity * stateSize);
+		cycles = new long[capacity];
+		outputLengths = new int[capacity];
+		writes = new int[capacity * MAX_WRITES];
+		writeCounts = new int[capacity];
+	}
+
+	/**
+	 * Records the state of the GameBoy before the cpu executes an instruction
+	 * at the given cycle, the following writes being part of this instruction
+	 *
+	 * @param cycle
+	 *            the cycle at which the instruction is executed
+	 */
+	void record(long cycle) {
+		newest = (newest + 1) % capacity;
+		size = Math.min(size + 1, capacity);
+		cycles[newest] = cycle;
+		states.position(newest * stateSize);
+		cpu.saveRegisters(states);
+		timer.saveState(states);
+		joypad.saveState(states);
+		outputLengths[newest] = printer.outputLength();
+		writeCounts[newest] = 0;
+		isRecording = true;
+	}
+
+	@Override
+	public void beforeWrite(int address, int oldValue) {
+		if (!isRecording) {
+			return;
+		}
+		if (address < CARTRIDGE_ROM_END || address == REG_BOOT_ROM_DISABLE) {
+			clear();
+			return;
+		}
+		int count = writeCounts[newest];
+		if (count == MAX_WRITES) {
+			throw new IllegalStateException("An instruction wrote more than " + MAX_WRITES + " bytes");
+		}
+		writes[newest * MAX_WRITES + count] = (address << 8) | oldValue;
+		writeCounts[newest] = count + 1;
+	}
+
+	/**
+	 * Returns true if there is no instruction left to undo
+	 *
+	 * @return true if the log is empty
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Forgets all the recorded instructions
+	 */
+	void clear() {
+		size = 0;
+		isRecording = false;
+	}
+
+	/**
+	 * Brings the GameBoy back to the state it had before the most recent
+	 * recorded instruction, which is removed from the log
+	 *
+	 * @return the cycle at which the undone instruction was executed
+	 * @throws IllegalStateException
+	 *             if the log is empty
+	 */
+	long undo() {
+		if (size == 0) {
+			throw new IllegalStateException("No instruction to undo");
+		}
+		isRecording = false;
+		// The registers are restored with the state of their component rather
+		// than by writing them, which may have side effects such as printing
+		for (int i = writeCounts[newest] - 1; i >= 0; --i) {
+			int write = writes[newest * MAX_WRITES + i];
+			int address = write >>> 8;
+			if (address < REGS_START || (address >= HIGH_RAM_START && address != REG_IE)) {
+				bus.write(address, write & 0xFF);
+			}
+		}
+		states.position(newest * stateSize);
+		cpu.restoreRegisters(states);
+		timer.restoreState(states);
+		joypad.restoreState(states);
+		printer.truncateOutput(outputLengths[newest]);
+
+		long cycle = cycles[newest];
+		newest = (newest + capacity - 1) % capacity;
+		--size;
+		return cycle;
+	}
+}
@@ -14,4 +14,20 @@ public interface Clocked {
      */
     public void cycle(long cycle);
 
+    /**
+     * Returns the first cycle, greater or equal to the given one, at which the
+     * component has something to do. A component that does not need to be
+     * cycled at every cycle overrides this method and simulates itself the
+     * cycles that were skipped when cycle is called. By default a component
+     * must be cycled at every cycle
+     * 
+     * @param cycle
+     *            the current cycle
+     * @return the first cycle, greater or equal to the given one, at which the
+     *         component must be cycled or Long.MAX_VALUE if there is none
+     */
+    public default long nextEventCycle(long cycle) {
+        return cycle;
+    }
+
 }
@@ -21,7 +21,9 @@ public interface Component {
      * @param address
      *            the address (must fit in 16 bits)
      * @throws IllegalArgumentException
-     *             if the address doesn't fit in 16 bits
+     *             if the address doesn't fit in 16 bits, the components
+     *             skipping this check when the system property
+     *             gameboj.trusted is set, see Preconditions.TRUSTED
      * @return the byte stored at the address given or NO_DATA if the component
      *         doesn't have a value located at this address
      */
@@ -37,7 +39,9 @@ public interface Component {
      *            the value (must fit in 8 bits)
      * @throws IllegalArgumentException
      *             if the address doesn't fit in 16 bits or if the value doesn't
-     *             fit in 8 bits
+     *             fit in 8 bits, the components skipping this check when the
+     *             system property gameboj.trusted is set, see
+     *             Preconditions.TRUSTED
      */
     void write(int address, int value);
 
@@ -1,11 +1,14 @@
 package ch.epfl.gameboj.component;
 
+import java.nio.ByteBuffer;
+
 import ch.epfl.gameboj.AddressMap;
+import ch.epfl.gameboj.Bus;
 import ch.epfl.gameboj.Preconditions;
 import ch.epfl.gameboj.bits.Bits;
 import ch.epfl.gameboj.component.cpu.Cpu;
 
-public class Joypad implements Component {
+public class Joypad implements Component, Stateful {
 
     public enum Key {
 
@@ -33,6 +36,40 @@ public class Joypad implements Component {
         this.cpu = cpu;
     }
 
+    /**
+     * Returns a copy of this joypad with the same keys pressed, attached to
+     * the given cpu
+     * 
+     * @param cpu
+     *            the cpu of the copy
+     * @return a copy of this joypad
+     */
+    public Joypad fork(Cpu cpu) {
+        Joypad copy = new Joypad(cpu);
+        copy.pressedKeys = pressedKeys.clone();
+        copy.regP1 = regP1;
+        return copy;
+    }
+
+    @Override
+    public int stateSize() {
+        return 3;
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        buffer.put((byte) pressedKeys[0]);
+        buffer.put((byte) pressedKeys[1]);
+        buffer.put((byte) regP1);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer buffer) {
+        pressedKeys[0] = Byte.toUnsignedInt(buffer.get());
+        pressedKeys[1] = Byte.toUnsignedInt(buffer.get());
+        regP1 = Byte.toUnsignedInt(buffer.get());
+    }
+
     @Override
     public int read(int address) {
         Preconditions.checkBits16(address);
@@ -55,6 +92,11 @@ public class Joypad implements Component {
         }
     }
 
+    @Override
+    public void attachTo(Bus bus) {
+        bus.attach(this, AddressMap.REG_P1, AddressMap.REG_P1 + 1);
+    }
+
     public void keyPressed(Key k) {
         int oldColumns = getColumnState();
         setBitTo(k, true);
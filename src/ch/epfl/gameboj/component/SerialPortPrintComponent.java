@@ -1,12 +1,78 @@
 package ch.epfl.gameboj.component;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntConsumer;
+
 import ch.epfl.gameboj.AddressMap;
-import javafx.beans.property.ObjectProperty;
-import javafx.beans.property.SimpleObjectProperty;
+import ch.epfl.gameboj.Bus;
+import ch.epfl.gameboj.Preconditions;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectPropertyBase;
+
+public final class SerialPortPrintComponent implements Component, Stateful {
+
+	// The values printed so far, each one followed by a new line
+	private final StringBuilder console = new StringBuilder();
+	private final ConsoleProperty property = new ConsoleProperty();
+
+	/**
+	 * The values printed so far, each one followed by a new line. The string
+	 * is only built from them when the property is read, so that printing a
+	 * value takes a constant time whatever the length of the output
+	 */
+	public final ReadOnlyObjectProperty<String> consoleProperty = property;
 
-public final class SerialPortPrintComponent implements Component {
+	private IntConsumer writeListener = null;
 
-	public ObjectProperty<String> consoleProperty = new SimpleObjectProperty<>("");
+	/**
+	 * Sets the listener receiving every value written to the serial port, or
+	 * removes it if the given listener is null
+	 *
+	 * @param writeListener
+	 *            the listener, or null
+	 */
+	public void setWriteListener(IntConsumer writeListener) {
+		this.writeListener = writeListener;
+	}
+
+	/**
+	 * Returns a new component which has already printed the same output
+	 *
+	 * @return a copy of this component
+	 */
+	public SerialPortPrintComponent fork() {
+		SerialPortPrintComponent copy = new SerialPortPrintComponent();
+		copy.console.append(console);
+		return copy;
+	}
+
+	/**
+	 * Returns the number of characters printed so far
+	 *
+	 * @return the length of the output
+	 */
+	public int outputLength() {
+		return console.length();
+	}
+
+	/**
+	 * Forgets the characters printed after the given number of characters,
+	 * as if they had never been printed
+	 *
+	 * @param length
+	 *            the number of characters kept (must be between 0 and
+	 *            outputLength)
+	 * @throws IllegalArgumentException
+	 *             if length is negative or greater than outputLength
+	 */
+	public void truncateOutput(int length) {
+		Preconditions.checkArgument(length >= 0 && length <= console.length());
+		if (length < console.length()) {
+			console.setLength(length);
+			property.invalidate();
+		}
+	}
 
 	@Override
 	public int read(int address) {
@@ -15,7 +81,69 @@ public final class SerialPortPrintComponent implements Component {
 
 	@Override
 	public void write(int address, int data) {
-		if (address == AddressMap.SERIAL_PORT)
-			consoleProperty.setValue(consoleProperty.getValue() + data + '\n');
+		if (address == AddressMap.SERIAL_PORT) {
+			console.append(data).append('\n');
+			property.invalidate();
+			if (writeListener != null)
+				writeListener.accept(data);
+		}
+	}
+
+	// The output printed so far is part of the state, so that a restored run
+	// prints the same output as the original one
+	@Override
+	public int stateSize() {
+		return Integer.BYTES + console.toString().getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	@Override
+	public void saveState(ByteBuffer buffer) {
+		byte[] bytes = console.toString().getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	@Override
+	public void restoreState(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		console.setLength(0);
+		console.append(new String(bytes, StandardCharsets.UTF_8));
+		property.invalidate();
+	}
+
+	@Override
+	public void attachTo(Bus bus) {
+		bus.attach(this, AddressMap.SERIAL_PORT, AddressMap.SERIAL_PORT + 1);
+	}
+
+	// The value is cached until the next change of the output. The bindings
+	// only listen to the invalidation of the property, they thus read it at
+	// most once per change
+	private final class ConsoleProperty extends ReadOnlyObjectPropertyBase<String> {
+		private String value = "";
+
+		@Override
+		public String get() {
+			if (value == null) {
+				value = console.toString();
+			}
+			return value;
+		}
+
+		private void invalidate() {
+			value = null;
+			fireValueChangedEvent();
+		}
+
+		@Override
+		public Object getBean() {
+			return SerialPortPrintComponent.this;
+		}
+
+		@Override
+		public String getName() {
+			return "console";
+		}
 	}
-}
\ No newline at end of file
+}
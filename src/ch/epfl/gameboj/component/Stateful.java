@@ -0,0 +1,43 @@
+package ch.epfl.gameboj.component;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A part of the GameBoy whose state can be saved in a buffer and restored
+ * later, to resume the simulation from the point where it was saved
+ */
+public interface Stateful {
+
+    /**
+     * Returns the number of bytes written by saveState
+     *
+     * @return the size in bytes of the state
+     */
+    int stateSize();
+
+    /**
+     * Writes the state at the current position of the given buffer and
+     * advances it by stateSize bytes
+     *
+     * @param buffer
+     *            the buffer to write to (must have at least stateSize bytes
+     *            remaining)
+     * @throws java.nio.BufferOverflowException
+     *             if there is not enough space left in the buffer
+     */
+    void saveState(ByteBuffer buffer);
+
+    /**
+     * Replaces the state by the one written by saveState at the current
+     * position of the given buffer and advances it past the state
+     *
+     * @param buffer
+     *            the buffer to read from
+     * @throws java.nio.BufferUnderflowException
+     *             if the buffer does not contain a whole state
+     * @throws IllegalArgumentException
+     *             if the state does not fit this part, for example a memory of
+     *             another size
+     */
+    void restoreState(ByteBuffer buffer);
+}
@@ -1,8 +1,10 @@
 package ch.epfl.gameboj.component;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 import ch.epfl.gameboj.AddressMap;
+import ch.epfl.gameboj.Bus;
 import ch.epfl.gameboj.Preconditions;
 import ch.epfl.gameboj.bits.Bits;
 import ch.epfl.gameboj.component.cpu.Cpu;
@@ -12,15 +14,18 @@ import ch.epfl.gameboj.component.cpu.Cpu.Interrupt;
  * @author Axel Marmet (288862)
  *
  */
-public final class Timer implements Clocked, Component {
+public final class Timer implements Clocked, Component, Stateful {
 
     private final static int MAX_SECOND_COUNTER_VALUE = 0xFF;
+    private final static int NO_BIT = -1;
 
     private final Cpu cpu;
     private int mainCounter = 0;
     private int secondCounter = 0;
     private int secondCounterResetValue = 0;
     private int secondCounterConfig = 0;
+    // The first cycle that has not been simulated yet
+    private long nextCycle = 0;
 
     /**
      * Creates a new Timer with the given cpu attached
@@ -34,9 +39,28 @@ public final class Timer implements Clocked, Component {
         this.cpu = Objects.requireNonNull(cpu);
     }
 
+    /**
+     * Returns a copy of this timer in the same state, attached to the given cpu
+     * 
+     * @param cpu
+     *            the cpu of the copy (must not be null)
+     * @return a copy of this timer
+     * @throws NullPointerException
+     *             if cpu is null
+     */
+    public Timer fork(Cpu cpu) {
+        Timer copy = new Timer(cpu);
+        copy.mainCounter = mainCounter;
+        copy.secondCounter = secondCounter;
+        copy.secondCounterResetValue = secondCounterResetValue;
+        copy.secondCounterConfig = secondCounterConfig;
+        copy.nextCycle = nextCycle;
+        return copy;
+    }
+
     @Override
     public int read(int address) {
-        Preconditions.checkBits16(address);
+        Preconditions.checkInternalBits16(address);
         switch (address) {
         case AddressMap.REG_DIV:
             return Bits.extract(mainCounter, 8, 8);
@@ -53,8 +77,8 @@ public final class Timer implements Clocked, Component {
 
     @Override
     public void write(int address, int data) {
-        Preconditions.checkBits16(address);
-        Preconditions.checkBits8(data);
+        Preconditions.checkInternalBits16(address);
+        Preconditions.checkInternalBits8(data);
         boolean state;
         switch (address) {
         case AddressMap.REG_DIV:
@@ -76,50 +100,128 @@ public final class Timer implements Clocked, Component {
         }
     }
 
+    @Override
+    public void attachTo(Bus bus) {
+        bus.attach(this, AddressMap.REG_DIV, AddressMap.REG_TAC + 1);
+    }
+
+    /**
+     * Simulates all the cycles up to the given one (inclusive) that have not
+     * been simulated yet, so the timer does not need to be cycled at every
+     * cycle but only when its state is needed or at its next event cycle
+     * 
+     * @param cycle
+     *            the last cycle to simulate
+     */
     @Override
     public void cycle(long cycle) {
-        boolean state = currentState();
-        mainCounter = Bits.clip(16, mainCounter + 4);
-        handleNewState(state);
+        if (cycle < nextCycle) {
+            return;
+        }
+        long steps = cycle - nextCycle + 1;
+        long counter = mainCounter + 4 * steps;
+        int bit = selectedBit();
+        if (bit != NO_BIT) {
+            // The selected bit goes from 1 to 0 each time the counter goes
+            // past a multiple of 2^(bit + 1)
+            incrementSecondCounter(
+                    (counter >> (bit + 1)) - (mainCounter >> (bit + 1)));
+        }
+        mainCounter = (int) (counter & 0xFFFF);
+        nextCycle = cycle + 1;
+    }
+
+    /**
+     * Returns the cycle at which the second counter will overflow, and thus
+     * request a timer interrupt, or Long.MAX_VALUE if the timer is disabled
+     * 
+     * @param cycle
+     *            the current cycle
+     * @return the cycle at which the second counter will overflow or
+     *         Long.MAX_VALUE if the timer is disabled
+     */
+    @Override
+    public long nextEventCycle(long cycle) {
+        int bit = selectedBit();
+        if (bit == NO_BIT) {
+            return Long.MAX_VALUE;
+        }
+        int edgesBeforeOverflow = MAX_SECOND_COUNTER_VALUE + 1 - secondCounter;
+        long overflowCounter = ((mainCounter >> (bit + 1))
+                + edgesBeforeOverflow) << (bit + 1);
+        long steps = (overflowCounter - mainCounter + 3) / 4;
+        return Math.max(cycle, nextCycle + steps - 1);
+    }
+
+    @Override
+    public int stateSize() {
+        return 2 + 3 + Long.BYTES;
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        buffer.putShort((short) mainCounter);
+        buffer.put((byte) secondCounter);
+        buffer.put((byte) secondCounterResetValue);
+        buffer.put((byte) secondCounterConfig);
+        buffer.putLong(nextCycle);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer buffer) {
+        mainCounter = Short.toUnsignedInt(buffer.getShort());
+        secondCounter = Byte.toUnsignedInt(buffer.get());
+        secondCounterResetValue = Byte.toUnsignedInt(buffer.get());
+        secondCounterConfig = Byte.toUnsignedInt(buffer.get());
+        nextCycle = buffer.getLong();
     }
 
     private boolean currentState() {
-        int bitToCheck;
+        int bit = selectedBit();
+        return bit != NO_BIT && Bits.test(mainCounter, bit);
+    }
+
+    // Returns the index of the bit of the main counter that drives the second
+    // counter or NO_BIT if the second counter is disabled
+    private int selectedBit() {
         if (!Bits.test(secondCounterConfig, 2)) {
-            return false;
+            return NO_BIT;
         }
         switch (Bits.clip(2, secondCounterConfig)) {
         case 0b00:
-            bitToCheck = 9;
-            break;
+            return 9;
         case 0b01:
-            bitToCheck = 3;
-            break;
+            return 3;
         case 0b10:
-            bitToCheck = 5;
-            break;
+            return 5;
         case 0b11:
-            bitToCheck = 7;
-            break;
+            return 7;
         default:
             throw new IllegalArgumentException(
                     "Something went horribly wrong because clip did not work correctly");
         }
-        return Bits.test(mainCounter, bitToCheck);
-
     }
 
-    // Increment the second counter if the state changed from true to false and
-    // request an interrupt if the secondTimer is at its max value and
-    // incremented
+    // Increment the second counter if the state changed from true to false
     private void handleNewState(boolean oldState) {
         if (oldState && !currentState()) {
-            if (secondCounter == MAX_SECOND_COUNTER_VALUE) {
-                cpu.requestInterrupt(Interrupt.TIMER);
-                secondCounter = secondCounterResetValue;
-            } else {
-                secondCounter++;
-            }
+            incrementSecondCounter(1);
+        }
+    }
+
+    // Increment the second counter by the given amount, each time it is
+    // incremented while at its max value it is reset and an interrupt is
+    // requested
+    private void incrementSecondCounter(long amount) {
+        if (secondCounter + amount <= MAX_SECOND_COUNTER_VALUE) {
+            secondCounter += amount;
+        } else {
+            cpu.requestInterrupt(Interrupt.TIMER);
+            long leftAfterFirstOverflow = amount
+                    - (MAX_SECOND_COUNTER_VALUE + 1 - secondCounter);
+            int period = MAX_SECOND_COUNTER_VALUE + 1 - secondCounterResetValue;
+            secondCounter = secondCounterResetValue
+                    + (int) (leftAfterFirstOverflow % period);
         }
     }
 
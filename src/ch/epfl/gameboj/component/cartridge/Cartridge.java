@@ -6,16 +6,18 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import ch.epfl.gameboj.Preconditions;
 import ch.epfl.gameboj.component.Component;
+import ch.epfl.gameboj.component.Stateful;
 import ch.epfl.gameboj.component.memory.Rom;
 
 /**
  * @author Axel Marmet (288862)
- *
+ * 
  */
-public final class Cartridge implements Component {
+public final class Cartridge implements Component, Stateful {
 
     private static final int ADDRESS_OF_CARTRIDGE_TYPE = 0x147;
     private static final int ADDRESS_OF_RAM_SIZE = 0x149;
@@ -48,6 +50,23 @@ public final class Cartridge implements Component {
         } catch (FileNotFoundException e) {
             throw new IOException("File not found");
         }
+        return ofBytes(bytes);
+    }
+
+    /**
+     * Returns a Cartridge having for rom a rom containing a copy of the given
+     * bytes
+     * 
+     * @param bytes
+     *            the bytes that will be used in the rom (must not be null)
+     * @return a Cartridge having for rom a rom containing the given bytes
+     * @throws NullPointerException
+     *             if the given array is null
+     * @throws IllegalArgumentException
+     *             if the bytes do not describe a valid cartridge
+     */
+    public static Cartridge ofBytes(byte[] bytes) {
+        Preconditions.checkArgument(bytes.length > ADDRESS_OF_RAM_SIZE);
         Preconditions.checkArgument(bytes[ADDRESS_OF_CARTRIDGE_TYPE] < 4
                 && bytes[ADDRESS_OF_CARTRIDGE_TYPE] >= 0);
 
@@ -63,16 +82,82 @@ public final class Cartridge implements Component {
         return new Cartridge(memoryBankController);
     }
 
+    /**
+     * Returns a Cartridge having for rom a rom containing the bytes remaining
+     * in the given buffer, the position of the buffer is left unchanged
+     * 
+     * @param buffer
+     *            the buffer containing the bytes that will be used in the rom
+     *            (must not be null)
+     * @return a Cartridge having for rom a rom containing the bytes remaining
+     *         in the given buffer
+     * @throws NullPointerException
+     *             if the given buffer is null
+     * @throws IllegalArgumentException
+     *             if the bytes do not describe a valid cartridge
+     */
+    public static Cartridge ofBuffer(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return ofBytes(bytes);
+    }
+
+    /**
+     * Returns a copy of this cartridge sharing its rom and the pages of its ram
+     * that are not written, see {@link MBC1#fork()}
+     * 
+     * @return a copy of this cartridge
+     */
+    public Cartridge fork() {
+        // A controller without ram has no state and can be shared
+        if (memoryBankController instanceof MBC1) {
+            return new Cartridge(((MBC1) memoryBankController).fork());
+        }
+        return new Cartridge(memoryBankController);
+    }
+
+    /**
+     * Returns true if the rom of the cartridge is always visible as a whole,
+     * which means that the content of the addresses it covers never changes
+     * 
+     * @return true if the cartridge has no memory bank switching
+     */
+    public boolean hasImmutableRom() {
+        return memoryBankController instanceof MBC0;
+    }
+
+    // Only the memory bank controllers with ram or bank switching have a state
+    @Override
+    public int stateSize() {
+        return memoryBankController instanceof Stateful
+                ? ((Stateful) memoryBankController).stateSize()
+                : 0;
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        if (memoryBankController instanceof Stateful) {
+            ((Stateful) memoryBankController).saveState(buffer);
+        }
+    }
+
+    @Override
+    public void restoreState(ByteBuffer buffer) {
+        if (memoryBankController instanceof Stateful) {
+            ((Stateful) memoryBankController).restoreState(buffer);
+        }
+    }
+
     @Override
     public int read(int address) {
-        Preconditions.checkBits16(address);
+        Preconditions.checkInternalBits16(address);
         return memoryBankController.read(address);
     }
 
     @Override
     public void write(int address, int value) {
-        Preconditions.checkBits16(address);
-        Preconditions.checkBits8(value);
+        Preconditions.checkInternalBits16(address);
+        Preconditions.checkInternalBits8(value);
         memoryBankController.write(address, value);
     }
 
@@ -31,7 +31,7 @@ public final class MBC0 implements Component {
 
     @Override
     public int read(int address) {
-        Preconditions.checkBits16(address);
+        Preconditions.checkInternalBits16(address);
         if (address < CARTRIDGE_SIZE) {
             return rom.read(address);
         }
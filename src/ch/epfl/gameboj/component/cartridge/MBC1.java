@@ -1,14 +1,17 @@
 package ch.epfl.gameboj.component.cartridge;
 
-import static ch.epfl.gameboj.Preconditions.checkBits16;
-import static ch.epfl.gameboj.Preconditions.checkBits8;
+import static ch.epfl.gameboj.Preconditions.checkInternalBits16;
+import static ch.epfl.gameboj.Preconditions.checkInternalBits8;
+
+import java.nio.ByteBuffer;
 
 import ch.epfl.gameboj.bits.Bits;
 import ch.epfl.gameboj.component.Component;
+import ch.epfl.gameboj.component.Stateful;
 import ch.epfl.gameboj.component.memory.Ram;
 import ch.epfl.gameboj.component.memory.Rom;
 
-public final class MBC1 implements Component {
+public final class MBC1 implements Component, Stateful {
     private static final int RAM_ENABLE = 0xA;
 
     private enum Mode {
@@ -24,8 +27,12 @@ public final class MBC1 implements Component {
     private final int romMask, ramMask;
 
     public MBC1(Rom rom, int ramSize) {
+        this(rom, new Ram(ramSize));
+    }
+
+    private MBC1(Rom rom, Ram ram) {
         this.rom = rom;
-        this.ram = new Ram(ramSize);
+        this.ram = ram;
 
         this.ramEnabled = false;
         this.mode = Mode.MODE_0;
@@ -33,11 +40,27 @@ public final class MBC1 implements Component {
         this.ramRom2 = 0;
 
         this.romMask = rom.size() - 1;
-        this.ramMask = ramSize - 1;
+        this.ramMask = ram.size() - 1;
+    }
+
+    /**
+     * Returns a copy of this controller, in the same banking state, which
+     * shares its rom and the pages of its ram that are not written
+     * 
+     * @return a copy of this controller
+     * @see Ram#fork()
+     */
+    public MBC1 fork() {
+        MBC1 copy = new MBC1(rom, ram.fork());
+        copy.ramEnabled = ramEnabled;
+        copy.mode = mode;
+        copy.romLsb5 = romLsb5;
+        copy.ramRom2 = ramRom2;
+        return copy;
     }
 
     public int read(int address) {
-        switch (Bits.extract(checkBits16(address), 13, 3)) {
+        switch (Bits.extract(checkInternalBits16(address), 13, 3)) {
         case 0:
         case 1:
             return rom.read(romAddress(msb2(), 0, address));
@@ -53,8 +76,8 @@ public final class MBC1 implements Component {
 
     @Override
     public void write(int address, int data) {
-        checkBits8(data);
-        switch (Bits.extract(checkBits16(address), 13, 3)) {
+        checkInternalBits8(data);
+        switch (Bits.extract(checkInternalBits16(address), 13, 3)) {
         case 0:
             ramEnabled = Bits.clip(4, data) == RAM_ENABLE;
             break;
@@ -74,6 +97,29 @@ public final class MBC1 implements Component {
         }
     }
 
+    @Override
+    public int stateSize() {
+        return 3 + ram.stateSize();
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        buffer.put((byte) ((ramEnabled ? 1 : 0) | mode.ordinal() << 1));
+        buffer.put((byte) romLsb5);
+        buffer.put((byte) ramRom2);
+        ram.saveState(buffer);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer buffer) {
+        int status = Byte.toUnsignedInt(buffer.get());
+        ramEnabled = Bits.test(status, 0);
+        mode = Bits.test(status, 1) ? Mode.MODE_1 : Mode.MODE_0;
+        romLsb5 = Byte.toUnsignedInt(buffer.get());
+        ramRom2 = Byte.toUnsignedInt(buffer.get());
+        ram.restoreState(buffer);
+    }
+
     private int msb2() {
         switch (mode) {
         case MODE_0:
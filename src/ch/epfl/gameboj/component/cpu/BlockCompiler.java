@@ -0,0 +1,447 @@
+package ch.epfl.gameboj.component.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup.ClassOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates blocks of instructions of the immutable code into JVM classes,
+ * defined as hidden classes nested in Cpu so that they can use its private
+ * fields.
+ *
+ * The execute method of the class of a block calls the handler of each
+ * instruction in turn, with the argument of the instruction and the address
+ * following it as constants, then updates PC and the cycles. It does exactly
+ * what Cpu.executeBlock does, without the loop over the decoded instructions.
+ * The handlers are stored in static final fields, so that the JVM knows which
+ * one each call executes and can inline it.
+ *
+ * The classes only depend on the instructions of the blocks and on their
+ * addresses. They are thus kept in a cache shared by all the cpus, so that
+ * the cpus running the same code, such as successive runs of a program, use
+ * the same classes and benefit from their compilation by the JVM
+ */
+final class BlockCompiler {
+
+	// The cache holds the most recently used classes, the others being
+	// unloaded by the JVM once no cpu uses them anymore
+	private static final int MAX_CACHED_BLOCKS = 4096;
+	private static final Map<Key, Cpu.CompiledBlock> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Cpu.CompiledBlock> eldest) {
+			return size() > MAX_CACHED_BLOCKS;
+		}
+	};
+
+	private static final String CPU = "ch/epfl/gameboj/component/cpu/Cpu";
+	private static final String HANDLER = CPU + "$Handler";
+	private static final String COMPILED_BLOCK = CPU + "$CompiledBlock";
+	private static final String CLASS_NAME = CPU + "$Block";
+	private static final String HANDLER_DESCRIPTOR = "L" + HANDLER + ";";
+
+	private static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010,
+			ACC_SUPER = 0x0020;
+	// The class files of Java 17
+	private static final int MAJOR_VERSION = 61;
+
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, ALOAD_0 = 0x2A,
+			ALOAD_1 = 0x2B, LLOAD_2 = 0x20, ASTORE_0 = 0x4B, AALOAD = 0x32, DUP = 0x59, LADD = 0x61, I2L = 0x85,
+			LCMP = 0x94, IFGE = 0x9C, RETURN = 0xB1, GETSTATIC = 0xB2, PUTSTATIC = 0xB3, GETFIELD = 0xB4,
+			PUTFIELD = 0xB5, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8, INVOKEINTERFACE = 0xB9, CHECKCAST = 0xC0;
+
+	private static final int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_CLASS = 7, CONSTANT_STRING = 8,
+			CONSTANT_FIELDREF = 9, CONSTANT_METHODREF = 10, CONSTANT_INTERFACE_METHODREF = 11,
+			CONSTANT_NAME_AND_TYPE = 12;
+	// The type of the only frame of the stack map table, which is the same as
+	// the frame at the start of the method
+	private static final int SAME_FRAME_EXTENDED = 251;
+
+	private BlockCompiler() {
+	}
+
+	/**
+	 * Returns an instance of the class executing the given block, creating the
+	 * class if it is not in the cache yet
+	 *
+	 * @param lookup
+	 *            a lookup of Cpu with all its access rights
+	 * @param handlers
+	 *            the handlers of the instructions of the block, in order
+	 * @param arguments
+	 *            the arguments of the instructions
+	 * @param nextPCs
+	 *            the addresses following each instruction and its argument
+	 * @param cycles
+	 *            the number of cycles each instruction takes when it does not
+	 *            branch
+	 * @return the compiled block
+	 */
+	static Cpu.CompiledBlock compile(MethodHandles.Lookup lookup, Cpu.Handler[] handlers, int[] arguments,
+			int[] nextPCs, int[] cycles) {
+		Key key = new Key(handlers, arguments, nextPCs);
+		synchronized (CACHE) {
+			Cpu.CompiledBlock block = CACHE.get(key);
+			if (block != null) {
+				return block;
+			}
+		}
+		// Two threads may compile the same block at the same time, both
+		// classes then work and the first one is kept
+		Cpu.CompiledBlock block = define(lookup, handlers, classBytes(handlers, arguments, nextPCs, cycles));
+		synchronized (CACHE) {
+			Cpu.CompiledBlock cached = CACHE.putIfAbsent(key, block);
+			return cached == null ? block : cached;
+		}
+	}
+
+	private static Cpu.CompiledBlock define(MethodHandles.Lookup lookup, Cpu.Handler[] handlers, byte[] bytes) {
+		try {
+			Class<?> type = lookup.defineHiddenClassWithClassData(bytes, handlers.clone(), true, ClassOption.NESTMATE)
+					.lookupClass();
+			return (Cpu.CompiledBlock) type.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new Error("The class of a block could not be defined", e);
+		}
+	}
+
+	private static byte[] classBytes(Cpu.Handler[] handlers, int[] arguments, int[] nextPCs, int[] cycles) {
+		ConstantPool pool = new ConstantPool();
+		int thisClass = pool.classRef(CLASS_NAME);
+		int superClass = pool.classRef("java/lang/Object");
+		int compiledBlock = pool.classRef(COMPILED_BLOCK);
+		int code = pool.utf8("Code");
+
+		int[] fields = new int[handlers.length];
+		for (int i = 0; i < handlers.length; ++i) {
+			fields[i] = pool.fieldRef(CLASS_NAME, "h" + i, HANDLER_DESCRIPTOR);
+		}
+
+		byte[] constructor = constructor(pool);
+		byte[] initializer = initializer(pool, fields);
+		byte[] execute = execute(pool, fields, arguments, nextPCs, cycles);
+		// The instructions following the first one jump to the final return
+		// when they start too late
+		int endOffset = handlers.length > 1 ? execute.length - 1 : -1;
+
+		int handlerDescriptor = pool.utf8(HANDLER_DESCRIPTOR);
+		int[] fieldNames = new int[handlers.length];
+		for (int i = 0; i < handlers.length; ++i) {
+			fieldNames[i] = pool.utf8("h" + i);
+		}
+		int init = pool.utf8("<init>");
+		int clinit = pool.utf8("<clinit>");
+		int voidDescriptor = pool.utf8("()V");
+		int executeName = pool.utf8("execute");
+		int executeDescriptor = pool.utf8("(L" + CPU + ";J)V");
+		int stackMapTable = pool.utf8("StackMapTable");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(MAJOR_VERSION);
+			pool.writeTo(out);
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(compiledBlock);
+
+			out.writeShort(handlers.length);
+			for (int name : fieldNames) {
+				out.writeShort(ACC_PRIVATE | ACC_STATIC | ACC_FINAL);
+				out.writeShort(name);
+				out.writeShort(handlerDescriptor);
+				out.writeShort(0);
+			}
+
+			out.writeShort(3);
+			writeMethod(out, 0, init, voidDescriptor, code, 1, 1, constructor, -1, stackMapTable);
+			writeMethod(out, ACC_STATIC, clinit, voidDescriptor, code, 3, 1, initializer, -1, stackMapTable);
+			writeMethod(out, ACC_PUBLIC, executeName, executeDescriptor, code, 6, 4, execute, endOffset,
+					stackMapTable);
+
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	// Writes a method whose code is the given one. If endOffset is not -1,
+	// the code has jumps to this offset where the frame is the same as at the
+	// start of the method, which is described by a stack map table
+	private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeAttribute,
+			int maxStack, int maxLocals, byte[] code, int endOffset, int stackMapTable) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1);
+		out.writeShort(codeAttribute);
+		int stackMapLength = endOffset == -1 ? 0 : 6 + 2 + 1 + 2;
+		out.writeInt(2 + 2 + 4 + code.length + 2 + 2 + stackMapLength);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0);
+		if (endOffset == -1) {
+			out.writeShort(0);
+		} else {
+			out.writeShort(1);
+			out.writeShort(stackMapTable);
+			out.writeInt(2 + 1 + 2);
+			out.writeShort(1);
+			out.writeByte(SAME_FRAME_EXTENDED);
+			out.writeShort(endOffset);
+		}
+	}
+
+	private static byte[] constructor(ConstantPool pool) {
+		Code code = new Code();
+		code.op(ALOAD_0);
+		code.op(INVOKESPECIAL, pool.methodRef("java/lang/Object", "<init>", "()V"));
+		code.op(RETURN);
+		return code.bytes();
+	}
+
+	// Stores the handlers given as the data of the class in its fields
+	private static byte[] initializer(ConstantPool pool, int[] fields) {
+		Code code = new Code();
+		code.op(INVOKESTATIC,
+				pool.methodRef("java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;"));
+		code.op(LDC_W, pool.string("_"));
+		code.op(LDC_W, pool.classRef("[Ljava/lang/Object;"));
+		code.op(INVOKESTATIC, pool.methodRef("java/lang/invoke/MethodHandles", "classData",
+				"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"));
+		code.op(CHECKCAST, pool.classRef("[Ljava/lang/Object;"));
+		code.op(ASTORE_0);
+		int handler = pool.classRef(HANDLER);
+		for (int i = 0; i < fields.length; ++i) {
+			code.op(ALOAD_0);
+			code.pushInt(pool, i);
+			code.op(AALOAD);
+			code.op(CHECKCAST, handler);
+			code.op(PUTSTATIC, fields[i]);
+		}
+		code.op(RETURN);
+		return code.bytes();
+	}
+
+	// The local variables are this, the cpu and the limit cycle
+	private static byte[] execute(ConstantPool pool, int[] fields, int[] arguments, int[] nextPCs, int[] cycles) {
+		int handlerExecute = pool.interfaceMethodRef(HANDLER, "execute", "(L" + CPU + ";II)I");
+		int pc = pool.fieldRef(CPU, "PCRegister", "I");
+		int nextNonIdleCycle = pool.fieldRef(CPU, "nextNonIdleCycle", "J");
+
+		Code code = new Code();
+		// The offsets of the jumps to the end, filled once the end is known
+		List<Integer> jumps = new ArrayList<>();
+		for (int i = 0; i < fields.length; ++i) {
+			if (i > 0) {
+				code.op(ALOAD_1);
+				code.op(GETFIELD, nextNonIdleCycle);
+				code.op(LLOAD_2);
+				code.op(LCMP);
+				jumps.add(code.size());
+				code.op(IFGE, 0);
+			}
+			code.op(ALOAD_1);
+			code.op(GETSTATIC, fields[i]);
+			code.op(ALOAD_1);
+			code.pushInt(pool, arguments[i]);
+			code.pushInt(pool, nextPCs[i]);
+			code.op(INVOKEINTERFACE, handlerExecute);
+			code.byte1(4);
+			code.byte1(0);
+			code.op(PUTFIELD, pc);
+
+			code.op(ALOAD_1);
+			code.op(DUP);
+			code.op(GETFIELD, nextNonIdleCycle);
+			code.pushInt(pool, cycles[i]);
+			code.op(I2L);
+			code.op(LADD);
+			code.op(PUTFIELD, nextNonIdleCycle);
+		}
+		int end = code.size();
+		code.op(RETURN);
+		byte[] bytes = code.bytes();
+		for (int jump : jumps) {
+			int offset = end - jump;
+			bytes[jump + 1] = (byte) (offset >> 8);
+			bytes[jump + 2] = (byte) offset;
+		}
+		return bytes;
+	}
+
+	// The bytecode of a method
+	private static final class Code {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		void op(int opcode) {
+			out.write(opcode);
+		}
+
+		void op(int opcode, int operand) {
+			out.write(opcode);
+			out.write(operand >> 8);
+			out.write(operand);
+		}
+
+		void byte1(int value) {
+			out.write(value);
+		}
+
+		void pushInt(ConstantPool pool, int value) {
+			if (value >= -1 && value <= 5) {
+				out.write(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				out.write(BIPUSH);
+				out.write(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(SIPUSH, value);
+			} else {
+				op(LDC_W, pool.integer(value));
+			}
+		}
+
+		int size() {
+			return out.size();
+		}
+
+		byte[] bytes() {
+			return out.toByteArray();
+		}
+	}
+
+	// The constants of a class, each one being added once
+	private static final class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String, Integer> indices = new HashMap<>();
+		private int count = 1;
+
+		int utf8(String value) {
+			return constant("U" + value, () -> {
+				out.writeByte(CONSTANT_UTF8);
+				out.writeUTF(value);
+			});
+		}
+
+		int integer(int value) {
+			return constant("I" + value, () -> {
+				out.writeByte(CONSTANT_INTEGER);
+				out.writeInt(value);
+			});
+		}
+
+		int string(String value) {
+			int utf8 = utf8(value);
+			return constant("S" + value, () -> {
+				out.writeByte(CONSTANT_STRING);
+				out.writeShort(utf8);
+			});
+		}
+
+		int classRef(String name) {
+			int utf8 = utf8(name);
+			return constant("C" + name, () -> {
+				out.writeByte(CONSTANT_CLASS);
+				out.writeShort(utf8);
+			});
+		}
+
+		int fieldRef(String owner, String name, String descriptor) {
+			return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+		}
+
+		int methodRef(String owner, String name, String descriptor) {
+			return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+		}
+
+		int interfaceMethodRef(String owner, String name, String descriptor) {
+			return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+		}
+
+		private int memberRef(int tag, String owner, String name, String descriptor) {
+			int ownerClass = classRef(owner);
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+			int nameAndType = constant("N" + name + " " + descriptor, () -> {
+				out.writeByte(CONSTANT_NAME_AND_TYPE);
+				out.writeShort(nameIndex);
+				out.writeShort(descriptorIndex);
+			});
+			return constant(tag + owner + "." + name + " " + descriptor, () -> {
+				out.writeByte(tag);
+				out.writeShort(ownerClass);
+				out.writeShort(nameAndType);
+			});
+		}
+
+		private int constant(String key, Writer writer) {
+			Integer index = indices.get(key);
+			if (index == null) {
+				try {
+					writer.write();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				index = count++;
+				indices.put(key, index);
+			}
+			return index;
+		}
+
+		void writeTo(DataOutputStream classOut) throws IOException {
+			classOut.writeShort(count);
+			classOut.write(bytes.toByteArray());
+		}
+
+		@FunctionalInterface
+		private interface Writer {
+			void write() throws IOException;
+		}
+	}
+
+	// Identifies a block by its instructions, each decoded opcode having its
+	// own handler, and by its addresses
+	private static final class Key {
+		private final Cpu.Handler[] handlers;
+		private final int[] arguments;
+		private final int[] nextPCs;
+
+		Key(Cpu.Handler[] handlers, int[] arguments, int[] nextPCs) {
+			this.handlers = handlers.clone();
+			this.arguments = arguments.clone();
+			this.nextPCs = nextPCs.clone();
+		}
+
+		@Override
+		public boolean equals(Object that) {
+			if (!(that instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) that;
+			return Arrays.equals(handlers, key.handlers) && Arrays.equals(arguments, key.arguments)
+					&& Arrays.equals(nextPCs, key.nextPCs);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * Arrays.hashCode(handlers) + Arrays.hashCode(arguments)) + Arrays.hashCode(nextPCs);
+		}
+	}
+}
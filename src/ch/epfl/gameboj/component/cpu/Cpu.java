@@ -1,26 +1,28 @@
 package ch.epfl.gameboj.component.cpu;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import ch.epfl.gameboj.AddressMap;
 import ch.epfl.gameboj.Bus;
 import ch.epfl.gameboj.Preconditions;
-import ch.epfl.gameboj.Register;
-import ch.epfl.gameboj.RegisterFile;
 import ch.epfl.gameboj.bits.Bit;
 import ch.epfl.gameboj.bits.Bits;
 import ch.epfl.gameboj.component.Clocked;
 import ch.epfl.gameboj.component.Component;
+import ch.epfl.gameboj.component.Stateful;
 import ch.epfl.gameboj.component.cpu.Alu.Flag;
 import ch.epfl.gameboj.component.cpu.Alu.RotDir;
 import ch.epfl.gameboj.component.memory.Ram;
-import javafx.beans.property.ObjectProperty;
-import javafx.beans.property.SimpleObjectProperty;
 
 /**
  * @author Axel Marmet (288862)
  *
  */
 
-public final class Cpu implements Component, Clocked {
+public final class Cpu implements Component, Clocked, Stateful {
 
 	/**
 	 * The different interrupts that may be raised
@@ -32,9 +34,10 @@ public final class Cpu implements Component, Clocked {
 	private static final int PREFIX = 0xCB;
 
 	/**
-	 * The 8 bits registers used by the CPU
+	 * The 8 bits registers used by the CPU, the two registers of a pair follow
+	 * each other
 	 */
-	private enum Reg implements Register {
+	private enum Reg {
 		A, F, B, C, D, E, H, L
 	}
 
@@ -63,10 +66,27 @@ public final class Cpu implements Component, Clocked {
 	private static final Opcode[] DIRECT_OPCODE_TABLE = buildOpcodeTable(Opcode.Kind.DIRECT);
 	private static final Opcode[] PREFIXED_OPCODE_TABLE = buildOpcodeTable(Opcode.Kind.PREFIXED);
 
-	public ObjectProperty<String> cpuProperty = new SimpleObjectProperty<>("");
+	// Both kinds of opcodes decoded in a single table, the prefixed ones being
+	// stored after the direct ones
+	private static final int PREFIXED_OFFSET = 0xFF + 1;
+	private static final DecodedOpcode[] DECODED_OPCODE_TABLE = buildDecodedOpcodeTable();
+
+	// Gives access to the elements of the cache of blocks with release and
+	// acquire semantics, as the cache may be shared by forks running on
+	// different threads
+	private static final VarHandle CACHED_BLOCK = MethodHandles.arrayElementVarHandle(Block[].class);
+	private static final int MAX_BLOCK_LENGTH = 64;
+	// A block of several instructions is translated to a JVM class once it has
+	// been interpreted this number of times, so that the code only executed
+	// a few times, such as the initialization of a program, is not compiled
+	private static final int COMPILATION_THRESHOLD = 64;
+	// Lets the classes of the compiled blocks, nested in Cpu, use its fields
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
 
 	private Bus bus;
-	private RegisterFile<Reg> regF = new RegisterFile<>(Reg.values());
+	// The values of the 8 bits registers, indexed by the ordinal of the Reg
+	// designating them
+	private final int[] registers = new int[Reg.values().length];
 	private Ram highRam = new Ram(AddressMap.HIGH_RAM_SIZE);
 
 	private int PCRegister = 0;
@@ -78,20 +98,75 @@ public final class Cpu implements Component, Clocked {
 	private boolean isHalted = false;
 	private long nextNonIdleCycle = 0;
 
+	private CpuTraceListener traceListener = null;
+
+	// The blocks of instructions located in a range of addresses whose content
+	// never changes, indexed by the address of their first instruction
+	// relative to the start of the range and built the first time the cpu
+	// jumps or falls through to this address
+	private int cachedCodeStart = 0;
+	private Block[] cachedBlocks = new Block[0];
+
 	// function added for compiler
-	public void updateRegisterProperty() {
-		StringBuilder sb = new StringBuilder("--------------------\n");
-		sb.append("Will execute " + getNextOpcodeInformation() + "\n");
-		sb.append(String.format("PC : %-5d \n", PCRegister));
-		sb.append(String.format("SP : %-5d \n", SPRegister));
-		for (Reg register : Reg.values()) {
-			sb.append(String.format(register.name() + " : %-5d \n", regF.get(register)));
-		}
-		cpuProperty.set(cpuProperty.get() + sb.toString());
+	public void setTraceListener(CpuTraceListener traceListener) {
+		this.traceListener = traceListener;
+	}
+
+	/**
+	 * Tells the cpu that the content of the memory located between startAddress
+	 * (inclusive) and endAddress (exclusive) never changes, so that the
+	 * instructions located there only have to be fetched and decoded once.
+	 * They are decoded in basic blocks : a run of instructions which only use
+	 * the registers, ending with the first jump. When it is given a limit
+	 * cycle, see cycleUntil, the cpu executes all the instructions of such a
+	 * block at once. The blocks executed often are translated to JVM classes,
+	 * see BlockCompiler, unless a trace listener is set
+	 * 
+	 * @param startAddress
+	 *            the first address of the range (must fit in 16 bits)
+	 * @param endAddress
+	 *            the first address after the range (must be greater or equal to
+	 *            startAddress and smaller or equal to 0x10000)
+	 * @throws IllegalArgumentException
+	 *             if startAddress and endAddress do not describe a range of 16
+	 *             bits addresses
+	 */
+	public void setImmutableCodeRange(int startAddress, int endAddress) {
+		Preconditions.checkBits16(startAddress);
+		Preconditions.checkArgument(startAddress <= endAddress && endAddress <= 0x10000);
+		cachedCodeStart = startAddress;
+		cachedBlocks = new Block[endAddress - startAddress];
+	}
+
+	/**
+	 * Returns a copy of this cpu in the same state, which is not attached to
+	 * any bus yet. The high ram is forked, see
+	 * {@link Ram#fork()}, and the cache of the blocks of the immutable code is
+	 * shared as they only depend on this code. Each block is stored in the
+	 * cache as a single immutable object, published with release semantics
+	 * and read with acquire semantics, so that a cpu running on another
+	 * thread either sees the whole block or decodes it again
+	 * 
+	 * @return a copy of this cpu
+	 */
+	public Cpu fork() {
+		Cpu copy = new Cpu();
+		System.arraycopy(registers, 0, copy.registers, 0, registers.length);
+		copy.highRam = highRam.fork();
+		copy.PCRegister = PCRegister;
+		copy.SPRegister = SPRegister;
+		copy.IMERegister = IMERegister;
+		copy.IERegister = IERegister;
+		copy.IFRegister = IFRegister;
+		copy.isHalted = isHalted;
+		copy.nextNonIdleCycle = nextNonIdleCycle;
+		copy.cachedCodeStart = cachedCodeStart;
+		copy.cachedBlocks = cachedBlocks;
+		return copy;
 	}
 
 	// function added for compiler
-	private String getNextOpcodeInformation() {
+	public String getNextOpcodeInformation() {
 		StringBuilder sb = new StringBuilder();
 		int nextInstruction = read8AtPC();
 		Opcode opcode = (nextInstruction == PREFIX ? PREFIXED_OPCODE_TABLE[read8AfterOpcode()]
@@ -124,18 +199,35 @@ public final class Cpu implements Component, Clocked {
 	 *         F, B, C, D, E, H and L
 	 */
 	public int[] _testGetPcSpAFBCDEHL() {
-		Reg[] allRegs = Reg.values();
 		int[] table = new int[10];
 		table[0] = PCRegister;
 		table[1] = SPRegister;
-		for (int i = 0; i < allRegs.length; ++i) {
-			table[i + 2] = regF.get(allRegs[i]);
-		}
+		System.arraycopy(registers, 0, table, 2, registers.length);
 		return table;
 	}
 
 	@Override
 	public void cycle(long cycle) {
+		cycleUntil(cycle, cycle + 1);
+	}
+
+	/**
+	 * Does what cycle does at the given cycle then, if the instruction
+	 * executed starts a block of the immutable code, executes the following
+	 * instructions of the block which start before limitCycle, at the cycles
+	 * at which they would have been executed by successive calls to cycle.
+	 * Those instructions only use the registers of the cpu, so they are
+	 * executed the same way as long as no other component does anything
+	 * before limitCycle. The next instructions are executed by the following
+	 * calls as usual, the next one being executed at getNextNonIdleCycle
+	 * 
+	 * @param cycle
+	 *            the current cycle
+	 * @param limitCycle
+	 *            the cycle at which another component may next do something
+	 *            (must be greater than cycle)
+	 */
+	public void cycleUntil(long cycle, long limitCycle) {
 		if (isHalted) {
 			if ((IERegister & IFRegister) != 0) {
 				isHalted = false;
@@ -153,16 +245,123 @@ public final class Cpu implements Component, Clocked {
 		if (IMERegister && handleInterruptions()) {
 			return;
 		}
+		int cacheIndex = PCRegister - cachedCodeStart;
+		if (cacheIndex >= 0 && cacheIndex < cachedBlocks.length) {
+			Block block = (Block) CACHED_BLOCK.getAcquire(cachedBlocks, cacheIndex);
+			if (block == null) {
+				block = decodeBlock(cacheIndex);
+			}
+			if (block != null) {
+				if (block.compiled != null && traceListener == null) {
+					block.compiled.execute(this, limitCycle);
+				} else {
+					executeBlock(block, limitCycle);
+					if (block.opcodes.length > 1 && ++block.executions == COMPILATION_THRESHOLD) {
+						compileBlock(cacheIndex, block);
+					}
+				}
+				return;
+			}
+		}
 		int nextInstruction = read8AtPC();
-		Opcode opcode = (nextInstruction == PREFIX ? PREFIXED_OPCODE_TABLE[read8AfterOpcode()]
-				: DIRECT_OPCODE_TABLE[nextInstruction]);
-		dispatch(opcode);
-		updateRegisterProperty();
+		DecodedOpcode opcode = decodeOpcode(nextInstruction, PCRegister);
+		dispatch(opcode, readArgument(opcode, PCRegister));
+		if (traceListener != null) {
+			notifyTraceListener();
+		}
+	}
+
+	// Executes the first instruction of the block, then the following ones
+	// starting before the limit cycle. As all the instructions of a block of
+	// several instructions only use the registers, none of them can raise an
+	// interrupt, which thus only have to be checked before the block
+	private void executeBlock(Block block, long limitCycle) {
+		dispatch(block.opcodes[0], block.arguments[0]);
+		if (traceListener != null) {
+			notifyTraceListener();
+			return;
+		}
+		for (int i = 1; i < block.opcodes.length && nextNonIdleCycle < limitCycle; ++i) {
+			dispatch(block.opcodes[i], block.arguments[i]);
+		}
+	}
+
+	// Decodes the block starting at the given index of the immutable code and
+	// stores it in the cache, or returns null if its first instruction goes
+	// past the end of the immutable code. A block made of an instruction
+	// which is not part of any run, such as a memory access, only contains
+	// this instruction
+	private Block decodeBlock(int startIndex) {
+		DecodedOpcode[] opcodes = new DecodedOpcode[MAX_BLOCK_LENGTH];
+		int[] arguments = new int[MAX_BLOCK_LENGTH];
+		int length = 0;
+		int index = startIndex;
+		while (length < MAX_BLOCK_LENGTH) {
+			int address = cachedCodeStart + index;
+			DecodedOpcode opcode = decodeOpcode(read8(address), address);
+			// Opcodes which do not exist may be found past the end of the code
+			if (opcode == null || index + opcode.totalBytes > cachedBlocks.length
+					|| (length > 0 && !opcode.usesRegistersOnly)) {
+				break;
+			}
+			opcodes[length] = opcode;
+			arguments[length] = readArgument(opcode, address);
+			++length;
+			index += opcode.totalBytes;
+			if (!opcode.usesRegistersOnly || opcode.isJump) {
+				break;
+			}
+		}
+		if (length == 0) {
+			return null;
+		}
+		Block block = new Block(Arrays.copyOf(opcodes, length), Arrays.copyOf(arguments, length), null);
+		CACHED_BLOCK.setRelease(cachedBlocks, startIndex, block);
+		return block;
+	}
+
+	// Replaces the block starting at the given index of the immutable code by
+	// the same block executed by a class of its own. The handlers get the
+	// address following each instruction as a constant, which is what
+	// dispatch computes since the instructions of a block follow each other
+	private void compileBlock(int startIndex, Block block) {
+		int length = block.opcodes.length;
+		Handler[] handlers = new Handler[length];
+		int[] nextPCs = new int[length];
+		int[] cycles = new int[length];
+		int address = cachedCodeStart + startIndex;
+		for (int i = 0; i < length; ++i) {
+			DecodedOpcode opcode = block.opcodes[i];
+			address += opcode.totalBytes;
+			handlers[i] = opcode.handler;
+			nextPCs[i] = address;
+			cycles[i] = opcode.cycles;
+		}
+		CompiledBlock compiled = BlockCompiler.compile(LOOKUP, handlers, block.arguments, nextPCs, cycles);
+		CACHED_BLOCK.setRelease(cachedBlocks, startIndex, new Block(block.opcodes, block.arguments, compiled));
+	}
+
+	private DecodedOpcode decodeOpcode(int encoding, int address) {
+		return encoding == PREFIX ? DECODED_OPCODE_TABLE[PREFIXED_OFFSET + read8(address + 1)]
+				: DECODED_OPCODE_TABLE[encoding];
+	}
+
+	/**
+	 * Returns the cycle at which the cpu will execute its next instruction, or
+	 * Long.MAX_VALUE if it is halted and no enabled interrupt has been raised
+	 * since it only wakes up when another component raises an interrupt
+	 */
+	@Override
+	public long nextEventCycle(long cycle) {
+		if (isHalted) {
+			return (IERegister & IFRegister) != 0 ? cycle : Long.MAX_VALUE;
+		}
+		return Math.max(cycle, nextNonIdleCycle);
 	}
 
 	@Override
 	public int read(int address) {
-		Preconditions.checkBits16(address);
+		Preconditions.checkInternalBits16(address);
 		switch (address) {
 		case AddressMap.REG_IE:
 			return IERegister;
@@ -180,8 +379,8 @@ public final class Cpu implements Component, Clocked {
 
 	@Override
 	public void write(int address, int data) {
-		Preconditions.checkBits8(data);
-		Preconditions.checkBits16(address);
+		Preconditions.checkInternalBits8(data);
+		Preconditions.checkInternalBits16(address);
 		switch (address) {
 		case AddressMap.REG_IE:
 			IERegister = data;
@@ -208,12 +407,105 @@ public final class Cpu implements Component, Clocked {
 		IFRegister = Bits.set(IFRegister, interrupt.index(), true);
 	}
 
+	/**
+	 * Returns true if the bit corresponding to the given interrupt is 1 in the
+	 * IE register, only the enabled interrupts waking up a halted cpu
+	 * 
+	 * @param interrupt
+	 *            the interrupt (must not be null)
+	 * @return true if the interrupt is enabled
+	 * @throws NullPointerException
+	 *             if interrupt is null
+	 */
+	public boolean isInterruptEnabled(Interrupt interrupt) {
+		return Bits.test(IERegister, interrupt);
+	}
+
+	@Override
+	public int stateSize() {
+		return registersStateSize() + highRam.stateSize();
+	}
+
+	// The decoded instructions are not part of the state as the code they come
+	// from never changes
+	@Override
+	public void saveState(ByteBuffer buffer) {
+		saveRegisters(buffer);
+		highRam.saveState(buffer);
+	}
+
+	@Override
+	public void restoreState(ByteBuffer buffer) {
+		restoreRegisters(buffer);
+		highRam.restoreState(buffer);
+	}
+
+	/**
+	 * Returns the number of bytes written by saveRegisters
+	 * 
+	 * @return the size in bytes of the registers
+	 */
+	public int registersStateSize() {
+		return registers.length + 2 * Short.BYTES + 3 + Long.BYTES;
+	}
+
+	/**
+	 * Writes the registers of the cpu, the interrupt registers included, at
+	 * the current position of the given buffer. Unlike saveState, the high
+	 * ram is not written, so that the registers can be saved before each
+	 * instruction
+	 * 
+	 * @param buffer
+	 *            the buffer to write to (must have at least
+	 *            registersStateSize bytes remaining)
+	 * @throws java.nio.BufferOverflowException
+	 *             if there is not enough space left in the buffer
+	 */
+	public void saveRegisters(ByteBuffer buffer) {
+		for (int register : registers)
+			buffer.put((byte) register);
+		buffer.putShort((short) PCRegister);
+		buffer.putShort((short) SPRegister);
+		buffer.put((byte) IERegister);
+		buffer.put((byte) IFRegister);
+		buffer.put((byte) ((IMERegister ? 1 : 0) | (isHalted ? 2 : 0)));
+		buffer.putLong(nextNonIdleCycle);
+	}
+
+	/**
+	 * Replaces the registers of the cpu by the ones written by saveRegisters
+	 * at the current position of the given buffer
+	 * 
+	 * @param buffer
+	 *            the buffer to read from
+	 * @throws java.nio.BufferUnderflowException
+	 *             if the buffer does not contain all the registers
+	 */
+	public void restoreRegisters(ByteBuffer buffer) {
+		for (int i = 0; i < registers.length; ++i)
+			registers[i] = Byte.toUnsignedInt(buffer.get());
+		PCRegister = Short.toUnsignedInt(buffer.getShort());
+		SPRegister = Short.toUnsignedInt(buffer.getShort());
+		IERegister = Byte.toUnsignedInt(buffer.get());
+		IFRegister = Byte.toUnsignedInt(buffer.get());
+		int status = Byte.toUnsignedInt(buffer.get());
+		IMERegister = Bits.test(status, 0);
+		isHalted = Bits.test(status, 1);
+		nextNonIdleCycle = buffer.getLong();
+	}
+
 	@Override
 	public void attachTo(Bus bus) {
-		bus.attach(this);
+		bus.attach(this, AddressMap.REG_IF, AddressMap.REG_IF + 1);
+		bus.attach(this, AddressMap.HIGH_RAM_START, AddressMap.REG_IE + 1);
 		this.bus = bus;
 	}
 
+	private void notifyTraceListener() {
+		traceListener.instructionExecuted(this, PCRegister, SPRegister, getReg(Reg.A), getReg(Reg.F),
+				getReg(Reg.B), getReg(Reg.C), getReg(Reg.D), getReg(Reg.E), getReg(Reg.H), getReg(Reg.L));
+	}
+
 	// Returns true if an interruption was handled
 	private boolean handleInterruptions() {
 		int interruptsRaisedAndEnabled = IERegister & IFRegister;
@@ -229,442 +521,495 @@ public final class Cpu implements Component, Clocked {
 		return false;
 	}
 
-	// Execute the given opcode
-	private void dispatch(Opcode opcode) {
+	// Execute the given opcode, argument being the value of the bytes following
+	// the opcode if it has any
+	private void dispatch(DecodedOpcode opcode, int argument) {
+		PCRegister = opcode.handler.execute(this, argument, PCRegister + opcode.totalBytes);
+		nextNonIdleCycle += opcode.cycles;
+	}
 
-		int nextPC = PCRegister + opcode.totalBytes;
-		int encoding = opcode.encoding;
+	// Returns the handler executing the given opcode, with its operands
+	// resolved once and for all
+	private static Handler handlerOf(DecodedOpcode opcode) {
+		Reg reg0 = opcode.reg0;
+		Reg reg3 = opcode.reg3;
+		Reg16 reg16 = opcode.reg16;
+		RotDir rotDir = opcode.rotDir;
+		int index = opcode.index;
+		int condition = opcode.condition;
+		int additionalCycles = opcode.additionalCycles;
+		boolean bit3 = opcode.bit3, bit4 = opcode.bit4, bit6 = opcode.bit6;
 
 		switch (opcode.family) {
 		// Load
 		case NOP:
-			break;
+			return (cpu, argument, nextPC) -> nextPC;
 		case LD_R8_HLR:
-			regF.set(extractReg(opcode, 3), read8AtHL());
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(reg3, cpu.read8AtHL());
+				return nextPC;
+			};
 		case LD_A_HLRU:
-			regF.set(Reg.A, read8AtHL());
-			incrementHLAccordingToEncoding(encoding);
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(Reg.A, cpu.read8AtHL());
+				cpu.incrementHL(bit4);
+				return nextPC;
+			};
 		case LD_A_N8R:
-			regF.set(Reg.A, read8(AddressMap.REGS_START + read8AfterOpcode()));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(Reg.A, cpu.read8(AddressMap.REGS_START + argument));
+				return nextPC;
+			};
 		case LD_A_CR:
-			regF.set(Reg.A, read8(AddressMap.REGS_START + regF.get(Reg.C)));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(Reg.A, cpu.read8(AddressMap.REGS_START + cpu.getReg(Reg.C)));
+				return nextPC;
+			};
 		case LD_A_N16R:
-			regF.set(Reg.A, read8(read16AfterOpcode()));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(Reg.A, cpu.read8(argument));
+				return nextPC;
+			};
 		case LD_A_BCR:
-			regF.set(Reg.A, read8(getValueFromR16(Reg16.BC)));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(Reg.A, cpu.read8(cpu.getValueFromR16(Reg16.BC)));
+				return nextPC;
+			};
 		case LD_A_DER:
-			regF.set(Reg.A, read8(getValueFromR16(Reg16.DE)));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(Reg.A, cpu.read8(cpu.getValueFromR16(Reg16.DE)));
+				return nextPC;
+			};
 		case LD_R8_N8:
-			regF.set(extractReg(opcode, 3), read8AfterOpcode());
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(reg3, argument);
+				return nextPC;
+			};
 		case LD_R16SP_N16:
-			setR16SP(extractReg16(opcode), read16AfterOpcode());
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setR16SP(reg16, argument);
+				return nextPC;
+			};
 		case POP_R16:
-			setR16(extractReg16(opcode), pop16());
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.setR16(reg16, cpu.pop16());
+				return nextPC;
+			};
 		case LD_HLR_R8:
-			write8AtHL(regF.get(extractReg(opcode, 0)));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHL(cpu.getReg(reg0));
+				return nextPC;
+			};
 		case LD_HLRU_A:
-			write8AtHL(regF.get(Reg.A));
-			incrementHLAccordingToEncoding(encoding);
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHL(cpu.getReg(Reg.A));
+				cpu.incrementHL(bit4);
+				return nextPC;
+			};
 		case LD_N8R_A:
-			write8(AddressMap.REGS_START + read8AfterOpcode(), regF.get(Reg.A));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8(AddressMap.REGS_START + argument, cpu.getReg(Reg.A));
+				return nextPC;
+			};
 		case LD_CR_A:
-			write8(AddressMap.REGS_START + regF.get(Reg.C), regF.get(Reg.A));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8(AddressMap.REGS_START + cpu.getReg(Reg.C), cpu.getReg(Reg.A));
+				return nextPC;
+			};
 		case LD_N16R_A:
-			write8(read16AfterOpcode(), regF.get(Reg.A));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8(argument, cpu.getReg(Reg.A));
+				return nextPC;
+			};
 		case LD_BCR_A:
-			write8(getValueFromR16(Reg16.BC), regF.get(Reg.A));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8(cpu.getValueFromR16(Reg16.BC), cpu.getReg(Reg.A));
+				return nextPC;
+			};
 		case LD_DER_A:
-			write8(getValueFromR16(Reg16.DE), regF.get(Reg.A));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8(cpu.getValueFromR16(Reg16.DE), cpu.getReg(Reg.A));
+				return nextPC;
+			};
 		case LD_HLR_N8:
-			write8AtHL(read8AfterOpcode());
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHL(argument);
+				return nextPC;
+			};
 		case LD_N16R_SP:
-			write16(read16AfterOpcode(), SPRegister);
-			break;
-		case LD_R8_R8: {
-			Reg sendingReg = extractReg(opcode, 0);
-			Reg receivingReg = extractReg(opcode, 3);
-			regF.set(receivingReg, regF.get(sendingReg));
-		}
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.write16(argument, cpu.SPRegister);
+				return nextPC;
+			};
+		case LD_R8_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(reg3, cpu.getReg(reg0));
+				return nextPC;
+			};
 		case LD_SP_HL:
-			SPRegister = getValueFromR16(Reg16.HL);
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.SPRegister = cpu.getValueFromR16(Reg16.HL);
+				return nextPC;
+			};
 		case PUSH_R16:
-			push16(getValueFromR16(extractReg16(opcode)));
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.push16(cpu.getValueFromR16(reg16));
+				return nextPC;
+			};
 
 		// Add
-		case ADD_A_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.add(regF.get(Reg.A), regF.get(register), carryValue(opcode));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case ADD_A_N8: {
-			int result = Alu.add(regF.get(Reg.A), read8AfterOpcode(), carryValue(opcode));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case ADD_A_HLR: {
-			int result = Alu.add(regF.get(Reg.A), read8AtHL(), carryValue(opcode));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case INC_R8: {
-			Reg register = extractReg(opcode, 3);
-			int result = Alu.add(regF.get(register), 1);
-			setRegAndCombinedFlags(register, result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.ALU, FlagSrc.CPU);
-		}
-			break;
-		case INC_HLR: {
-			int result = Alu.add(read8AtHL(), 1);
-			write8AtHLAndSetCombinedFlags(result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.ALU, FlagSrc.CPU);
-		}
-			break;
-		case INC_R16SP: {
-			Reg16 pair = extractReg16(opcode);
-			int result = Bits.clip(16, getValueFromR16SP(pair) + 1);
-			setR16SP(pair, result);
-		}
-			break;
-		case ADD_HL_R16SP: {
-			Reg16 pair = extractReg16(opcode);
-			int result = Alu.add16H(getValueFromR16(Reg16.HL), getValueFromR16SP(pair));
-			setR16(Reg16.HL, Alu.unpackValue(result));
-			combineAluFlags(result, FlagSrc.CPU, FlagSrc.V0, FlagSrc.ALU, FlagSrc.ALU);
-		}
-			break;
-		case LD_HLSP_S8: {
-			int signedValue = read8AfterOpcodeAsSigned16();
-			int result = Alu.add16L(SPRegister, signedValue);
-			if (Bits.test(encoding, 4)) {
-				setR16(Reg16.HL, Alu.unpackValue(result));
-			} else {
-				SPRegister = Alu.unpackValue(result);
-			}
-			setFlags(result);
-		}
-			break;
+		case ADD_A_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.add(cpu.getReg(Reg.A), cpu.getReg(reg0), cpu.carryValue(bit3)));
+				return nextPC;
+			};
+		case ADD_A_N8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.add(cpu.getReg(Reg.A), argument, cpu.carryValue(bit3)));
+				return nextPC;
+			};
+		case ADD_A_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.add(cpu.getReg(Reg.A), cpu.read8AtHL(), cpu.carryValue(bit3)));
+				return nextPC;
+			};
+		case INC_R8:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.add(cpu.getReg(reg3), 1);
+				cpu.setRegAndCombinedFlags(reg3, result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.ALU, FlagSrc.CPU);
+				return nextPC;
+			};
+		case INC_HLR:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.add(cpu.read8AtHL(), 1);
+				cpu.write8AtHLAndSetCombinedFlags(result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.ALU, FlagSrc.CPU);
+				return nextPC;
+			};
+		case INC_R16SP:
+			return (cpu, argument, nextPC) -> {
+				cpu.setR16SP(reg16, Bits.clip(16, cpu.getValueFromR16SP(reg16) + 1));
+				return nextPC;
+			};
+		case ADD_HL_R16SP:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.add16H(cpu.getValueFromR16(Reg16.HL), cpu.getValueFromR16SP(reg16));
+				cpu.setR16(Reg16.HL, Alu.unpackValue(result));
+				cpu.combineAluFlags(result, FlagSrc.CPU, FlagSrc.V0, FlagSrc.ALU, FlagSrc.ALU);
+				return nextPC;
+			};
+		case LD_HLSP_S8:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.add16L(cpu.SPRegister, signExtendArgument(argument));
+				if (bit4) {
+					cpu.setR16(Reg16.HL, Alu.unpackValue(result));
+				} else {
+					cpu.SPRegister = Alu.unpackValue(result);
+				}
+				cpu.setFlags(result);
+				return nextPC;
+			};
 
 		// Subtract
-		case SUB_A_R8: {
-			Reg regToUse = extractReg(opcode, 0);
-			int result = Alu.sub(regF.get(Reg.A), regF.get(regToUse), carryValue(opcode));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case SUB_A_N8: {
-			int result = Alu.sub(regF.get(Reg.A), read8AfterOpcode(), carryValue(opcode));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case SUB_A_HLR: {
-			int result = Alu.sub(regF.get(Reg.A), read8AtHL(), carryValue(opcode));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case DEC_R8: {
-			Reg register = extractReg(opcode, 3);
-			int result = Alu.sub(regF.get(register), 1, false);
-			setRegAndCombinedFlags(register, result, FlagSrc.ALU, FlagSrc.V1, FlagSrc.ALU, FlagSrc.CPU);
-		}
-			break;
-		case DEC_HLR: {
-			int result = Alu.sub(read8AtHL(), 1, false);
-			write8AtHLAndSetCombinedFlags(result, FlagSrc.ALU, FlagSrc.V1, FlagSrc.ALU, FlagSrc.CPU);
-		}
-			break;
-		case CP_A_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.sub(regF.get(Reg.A), regF.get(register), false);
-			setFlags(result);
-		}
-			break;
-		case CP_A_N8: {
-			int result = Alu.sub(regF.get(Reg.A), read8AfterOpcode(), false);
-			setFlags(result);
-		}
-			break;
-		case CP_A_HLR: {
-			int result = Alu.sub(regF.get(Reg.A), read8AtHL(), false);
-			setFlags(result);
-		}
-			break;
-		case DEC_R16SP: {
-			Reg16 pair = extractReg16(opcode);
-			int result = Bits.clip(16, getValueFromR16SP(pair) - 1);
-			setR16SP(pair, result);
-		}
-			break;
+		case SUB_A_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.sub(cpu.getReg(Reg.A), cpu.getReg(reg0), cpu.carryValue(bit3)));
+				return nextPC;
+			};
+		case SUB_A_N8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.sub(cpu.getReg(Reg.A), argument, cpu.carryValue(bit3)));
+				return nextPC;
+			};
+		case SUB_A_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.sub(cpu.getReg(Reg.A), cpu.read8AtHL(), cpu.carryValue(bit3)));
+				return nextPC;
+			};
+		case DEC_R8:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.sub(cpu.getReg(reg3), 1, false);
+				cpu.setRegAndCombinedFlags(reg3, result, FlagSrc.ALU, FlagSrc.V1, FlagSrc.ALU, FlagSrc.CPU);
+				return nextPC;
+			};
+		case DEC_HLR:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.sub(cpu.read8AtHL(), 1, false);
+				cpu.write8AtHLAndSetCombinedFlags(result, FlagSrc.ALU, FlagSrc.V1, FlagSrc.ALU, FlagSrc.CPU);
+				return nextPC;
+			};
+		case CP_A_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setFlags(Alu.sub(cpu.getReg(Reg.A), cpu.getReg(reg0), false));
+				return nextPC;
+			};
+		case CP_A_N8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setFlags(Alu.sub(cpu.getReg(Reg.A), argument, false));
+				return nextPC;
+			};
+		case CP_A_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.setFlags(Alu.sub(cpu.getReg(Reg.A), cpu.read8AtHL(), false));
+				return nextPC;
+			};
+		case DEC_R16SP:
+			return (cpu, argument, nextPC) -> {
+				cpu.setR16SP(reg16, Bits.clip(16, cpu.getValueFromR16SP(reg16) - 1));
+				return nextPC;
+			};
 
 		// And, or, xor, complement
-		case AND_A_N8: {
-			int result = Alu.and(regF.get(Reg.A), read8AfterOpcode());
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case AND_A_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.and(regF.get(Reg.A), regF.get(register));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case AND_A_HLR: {
-			int result = Alu.and(regF.get(Reg.A), read8AtHL());
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case OR_A_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.or(regF.get(Reg.A), regF.get(register));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case OR_A_N8: {
-			int result = Alu.or(regF.get(Reg.A), read8AfterOpcode());
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case OR_A_HLR: {
-			int result = Alu.or(regF.get(Reg.A), read8AtHL());
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case XOR_A_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.xor(regF.get(Reg.A), regF.get(register));
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case XOR_A_N8: {
-			int result = Alu.xor(regF.get(Reg.A), read8AfterOpcode());
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case XOR_A_HLR: {
-			int result = Alu.xor(regF.get(Reg.A), read8AtHL());
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case CPL: {
-			int value = regF.get(Reg.A);
-			value = Bits.clip(8, ~value);
-			regF.set(Reg.A, value);
-			combineAluFlags(0, FlagSrc.CPU, FlagSrc.V1, FlagSrc.V1, FlagSrc.CPU);
-		}
-			break;
+		case AND_A_N8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.and(cpu.getReg(Reg.A), argument));
+				return nextPC;
+			};
+		case AND_A_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.and(cpu.getReg(Reg.A), cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case AND_A_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.and(cpu.getReg(Reg.A), cpu.read8AtHL()));
+				return nextPC;
+			};
+		case OR_A_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.or(cpu.getReg(Reg.A), cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case OR_A_N8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.or(cpu.getReg(Reg.A), argument));
+				return nextPC;
+			};
+		case OR_A_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.or(cpu.getReg(Reg.A), cpu.read8AtHL()));
+				return nextPC;
+			};
+		case XOR_A_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.xor(cpu.getReg(Reg.A), cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case XOR_A_N8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.xor(cpu.getReg(Reg.A), argument));
+				return nextPC;
+			};
+		case XOR_A_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(Reg.A, Alu.xor(cpu.getReg(Reg.A), cpu.read8AtHL()));
+				return nextPC;
+			};
+		case CPL:
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(Reg.A, Bits.clip(8, ~cpu.getReg(Reg.A)));
+				cpu.combineAluFlags(0, FlagSrc.CPU, FlagSrc.V1, FlagSrc.V1, FlagSrc.CPU);
+				return nextPC;
+			};
 
 		// Rotate, shift
-		case ROTCA: {
-			int result = Alu.rotate(extractRotDir(opcode), regF.get(Reg.A));
-			setRegAndCombinedFlags(Reg.A, result, FlagSrc.V0, FlagSrc.V0, FlagSrc.V0, FlagSrc.ALU);
-		}
-			break;
-		case ROTA: {
-			int result = Alu.rotate(extractRotDir(opcode), regF.get(Reg.A), regF.testBit(Reg.F, Flag.C));
-			setRegAndCombinedFlags(Reg.A, result, FlagSrc.V0, FlagSrc.V0, FlagSrc.V0, FlagSrc.ALU);
-		}
-			break;
-		case ROTC_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.rotate(extractRotDir(opcode), regF.get(register));
-			setRegAndFlags(register, result);
-		}
-			break;
-		case ROT_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.rotate(extractRotDir(opcode), regF.get(register), regF.testBit(Reg.F, Flag.C));
-			setRegAndFlags(register, result);
-		}
-			break;
-		case ROTC_HLR: {
-			int result = Alu.rotate(extractRotDir(opcode), read8AtHL());
-			write8AtHLAndSetFlags(result);
-		}
-			break;
-		case ROT_HLR: {
-			int result = Alu.rotate(extractRotDir(opcode), read8AtHL(), regF.testBit(Reg.F, Flag.C));
-			write8AtHLAndSetFlags(result);
-		}
-			break;
-		case SWAP_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.swap(regF.get(register));
-			setRegAndFlags(register, result);
-		}
-			break;
-		case SWAP_HLR: {
-			int result = Alu.swap(read8AtHL());
-			write8AtHLAndSetFlags(result);
-		}
-			break;
-		case SLA_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.shiftLeft(regF.get(register));
-			setRegAndFlags(register, result);
-		}
-			break;
-		case SRA_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.shiftRightA(regF.get(register));
-			setRegAndFlags(register, result);
-		}
-			break;
-		case SRL_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.shiftRightL(regF.get(register));
-			setRegAndFlags(register, result);
-		}
-			break;
-		case SLA_HLR: {
-			int result = Alu.shiftLeft(read8AtHL());
-			write8AtHLAndSetFlags(result);
-		}
-			break;
-		case SRA_HLR: {
-			int result = Alu.shiftRightA(read8AtHL());
-			write8AtHLAndSetFlags(result);
-		}
-			break;
-		case SRL_HLR: {
-			int result = Alu.shiftRightL(read8AtHL());
-			write8AtHLAndSetFlags(result);
-		}
-			break;
+		case ROTCA:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.rotate(rotDir, cpu.getReg(Reg.A));
+				cpu.setRegAndCombinedFlags(Reg.A, result, FlagSrc.V0, FlagSrc.V0, FlagSrc.V0, FlagSrc.ALU);
+				return nextPC;
+			};
+		case ROTA:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.rotate(rotDir, cpu.getReg(Reg.A), Bits.test(cpu.getReg(Reg.F), Flag.C));
+				cpu.setRegAndCombinedFlags(Reg.A, result, FlagSrc.V0, FlagSrc.V0, FlagSrc.V0, FlagSrc.ALU);
+				return nextPC;
+			};
+		case ROTC_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(reg0, Alu.rotate(rotDir, cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case ROT_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(reg0, Alu.rotate(rotDir, cpu.getReg(reg0), Bits.test(cpu.getReg(Reg.F), Flag.C)));
+				return nextPC;
+			};
+		case ROTC_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHLAndSetFlags(Alu.rotate(rotDir, cpu.read8AtHL()));
+				return nextPC;
+			};
+		case ROT_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHLAndSetFlags(Alu.rotate(rotDir, cpu.read8AtHL(), Bits.test(cpu.getReg(Reg.F), Flag.C)));
+				return nextPC;
+			};
+		case SWAP_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(reg0, Alu.swap(cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case SWAP_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHLAndSetFlags(Alu.swap(cpu.read8AtHL()));
+				return nextPC;
+			};
+		case SLA_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(reg0, Alu.shiftLeft(cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case SRA_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(reg0, Alu.shiftRightA(cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case SRL_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setRegAndFlags(reg0, Alu.shiftRightL(cpu.getReg(reg0)));
+				return nextPC;
+			};
+		case SLA_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHLAndSetFlags(Alu.shiftLeft(cpu.read8AtHL()));
+				return nextPC;
+			};
+		case SRA_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHLAndSetFlags(Alu.shiftRightA(cpu.read8AtHL()));
+				return nextPC;
+			};
+		case SRL_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHLAndSetFlags(Alu.shiftRightL(cpu.read8AtHL()));
+				return nextPC;
+			};
 
 		// Bit test and set
-		case BIT_U3_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Alu.testBit(regF.get(register), extractIndex(opcode));
-			combineAluFlags(result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.V1, FlagSrc.CPU);
-		}
-			break;
-		case BIT_U3_HLR: {
-			int result = Alu.testBit(read8AtHL(), extractIndex(opcode));
-			combineAluFlags(result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.V1, FlagSrc.CPU);
-		}
-			break;
-		case CHG_U3_R8: {
-			Reg register = extractReg(opcode, 0);
-			int result = Bits.set(regF.get(register), extractIndex(opcode), Bits.test(encoding, 6));
-			regF.set(register, result);
-		}
-			break;
-		case CHG_U3_HLR: {
-			int result = Bits.set(read8AtHL(), extractIndex(opcode), Bits.test(encoding, 6));
-			write8AtHL(result);
-		}
-			break;
+		case BIT_U3_R8:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.testBit(cpu.getReg(reg0), index);
+				cpu.combineAluFlags(result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.V1, FlagSrc.CPU);
+				return nextPC;
+			};
+		case BIT_U3_HLR:
+			return (cpu, argument, nextPC) -> {
+				int result = Alu.testBit(cpu.read8AtHL(), index);
+				cpu.combineAluFlags(result, FlagSrc.ALU, FlagSrc.V0, FlagSrc.V1, FlagSrc.CPU);
+				return nextPC;
+			};
+		case CHG_U3_R8:
+			return (cpu, argument, nextPC) -> {
+				cpu.setReg(reg0, Bits.set(cpu.getReg(reg0), index, bit6));
+				return nextPC;
+			};
+		case CHG_U3_HLR:
+			return (cpu, argument, nextPC) -> {
+				cpu.write8AtHL(Bits.set(cpu.read8AtHL(), index, bit6));
+				return nextPC;
+			};
 
 		// Misc. ALU
-		case DAA: {
-			int flags = regF.get(Reg.F);
-			boolean n = Bits.test(flags, Flag.N);
-			boolean h = Bits.test(flags, Flag.H);
-			boolean c = Bits.test(flags, Flag.C);
-
-			int result = Alu.bcdAdjust(regF.get(Reg.A), n, h, c);
-			setRegAndFlags(Reg.A, result);
-		}
-			break;
-		case SCCF: {
-			regF.setBit(Reg.F, Flag.N, false);
-			regF.setBit(Reg.F, Flag.H, false);
-			regF.setBit(Reg.F, Flag.C, !carryValue(opcode));
-		}
-			break;
+		case DAA:
+			return (cpu, argument, nextPC) -> {
+				int flags = cpu.getReg(Reg.F);
+				boolean n = Bits.test(flags, Flag.N);
+				boolean h = Bits.test(flags, Flag.H);
+				boolean c = Bits.test(flags, Flag.C);
+				cpu.setRegAndFlags(Reg.A, Alu.bcdAdjust(cpu.getReg(Reg.A), n, h, c));
+				return nextPC;
+			};
+		case SCCF:
+			return (cpu, argument, nextPC) -> {
+				int flags = cpu.getReg(Reg.F) & Alu.maskZNHC(true, false, false, false);
+				cpu.setReg(Reg.F, Bits.set(flags, Flag.C.index(), !cpu.carryValue(bit3)));
+				return nextPC;
+			};
+
 		// Jumps
 		case JP_HL:
-			nextPC = getValueFromR16(Reg16.HL);
-			break;
+			return (cpu, argument, nextPC) -> cpu.getValueFromR16(Reg16.HL);
 		case JP_N16:
-			nextPC = read16AfterOpcode();
-			break;
+			return (cpu, argument, nextPC) -> argument;
 		case JP_CC_N16:
-			if (checkCondition(opcode)) {
-				nextNonIdleCycle += opcode.additionalCycles;
-				nextPC = read16AfterOpcode();
-			}
-			break;
+			return (cpu, argument, nextPC) -> {
+				if (cpu.checkCondition(condition)) {
+					cpu.nextNonIdleCycle += additionalCycles;
+					return argument;
+				}
+				return nextPC;
+			};
 		case JR_E8:
-			nextPC = Bits.clip(16, nextPC + read8AfterOpcodeAsSigned16());
-			break;
+			return (cpu, argument, nextPC) -> Bits.clip(16, nextPC + signExtendArgument(argument));
 		case JR_CC_E8:
-			if (checkCondition(opcode)) {
-				nextNonIdleCycle += opcode.additionalCycles;
-				nextPC = Bits.clip(16, nextPC + read8AfterOpcodeAsSigned16());
-			}
-			break;
+			return (cpu, argument, nextPC) -> {
+				if (cpu.checkCondition(condition)) {
+					cpu.nextNonIdleCycle += additionalCycles;
+					return Bits.clip(16, nextPC + signExtendArgument(argument));
+				}
+				return nextPC;
+			};
 
 		// Calls and returns
 		case CALL_N16:
-			push16(nextPC);
-			nextPC = read16AfterOpcode();
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.push16(nextPC);
+				return argument;
+			};
 		case CALL_CC_N16:
-			if (checkCondition(opcode)) {
-				nextNonIdleCycle += opcode.additionalCycles;
-				push16(nextPC);
-				nextPC = read16AfterOpcode();
-			}
-			break;
+			return (cpu, argument, nextPC) -> {
+				if (cpu.checkCondition(condition)) {
+					cpu.nextNonIdleCycle += additionalCycles;
+					cpu.push16(nextPC);
+					return argument;
+				}
+				return nextPC;
+			};
 		case RST_U3:
-			push16(nextPC);
-			nextPC = AddressMap.RESETS[extractIndex(opcode)];
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.push16(nextPC);
+				return AddressMap.RESETS[index];
+			};
 		case RET:
-			nextPC = pop16();
-			break;
+			return (cpu, argument, nextPC) -> cpu.pop16();
 		case RET_CC:
-			if (checkCondition(opcode)) {
-				nextNonIdleCycle += opcode.additionalCycles;
-				nextPC = pop16();
-			}
-			break;
+			return (cpu, argument, nextPC) -> {
+				if (cpu.checkCondition(condition)) {
+					cpu.nextNonIdleCycle += additionalCycles;
+					return cpu.pop16();
+				}
+				return nextPC;
+			};
 
 		// Interrupts
-		case EDI: {
-			IMERegister = Bits.test(encoding, 3);
-		}
-			break;
-		case RETI: {
-			IMERegister = true;
-			nextPC = pop16();
-		}
-			break;
+		case EDI:
+			return (cpu, argument, nextPC) -> {
+				cpu.IMERegister = bit3;
+				return nextPC;
+			};
+		case RETI:
+			return (cpu, argument, nextPC) -> {
+				cpu.IMERegister = true;
+				return cpu.pop16();
+			};
 
 		// Misc control
 		case HALT:
-			isHalted = true;
-			break;
+			return (cpu, argument, nextPC) -> {
+				cpu.isHalted = true;
+				return nextPC;
+			};
 		case STOP:
-			throw new Error("STOP is not implemented");
+			return (cpu, argument, nextPC) -> {
+				throw new Error("STOP is not implemented");
+			};
+		default:
+			throw new Error("Unknown opcode family " + opcode.family);
 		}
-
-		nextNonIdleCycle += opcode.cycles;
-		PCRegister = nextPC;
 	}
 
 	private int read8(int address) {
-		Preconditions.checkBits16(address);
+		Preconditions.checkInternalBits16(address);
 		return bus.read(address);
 	}
 
@@ -680,12 +1025,27 @@ public final class Cpu implements Component, Clocked {
 		return read8(PCRegister + 1);
 	}
 
-	private int read8AfterOpcodeAsSigned16() {
-		return Bits.clip(16, Bits.signExtend8(read8(PCRegister + 1)));
+	// Reads the argument following the opcode located at the given address
+	private int readArgument(DecodedOpcode opcode, int address) {
+		if (opcode.prefixed) {
+			return 0;
+		}
+		switch (opcode.totalBytes) {
+		case 2:
+			return read8(address + 1);
+		case 3:
+			return read16(address + 1);
+		default:
+			return 0;
+		}
+	}
+
+	private static int signExtendArgument(int argument) {
+		return Bits.clip(16, Bits.signExtend8(argument));
 	}
 
 	private int read16(int address) {
-		Preconditions.checkBits16(address);
+		Preconditions.checkInternalBits16(address);
 		return Bits.make16(bus.read(address + 1), bus.read(address));
 	}
 
@@ -698,7 +1058,9 @@ public final class Cpu implements Component, Clocked {
 	}
 
 	private void write16(int address, int value) {
-		Preconditions.checkBits16(address);
+		Preconditions.checkInternalBits16(address);
+		// Always checked since the return address pushed by an instruction
+		// ending after 0xFFFF does not fit in 16 bits
 		Preconditions.checkBits16(value);
 		int lowB = Bits.clip(8, value);
 		int highB = Bits.extract(value, 8, 8);
@@ -721,10 +1083,18 @@ public final class Cpu implements Component, Clocked {
 		return value;
 	}
 
+	private int getReg(Reg register) {
+		return registers[register.ordinal()];
+	}
+
+	private void setReg(Reg register, int newValue) {
+		registers[register.ordinal()] = newValue;
+	}
+
 	private int getValueFromR16(Reg16 pair) {
-		int highByte = regF.get(Reg.values()[pair.ordinal() * 2]);
-		int lowByte = regF.get(Reg.values()[pair.ordinal() * 2 + 1]);
-		return Bits.make16(highByte, lowByte);
+		int highByte = registers[pair.ordinal() * 2];
+		int lowByte = registers[pair.ordinal() * 2 + 1];
+		return (highByte << 8) | lowByte;
 	}
 
 	private int getValueFromR16SP(Reg16 pair) {
@@ -732,11 +1102,11 @@ public final class Cpu implements Component, Clocked {
 	}
 
 	private void setR16(Reg16 pair, int newValue) {
-		Preconditions.checkBits16(newValue);
-		int highByte = Bits.extract(newValue, 8, 8);
-		int lowByte = (pair.equals(Reg16.AF) ? newValue & 0xF0 : Bits.clip(8, newValue));
-		regF.set(Reg.values()[pair.ordinal() * 2], highByte);
-		regF.set(Reg.values()[pair.ordinal() * 2 + 1], lowByte);
+		Preconditions.checkInternalBits16(newValue);
+		int highByte = newValue >>> 8;
+		int lowByte = (pair == Reg16.AF ? newValue & 0xF0 : newValue & 0xFF);
+		registers[pair.ordinal() * 2] = highByte;
+		registers[pair.ordinal() * 2 + 1] = lowByte;
 	}
 
 	private void setR16SP(Reg16 pair, int newValue) {
@@ -747,65 +1117,19 @@ public final class Cpu implements Component, Clocked {
 		}
 	}
 
-	private void incrementHLAccordingToEncoding(int encoding) {
-		int newValue = Bits.clip(16, getValueFromR16(Reg16.HL) + (Bits.test(encoding, 4) ? -1 : 1));
+	// Increments HL, or decrements it if decrement is true
+	private void incrementHL(boolean decrement) {
+		int newValue = Bits.clip(16, getValueFromR16(Reg16.HL) + (decrement ? -1 : 1));
 		setR16(Reg16.HL, newValue);
 	}
 
-	private Reg extractReg(Opcode opcode, int startIndex) {
-		int code = Bits.extract(opcode.encoding, startIndex, 3);
-		switch (code) {
-		case 0b000:
-			return Reg.B;
-		case 0b001:
-			return Reg.C;
-		case 0b010:
-			return Reg.D;
-		case 0b011:
-			return Reg.E;
-		case 0b100:
-			return Reg.H;
-		case 0b101:
-			return Reg.L;
-		case 0b111:
-			return Reg.A;
-		default:
-			throw new IllegalArgumentException("Illegal Opcode or erroneous startIndex");
-		}
-	}
-
-	private Reg16 extractReg16(Opcode opcode) {
-		int code = Bits.extract(opcode.encoding, 4, 2);
-		switch (code) {
-		case 0b00:
-			return Reg16.BC;
-		case 0b01:
-			return Reg16.DE;
-		case 0b10:
-			return Reg16.HL;
-		case 0b11:
-			return Reg16.AF;
-		default:
-			throw new IllegalArgumentException(
-					"Something went horribly wrong because Bits.extract did not work correctly");
-		}
-	}
-
-	private RotDir extractRotDir(Opcode opcode) {
-		return Bits.test(opcode.encoding, 3) ? RotDir.RIGHT : RotDir.LEFT;
-	}
-
-	private int extractIndex(Opcode opcode) {
-		return Bits.extract(opcode.encoding, 3, 3);
-	}
-
 	private void setRegAndFlags(Reg register, int packedInteger) {
 		setFlags(packedInteger);
-		regF.set(register, Alu.unpackValue(packedInteger));
+		setReg(register, Alu.unpackValue(packedInteger));
 	}
 
 	private void setRegAndCombinedFlags(Reg register, int packedInteger, FlagSrc z, FlagSrc n, FlagSrc h, FlagSrc c) {
-		regF.set(register, Alu.unpackValue(packedInteger));
+		setReg(register, Alu.unpackValue(packedInteger));
 		combineAluFlags(packedInteger, z, n, h, c);
 	}
 
@@ -820,13 +1144,13 @@ public final class Cpu implements Component, Clocked {
 	}
 
 	private void setFlags(int packedInteger) {
-		regF.set(Reg.F, Alu.unpackFlags(packedInteger));
+		setReg(Reg.F, Alu.unpackFlags(packedInteger));
 	}
 
 	private void combineAluFlags(int packedInteger, FlagSrc z, FlagSrc n, FlagSrc h, FlagSrc c) {
 		int v1BitVector = createBitVector(z, n, h, c, FlagSrc.V1);
 		int aluBitVector = createBitVector(z, n, h, c, FlagSrc.ALU) & Alu.unpackFlags(packedInteger);
-		int cpuBitVector = createBitVector(z, n, h, c, FlagSrc.CPU) & regF.get(Reg.F);
+		int cpuBitVector = createBitVector(z, n, h, c, FlagSrc.CPU) & getReg(Reg.F);
 		setFlags(v1BitVector | aluBitVector | cpuBitVector);
 
 	}
@@ -835,21 +1159,21 @@ public final class Cpu implements Component, Clocked {
 		return Alu.maskZNHC(z.equals(flagWanted), n.equals(flagWanted), h.equals(flagWanted), c.equals(flagWanted));
 	}
 
-	private boolean carryValue(Opcode opcode) {
-		return regF.testBit(Reg.F, Flag.C) && Bits.test(opcode.encoding, 3);
+	// Returns the carry flag if the opcode uses it, as told by its bit 3
+	private boolean carryValue(boolean usesCarry) {
+		return usesCarry && Bits.test(getReg(Reg.F), Flag.C);
 	}
 
-	private boolean checkCondition(Opcode opcode) {
-		int condition = Bits.extract(opcode.encoding, 3, 2);
+	private boolean checkCondition(int condition) {
 		switch (condition) {
 		case 0b00:
-			return !Bits.test(regF.get(Reg.F), Flag.Z);
+			return !Bits.test(getReg(Reg.F), Flag.Z);
 		case 0b01:
-			return Bits.test(regF.get(Reg.F), Flag.Z);
+			return Bits.test(getReg(Reg.F), Flag.Z);
 		case 0b10:
-			return !Bits.test(regF.get(Reg.F), Flag.C);
+			return !Bits.test(getReg(Reg.F), Flag.C);
 		case 0b11:
-			return Bits.test(regF.get(Reg.F), Flag.C);
+			return Bits.test(getReg(Reg.F), Flag.C);
 		default:
 			throw new IllegalArgumentException("Something went horribly wrong because extract did not work correctly");
 		}
@@ -868,4 +1192,176 @@ public final class Cpu implements Component, Clocked {
 		return desiredOpcodes;
 	}
 
+	private static DecodedOpcode[] buildDecodedOpcodeTable() {
+		DecodedOpcode[] decodedOpcodes = new DecodedOpcode[2 * (0xFF + 1)];
+		for (Opcode opcode : Opcode.values()) {
+			int offset = opcode.kind == Opcode.Kind.PREFIXED ? PREFIXED_OFFSET : 0;
+			decodedOpcodes[offset + opcode.encoding] = new DecodedOpcode(opcode);
+		}
+		return decodedOpcodes;
+	}
+
+	/**
+	 * Consecutive instructions of the immutable code, decoded with their
+	 * arguments. Either the block contains a single instruction, or all its
+	 * instructions only use the registers and only the last one may be a jump
+	 */
+	private static final class Block {
+		private final DecodedOpcode[] opcodes;
+		private final int[] arguments;
+		// The class executing the block, or null while it is interpreted
+		private final CompiledBlock compiled;
+		// The number of times the block was interpreted, which may miss a few
+		// executions when the block is shared by forks running on other
+		// threads and thus only delays its compilation
+		private int executions = 0;
+
+		private Block(DecodedOpcode[] opcodes, int[] arguments, CompiledBlock compiled) {
+			this.opcodes = opcodes;
+			this.arguments = arguments;
+			this.compiled = compiled;
+		}
+	}
+
+	/**
+	 * A block translated to a JVM class by BlockCompiler
+	 */
+	interface CompiledBlock {
+		/**
+		 * Executes the block the same way as executeBlock does when no trace
+		 * listener is set
+		 *
+		 * @param cpu
+		 *            the cpu executing the block
+		 * @param limitCycle
+		 *            the cycle before which the following instructions of the
+		 *            block must start
+		 */
+		void execute(Cpu cpu, long limitCycle);
+	}
+
+	/**
+	 * The code executing an opcode, specialized for the operands encoded in
+	 * its bits
+	 */
+	@FunctionalInterface
+	interface Handler {
+		/**
+		 * Executes the opcode, except for the update of PC and of the cycles
+		 * it takes, which are done by the caller
+		 * 
+		 * @param cpu
+		 *            the cpu executing the opcode
+		 * @param argument
+		 *            the value of the bytes following the opcode if it has
+		 *            any
+		 * @param nextPC
+		 *            the address following the opcode and its argument
+		 * @return the address of the next instruction to execute
+		 */
+		int execute(Cpu cpu, int argument, int nextPC);
+	}
+
+	/**
+	 * An opcode together with the operands encoded in its bits, which are
+	 * extracted once when the decoded table is built instead of at each
+	 * execution of the opcode, and the handler executing it
+	 */
+	private static final class DecodedOpcode {
+		// Registers designated by the codes going from 0b000 to 0b111, 0b110
+		// designates (HL) which is handled by a family of its own
+		private static final Reg[] REG_CODES = { Reg.B, Reg.C, Reg.D, Reg.E, Reg.H, Reg.L, null, Reg.A };
+		private static final Reg16[] REG16_CODES = { Reg16.BC, Reg16.DE, Reg16.HL, Reg16.AF };
+
+		private final Opcode.Family family;
+		private final boolean prefixed;
+		private final int totalBytes;
+		private final int cycles, additionalCycles;
+
+		// The operands, only meaningful for the families which use them
+		private final Reg reg0, reg3;
+		private final Reg16 reg16;
+		private final RotDir rotDir;
+		private final int index;
+		private final int condition;
+		private final boolean bit3, bit4, bit6;
+
+		// Whether the opcode only reads and writes the registers, without
+		// accessing the bus nor changing the interrupts or the halt state,
+		// and whether it is a jump, which ends a block
+		private final boolean usesRegistersOnly;
+		private final boolean isJump;
+
+		private final Handler handler;
+
+		private DecodedOpcode(Opcode opcode) {
+			int encoding = opcode.encoding;
+			family = opcode.family;
+			prefixed = opcode.kind == Opcode.Kind.PREFIXED;
+			totalBytes = opcode.totalBytes;
+			cycles = opcode.cycles;
+			additionalCycles = opcode.additionalCycles;
+
+			reg0 = REG_CODES[Bits.extract(encoding, 0, 3)];
+			reg3 = REG_CODES[Bits.extract(encoding, 3, 3)];
+			reg16 = REG16_CODES[Bits.extract(encoding, 4, 2)];
+			rotDir = Bits.test(encoding, 3) ? RotDir.RIGHT : RotDir.LEFT;
+			index = Bits.extract(encoding, 3, 3);
+			condition = Bits.extract(encoding, 3, 2);
+			bit3 = Bits.test(encoding, 3);
+			bit4 = Bits.test(encoding, 4);
+			bit6 = Bits.test(encoding, 6);
+
+			isJump = family == Opcode.Family.JP_HL || family == Opcode.Family.JP_N16
+					|| family == Opcode.Family.JP_CC_N16 || family == Opcode.Family.JR_E8
+					|| family == Opcode.Family.JR_CC_E8;
+			usesRegistersOnly = isJump || usesRegistersOnly(family);
+			handler = handlerOf(this);
+		}
+
+		private static boolean usesRegistersOnly(Opcode.Family family) {
+			switch (family) {
+			case NOP:
+			case LD_R8_N8:
+			case LD_R16SP_N16:
+			case LD_R8_R8:
+			case LD_SP_HL:
+			case ADD_A_R8:
+			case ADD_A_N8:
+			case INC_R8:
+			case INC_R16SP:
+			case ADD_HL_R16SP:
+			case LD_HLSP_S8:
+			case SUB_A_R8:
+			case SUB_A_N8:
+			case DEC_R8:
+			case CP_A_R8:
+			case CP_A_N8:
+			case DEC_R16SP:
+			case AND_A_N8:
+			case AND_A_R8:
+			case OR_A_R8:
+			case OR_A_N8:
+			case XOR_A_R8:
+			case XOR_A_N8:
+			case CPL:
+			case ROTCA:
+			case ROTA:
+			case ROTC_R8:
+			case ROT_R8:
+			case SWAP_R8:
+			case SLA_R8:
+			case SRA_R8:
+			case SRL_R8:
+			case BIT_U3_R8:
+			case CHG_U3_R8:
+			case DAA:
+			case SCCF:
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+
 }
@@ -0,0 +1,40 @@
+package ch.epfl.gameboj.component.cpu;
+
+/**
+ * A listener that the cpu notifies after each instruction it executed, it is
+ * only meant to be registered when the execution must be followed step by step
+ * (for example by the debugger) since it is called on the hot path of the cpu
+ */
+@FunctionalInterface
+public interface CpuTraceListener {
+
+    /**
+     * Called by the cpu after it executed an instruction with the values of its
+     * registers once the instruction is done
+     * 
+     * @param cpu
+     *            the cpu that executed the instruction
+     * @param pc
+     *            the value of the register PC
+     * @param sp
+     *            the value of the register SP
+     * @param a
+     *            the value of the register A
+     * @param f
+     *            the value of the register F
+     * @param b
+     *            the value of the register B
+     * @param c
+     *            the value of the register C
+     * @param d
+     *            the value of the register D
+     * @param e
+     *            the value of the register E
+     * @param h
+     *            the value of the register H
+     * @param l
+     *            the value of the register L
+     */
+    void instructionExecuted(Cpu cpu, int pc, int sp, int a, int f, int b,
+            int c, int d, int e, int h, int l);
+}
@@ -1,12 +1,15 @@
 package ch.epfl.gameboj.component.memory;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 import ch.epfl.gameboj.AddressMap;
+import ch.epfl.gameboj.Bus;
 import ch.epfl.gameboj.component.Component;
+import ch.epfl.gameboj.component.Stateful;
 import ch.epfl.gameboj.component.cartridge.Cartridge;
 
-public final class BootRomController implements Component {
+public final class BootRomController implements Component, Stateful {
 
 	private final Cartridge cartridge;
 	boolean isTransparent = false;
@@ -22,6 +25,18 @@ public final class BootRomController implements Component {
 		this.cartridge = Objects.requireNonNull(cartridge);
 	}
 
+	/**
+	 * Returns a copy of this controller, controlling a fork of its cartridge
+	 * 
+	 * @return a copy of this controller
+	 * @see Cartridge#fork()
+	 */
+	public BootRomController fork() {
+		BootRomController copy = new BootRomController(cartridge.fork());
+		copy.isTransparent = isTransparent;
+		return copy;
+	}
+
 	@Override
 	public int read(int address) {
 		if (!isTransparent && address >= AddressMap.BOOT_ROM_START && address < AddressMap.BOOT_ROM_END) {
@@ -40,4 +55,29 @@ public final class BootRomController implements Component {
 		}
 	}
 
+	// The state of the cartridge is saved along with the one of the controller
+	@Override
+	public int stateSize() {
+		return 1 + cartridge.stateSize();
+	}
+
+	@Override
+	public void saveState(ByteBuffer buffer) {
+		buffer.put((byte) (isTransparent ? 1 : 0));
+		cartridge.saveState(buffer);
+	}
+
+	@Override
+	public void restoreState(ByteBuffer buffer) {
+		isTransparent = buffer.get() != 0;
+		cartridge.restoreState(buffer);
+	}
+
+	@Override
+	public void attachTo(Bus bus) {
+		bus.attach(this, AddressMap.CARTRIDGE_ROM_START, AddressMap.CARTRIDGE_ROM_END);
+		bus.attach(this, AddressMap.CARTRIDGE_RAM_START, AddressMap.CARTRIDGE_RAM_END);
+		bus.attach(this, AddressMap.REG_BOOT_ROM_DISABLE, AddressMap.REG_BOOT_ROM_DISABLE + 1);
+	}
+
 }
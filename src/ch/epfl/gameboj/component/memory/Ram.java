@@ -1,16 +1,28 @@
 package ch.epfl.gameboj.component.memory;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Objects;
 
 import ch.epfl.gameboj.Preconditions;
+import ch.epfl.gameboj.component.Stateful;
 
 /**
  * @author Axel Marmet (288862)
  *
  */
-public final class Ram {
+public final class Ram implements Stateful {
 
-    private byte[] memory;
+    // The memory is split in pages which are shared by the rams forked from
+    // one another until one of them writes to it
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final int size;
+    private final byte[][] pages;
+    // Whether each page belongs to this ram only and can be written directly
+    private final boolean[] isOwned;
 
     /**
      * Creates a new ram with an array of byte of the given size as memory
@@ -23,7 +35,33 @@ public final class Ram {
      */
     public Ram(int size) {
         Preconditions.checkArgument(size >= 0);
-        memory = new byte[size];
+        this.size = size;
+        pages = new byte[(size + PAGE_MASK) >> PAGE_BITS][];
+        isOwned = new boolean[pages.length];
+        for (int i = 0; i < pages.length; ++i) {
+            pages[i] = new byte[Math.min(PAGE_SIZE, size - (i << PAGE_BITS))];
+            isOwned[i] = true;
+        }
+    }
+
+    private Ram(Ram original) {
+        size = original.size;
+        pages = original.pages.clone();
+        isOwned = new boolean[pages.length];
+    }
+
+    /**
+     * Returns a copy of this ram which shares its pages with it until one of
+     * them writes to a page, the page being then copied. The copy costs the
+     * size of the table of pages rather than the size of the memory, and
+     * several copies can be used by different threads. This ram must not be
+     * written while it is being forked
+     * 
+     * @return a ram with the same content
+     */
+    public Ram fork() {
+        Arrays.fill(isOwned, false);
+        return new Ram(this);
     }
 
     /**
@@ -32,7 +70,7 @@ public final class Ram {
      * @return the size of the memory array
      */
     public int size() {
-        return memory.length;
+        return size;
     }
 
     /**
@@ -47,8 +85,8 @@ public final class Ram {
      * @return the integer value located at position index in the memory array
      */
     public int read(int index) {
-        Objects.checkIndex(index, memory.length);
-        return Byte.toUnsignedInt(memory[index]);
+        Objects.checkIndex(index, size);
+        return Byte.toUnsignedInt(pages[index >> PAGE_BITS][index & PAGE_MASK]);
     }
 
     /**
@@ -63,11 +101,49 @@ public final class Ram {
      *             if the given index is not greater or equal than 0 and smaller
      *             than the size of the memory array
      * @throws IllegalArgumentException
-     *             if the given value does not fit in a byte
+     *             if the given value does not fit in a byte, unless the
+     *             system property gameboj.trusted is set, in which case the
+     *             value is not checked, see Preconditions.TRUSTED
      */
     public void write(int index, int value) {
-        Objects.checkIndex(index, memory.length);
-        Preconditions.checkBits8(value);
-        memory[index] = (byte) value;
+        Objects.checkIndex(index, size);
+        Preconditions.checkInternalBits8(value);
+        ownedPage(index >> PAGE_BITS)[index & PAGE_MASK] = (byte) value;
+    }
+
+    // Returns the page of the given index, after copying it if it is shared
+    private byte[] ownedPage(int page) {
+        if (!isOwned[page]) {
+            pages[page] = pages[page].clone();
+            isOwned[page] = true;
+        }
+        return pages[page];
+    }
+
+    @Override
+    public int stateSize() {
+        return Integer.BYTES + size;
+    }
+
+    // The content of the memory is copied in bulk, preceded by its size
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        buffer.putInt(size);
+        for (byte[] page : pages) {
+            buffer.put(page);
+        }
+    }
+
+    @Override
+    public void restoreState(ByteBuffer buffer) {
+        Preconditions.checkArgument(buffer.getInt() == size);
+        for (int i = 0; i < pages.length; ++i) {
+            // A shared page is replaced rather than copied and overwritten
+            if (!isOwned[i]) {
+                pages[i] = new byte[pages[i].length];
+                isOwned[i] = true;
+            }
+            buffer.get(pages[i]);
+        }
     }
 }
@@ -2,6 +2,7 @@ package ch.epfl.gameboj.component.memory;
 
 import java.util.Objects;
 
+import ch.epfl.gameboj.Bus;
 import ch.epfl.gameboj.Preconditions;
 import ch.epfl.gameboj.component.Component;
 
@@ -63,7 +64,7 @@ public final class RamController implements Component {
 
     @Override
     public int read(int address) {
-        Preconditions.checkBits16(address);
+        Preconditions.checkInternalBits16(address);
         if (isInBounds(address))
             return ram.read(address - startAddress);
         else
@@ -72,12 +73,17 @@ public final class RamController implements Component {
 
     @Override
     public void write(int address, int data) {
-        Preconditions.checkBits16(address);
-        Preconditions.checkBits8(data);
+        Preconditions.checkInternalBits16(address);
+        Preconditions.checkInternalBits8(data);
         if (isInBounds(address))
             ram.write(address - startAddress, data);
     }
 
+    @Override
+    public void attachTo(Bus bus) {
+        bus.attach(this, startAddress, endAddress);
+    }
+
     private boolean isInBounds(int address) {
         return (address >= startAddress && address < endAddress);
     }
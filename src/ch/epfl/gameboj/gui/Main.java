@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.List;
 
@@ -16,6 +17,7 @@ import ch.epfl.bonus.scanner.Scanner;
 import ch.epfl.bonus.scanner.Token;
 import ch.epfl.gameboj.GameBoy;
 import ch.epfl.gameboj.component.cartridge.Cartridge;
+import ch.epfl.gameboj.component.cpu.Cpu;
 import javafx.application.Application;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.scene.Scene;
@@ -28,6 +30,9 @@ import javafx.stage.Stage;
 
 public class Main extends Application {
 
+	// The number of steps of the debugging mode that can be undone
+	private static final int UNDO_WINDOW = 10_000;
+
 	private File saveFile;
 	// Ugly but server does not accept save file
 	private final static String initialSource = "main() { \n" + "\t var n = 0 \n" + "\t while(n < 8 ){ \n"
@@ -37,7 +42,9 @@ public class Main extends Application {
 	private String code;
 	private SimpleObjectProperty<String> consoleProperty = new SimpleObjectProperty<>();
 	private SimpleObjectProperty<String> registerProperty = new SimpleObjectProperty<>();
+	private StringBuilder registerTrace = new StringBuilder();
 	private GameBoy gameboy;
+	private ByteBuffer rom;
 
 	public static void main(String[] args) {
 		if (args.length != 1)
@@ -65,12 +72,15 @@ public class Main extends Application {
 		Button debuggingButton = new Button("Debugging Mode");
 		Button exitButton = new Button("Exit Debugging Mode");
 		Button stepButton = new Button("Step");
+		Button stepBackButton = new Button("Step Back");
 
 		stepButton.setVisible(false);
+		stepBackButton.setVisible(false);
 		exitButton.setVisible(false);
 
 		debuggingButton.setOnAction((e) -> {
 			stepButton.setVisible(true);
+			stepBackButton.setVisible(true);
 			exitButton.setVisible(true);
 			registerArea.setManaged(true);
 			registerArea.setVisible(true);
@@ -81,7 +91,10 @@ public class Main extends Application {
 			try {
 				compileCode();
 				createGameboy();
-				registerProperty.bind(gameboy.cpu().cpuProperty);
+				registerTrace.setLength(0);
+				registerProperty.set("");
+				gameboy.cpu().setTraceListener(this::traceRegisters);
+				gameboy.setUndoWindow(UNDO_WINDOW);
 			} catch (IOException e1) {
 				e1.printStackTrace();
 			}
@@ -91,8 +104,17 @@ public class Main extends Application {
 			gameboy.runOneCpuInstruction();
 		});
 
+		stepBackButton.setOnAction((e) -> {
+			if (gameboy.stepBack()) {
+				int[] r = gameboy.cpu()._testGetPcSpAFBCDEHL();
+				registerTrace.append("---- stepped back ----\n");
+				traceRegisters(gameboy.cpu(), r[0], r[1], r[2], r[3], r[4], r[5], r[6], r[7], r[8], r[9]);
+			}
+		});
+
 		exitButton.setOnAction((e) -> {
 			stepButton.setVisible(false);
+			stepBackButton.setVisible(false);
 			exitButton.setVisible(false);
 			registerArea.setManaged(false);
 			registerArea.setVisible(false);
@@ -100,9 +122,10 @@ public class Main extends Application {
 			debuggingButton.setManaged(true);
 			compileButton.setVisible(true);
 			compileButton.setManaged(true);
-			registerProperty.unbind();
+			gameboy.cpu().setTraceListener(null);
+			gameboy.setUndoWindow(0);
 		});
-		ToolBar toolBar = new ToolBar(compileButton, debuggingButton, stepButton, exitButton);
+		ToolBar toolBar = new ToolBar(compileButton, debuggingButton, stepButton, stepBackButton, exitButton);
 
 		borderPane.setTop(toolBar);
 
@@ -149,7 +172,7 @@ public class Main extends Application {
 		List<Expression> expressions = parser.parse();
 
 		Compiler compiler = new Compiler();
-		compiler.compile(expressions);
+		rom = compiler.compileToRom(expressions);
 	}
 
 	private void runCode() throws IOException {
@@ -159,10 +182,23 @@ public class Main extends Application {
 
 	private void createGameboy() throws IOException {
 		consoleProperty.unbind();
-		gameboy = new GameBoy(Cartridge.ofFile(new File("save.gb")));
+		gameboy = new GameBoy(Cartridge.ofBuffer(rom));
 		consoleProperty.bind(gameboy.serialPortPrintComponent().consoleProperty);
 	}
 
+	private void traceRegisters(Cpu cpu, int pc, int sp, int a, int f, int b, int c, int d, int e, int h, int l) {
+		registerTrace.append("--------------------\n");
+		registerTrace.append("Will execute " + cpu.getNextOpcodeInformation() + "\n");
+		registerTrace.append(String.format("PC : %-5d \n", pc));
+		registerTrace.append(String.format("SP : %-5d \n", sp));
+		int[] values = { a, f, b, c, d, e, h, l };
+		String[] names = { "A", "F", "B", "C", "D", "E", "H", "L" };
+		for (int i = 0; i < values.length; ++i) {
+			registerTrace.append(String.format(names[i] + " : %-5d \n", values[i]));
+		}
+		registerProperty.set(registerTrace.toString());
+	}
+
 	private void initSaveFile() throws IOException {
 		String path = getParameters().getRaw().get(0);
 		saveFile = new File(path);
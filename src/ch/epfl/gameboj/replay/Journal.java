@@ -0,0 +1,58 @@
+package ch.epfl.gameboj.replay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The format of the journal of a run, shared by the recorder and the replayer.
+ *
+ * A journal starts with MAGIC and VERSION, followed by entries. Each entry is
+ * its type, the number of cycles since the previous entry and the data of its
+ * type : the ordinal of the key for the keys, the value written for the
+ * serial port and the state of the GameBoy, preceded by its size, for the
+ * snapshots. The first entry is a snapshot of the state the run starts from
+ * and the last one marks the cycle at which the recording ended. The numbers
+ * of cycles and the sizes are written with a variable number of bytes, seven
+ * bits per byte, as they are mostly small
+ */
+final class Journal {
+
+    static final int MAGIC = 0x47424A4C;
+    static final int VERSION = 1;
+
+    static final int KEY_PRESSED = 0;
+    static final int KEY_RELEASED = 1;
+    static final int SERIAL = 2;
+    static final int SNAPSHOT = 3;
+    static final int END = 4;
+
+    private static final int VARIABLE_BITS = 7;
+    private static final int VARIABLE_MASK = (1 << VARIABLE_BITS) - 1;
+    private static final int CONTINUATION = 1 << VARIABLE_BITS;
+
+    private Journal() {
+    }
+
+    static void writeVariable(DataOutputStream out, long value) throws IOException {
+        while ((value & ~VARIABLE_MASK) != 0) {
+            out.writeByte((int) (value & VARIABLE_MASK) | CONTINUATION);
+            value >>>= VARIABLE_BITS;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVariable(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift >= Long.SIZE)
+                throw new IOException("Malformed journal");
+            b = in.readUnsignedByte();
+            value |= (long) (b & VARIABLE_MASK) << shift;
+            shift += VARIABLE_BITS;
+        } while ((b & CONTINUATION) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,196 @@
+package ch.epfl.gameboj.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import ch.epfl.gameboj.GameBoy;
+import ch.epfl.gameboj.Preconditions;
+import ch.epfl.gameboj.component.Joypad.Key;
+
+/**
+ * Runs a GameBoy while writing a journal of everything needed to replay the
+ * run : the keys pressed and released, at the cycle at which they are, and
+ * periodic snapshots of the state of the GameBoy to start a replay from. The
+ * values written to the serial port are journaled as well so that a replay
+ * can check that it reproduces the run.
+ *
+ * The journal is only appended to, the keys must thus be pressed and the
+ * GameBoy run through the recorder until it is closed
+ */
+public final class Recorder implements Closeable {
+
+    private final GameBoy gameBoy;
+    private final DataOutputStream out;
+    private final long snapshotInterval;
+    private long lastEntryCycle;
+    private long lastSnapshotCycle;
+    // The first error raised while journaling a value written to the serial
+    // port, which cannot be thrown by the listener itself
+    private IOException serialError = null;
+
+    /**
+     * Creates a recorder of the runs of the given GameBoy, writing its journal
+     * to the given stream starting with a snapshot of the current state of the
+     * GameBoy
+     *
+     * @param gameBoy
+     *            the GameBoy to run (must not be null)
+     * @param out
+     *            the stream the journal is written to (must not be null)
+     * @param snapshotInterval
+     *            the number of cycles between two snapshots (must be strictly
+     *            positive)
+     * @throws IOException
+     *             if the start of the journal cannot be written
+     * @throws IllegalArgumentException
+     *             if snapshotInterval is not strictly positive
+     */
+    public Recorder(GameBoy gameBoy, OutputStream out, long snapshotInterval) throws IOException {
+        Preconditions.checkArgument(snapshotInterval > 0);
+        this.gameBoy = Objects.requireNonNull(gameBoy);
+        this.out = new DataOutputStream(new BufferedOutputStream(Objects.requireNonNull(out)));
+        this.snapshotInterval = snapshotInterval;
+        lastEntryCycle = gameBoy.cycles();
+        this.out.writeInt(Journal.MAGIC);
+        this.out.writeByte(Journal.VERSION);
+        snapshot();
+        gameBoy.serialPortPrintComponent().setWriteListener(value -> {
+            try {
+                writeEntry(Journal.SERIAL);
+                this.out.writeByte(value);
+            } catch (IOException e) {
+                if (serialError == null)
+                    serialError = e;
+            }
+        });
+    }
+
+    /**
+     * Returns the GameBoy being recorded, which must only be run through the
+     * recorder
+     *
+     * @return the GameBoy being recorded
+     */
+    public GameBoy gameBoy() {
+        return gameBoy;
+    }
+
+    /**
+     * Runs the GameBoy until the given cycle, as GameBoy#runUntil does
+     *
+     * @param limitCycle
+     *            the cycle to run until
+     * @throws IOException
+     *             if the journal cannot be written
+     * @throws IllegalArgumentException
+     *             if the limit cycle is smaller than the amount of cycles
+     *             already simulated
+     */
+    public void runUntil(long limitCycle) throws IOException {
+        Preconditions.checkArgument(limitCycle >= gameBoy.cycles());
+        while (gameBoy.cycles() < limitCycle) {
+            gameBoy.runUntil(Math.min(limitCycle, nextSnapshotCycle()));
+            snapshotIfDue();
+        }
+    }
+
+    /**
+     * Runs the GameBoy until its cpu is halted or until the given cycle, as
+     * GameBoy#runUntilCpuHalted does
+     *
+     * @param limitCycle
+     *            the cycle after which the run stops even if the cpu is not
+     *            halted
+     * @throws IOException
+     *             if the journal cannot be written
+     */
+    public void runUntilCpuHalted(long limitCycle) throws IOException {
+        while (!gameBoy.cpu().isHalted() && gameBoy.cycles() < limitCycle) {
+            gameBoy.runUntilCpuHalted(Math.min(limitCycle, nextSnapshotCycle()));
+            snapshotIfDue();
+        }
+    }
+
+    /**
+     * Presses the given key at the current cycle
+     *
+     * @param key
+     *            the key pressed
+     * @throws IOException
+     *             if the journal cannot be written
+     */
+    public void keyPressed(Key key) throws IOException {
+        writeEntry(Journal.KEY_PRESSED);
+        out.writeByte(key.ordinal());
+        gameBoy.joypad().keyPressed(key);
+    }
+
+    /**
+     * Releases the given key at the current cycle
+     *
+     * @param key
+     *            the key released
+     * @throws IOException
+     *             if the journal cannot be written
+     */
+    public void keyReleased(Key key) throws IOException {
+        writeEntry(Journal.KEY_RELEASED);
+        out.writeByte(key.ordinal());
+        gameBoy.joypad().keyReleased(key);
+    }
+
+    /**
+     * Ends the journal at the current cycle and closes its stream, the GameBoy
+     * can then be used on its own again
+     *
+     * @throws IOException
+     *             if the journal cannot be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+        gameBoy.serialPortPrintComponent().setWriteListener(null);
+        try {
+            checkSerialError();
+            writeEntry(Journal.END);
+        } finally {
+            out.close();
+        }
+    }
+
+    private long nextSnapshotCycle() {
+        return lastSnapshotCycle + snapshotInterval;
+    }
+
+    private void snapshotIfDue() throws IOException {
+        checkSerialError();
+        if (gameBoy.cycles() >= nextSnapshotCycle())
+            snapshot();
+    }
+
+    private void snapshot() throws IOException {
+        ByteBuffer state = gameBoy.saveState();
+        byte[] bytes = new byte[state.remaining()];
+        state.get(bytes);
+        writeEntry(Journal.SNAPSHOT);
+        Journal.writeVariable(out, bytes.length);
+        out.write(bytes);
+        lastSnapshotCycle = gameBoy.cycles();
+    }
+
+    private void writeEntry(int type) throws IOException {
+        long cycle = gameBoy.cycles();
+        out.writeByte(type);
+        Journal.writeVariable(out, cycle - lastEntryCycle);
+        lastEntryCycle = cycle;
+    }
+
+    private void checkSerialError() throws IOException {
+        if (serialError != null)
+            throw serialError;
+    }
+}
@@ -0,0 +1,215 @@
+package ch.epfl.gameboj.replay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import ch.epfl.gameboj.GameBoy;
+import ch.epfl.gameboj.Preconditions;
+import ch.epfl.gameboj.component.Joypad;
+import ch.epfl.gameboj.component.Joypad.Key;
+import ch.epfl.gameboj.component.cartridge.Cartridge;
+
+/**
+ * Replays a run recorded by a {@link Recorder}, bit for bit : the GameBoy is
+ * brought back to a snapshot of the run and the keys are pressed and released
+ * at the same cycles as during the run. The values written to the serial port
+ * during the replay are checked against the ones written during the run.
+ *
+ * The journal is read as a whole when the replayer is created, a replayer can
+ * then seek to any cycle of the run as many times as needed, starting from
+ * the last snapshot before this cycle
+ */
+public final class Replayer {
+
+    private static final Key[] KEYS = Key.values();
+
+    // A key pressed or released, or a value written to the serial port
+    private static final class Event {
+        final long cycle;
+        final int type;
+        final int value;
+
+        Event(long cycle, int type, int value) {
+            this.cycle = cycle;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static final class Snapshot {
+        final long cycle;
+        final ByteBuffer state;
+        // The index of the first event recorded after the snapshot
+        final int firstEvent;
+
+        Snapshot(long cycle, ByteBuffer state, int firstEvent) {
+            this.cycle = cycle;
+            this.state = state;
+            this.firstEvent = firstEvent;
+        }
+    }
+
+    private final List<Event> events;
+    private final List<Snapshot> snapshots;
+    private final long endCycle;
+
+    private Replayer(List<Event> events, List<Snapshot> snapshots, long endCycle) {
+        this.events = Collections.unmodifiableList(events);
+        this.snapshots = Collections.unmodifiableList(snapshots);
+        this.endCycle = endCycle;
+    }
+
+    /**
+     * Reads the journal contained in the given stream, which is not closed
+     *
+     * @param in
+     *            the stream containing the journal (must not be null)
+     * @return a replayer of the journaled run
+     * @throws IOException
+     *             if the stream cannot be read or does not contain a complete
+     *             journal
+     */
+    public static Replayer of(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(Objects.requireNonNull(in)));
+        if (data.readInt() != Journal.MAGIC || data.readUnsignedByte() != Journal.VERSION)
+            throw new IOException("Not a journal of a supported version");
+        List<Event> events = new ArrayList<>();
+        List<Snapshot> snapshots = new ArrayList<>();
+        long cycle = 0;
+        try {
+            while (true) {
+                int type = data.readUnsignedByte();
+                cycle += Journal.readVariable(data);
+                switch (type) {
+                case Journal.KEY_PRESSED:
+                case Journal.KEY_RELEASED:
+                    int key = data.readUnsignedByte();
+                    if (key >= KEYS.length)
+                        throw new IOException("Unknown key " + key);
+                    events.add(new Event(cycle, type, key));
+                    break;
+                case Journal.SERIAL:
+                    events.add(new Event(cycle, type, data.readUnsignedByte()));
+                    break;
+                case Journal.SNAPSHOT:
+                    byte[] state = new byte[(int) Journal.readVariable(data)];
+                    data.readFully(state);
+                    snapshots.add(new Snapshot(cycle, ByteBuffer.wrap(state).asReadOnlyBuffer(), events.size()));
+                    break;
+                case Journal.END:
+                    if (snapshots.isEmpty())
+                        throw new IOException("Journal without snapshot");
+                    return new Replayer(events, snapshots, cycle);
+                default:
+                    throw new IOException("Unknown entry " + type);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated journal", e);
+        }
+    }
+
+    /**
+     * Returns the cycle at which the recording of the run ended
+     *
+     * @return the last cycle of the run
+     */
+    public long endCycle() {
+        return endCycle;
+    }
+
+    /**
+     * Returns the cycle of the first snapshot, where the run started
+     *
+     * @return the first cycle of the run
+     */
+    public long startCycle() {
+        return snapshots.get(0).cycle;
+    }
+
+    /**
+     * Replays the whole run on a new GameBoy
+     *
+     * @param cartridge
+     *            the cartridge the run was recorded with, which is forked and
+     *            left unchanged (must not be null)
+     * @return the GameBoy in the state it had at the end of the run
+     * @throws IllegalStateException
+     *             if the replay does not write the same values to the serial
+     *             port as the run
+     */
+    public GameBoy replay(Cartridge cartridge) {
+        return seek(cartridge, endCycle);
+    }
+
+    /**
+     * Replays the run on a new GameBoy until the given cycle, starting from
+     * the last snapshot taken at or before it. The keys pressed or released at
+     * the given cycle are not applied yet
+     *
+     * @param cartridge
+     *            the cartridge the run was recorded with, which is forked and
+     *            left unchanged (must not be null)
+     * @param cycle
+     *            the cycle to seek to (must be between the start and the end
+     *            cycles of the run)
+     * @return the GameBoy in the state it had at the given cycle
+     * @throws IllegalArgumentException
+     *             if the cycle is not part of the run
+     * @throws IllegalStateException
+     *             if the replay does not write the same values to the serial
+     *             port as the run
+     */
+    public GameBoy seek(Cartridge cartridge, long cycle) {
+        Preconditions.checkArgument(cycle >= startCycle() && cycle <= endCycle);
+        Snapshot snapshot = snapshots.get(0);
+        for (Snapshot s : snapshots) {
+            if (s.cycle <= cycle)
+                snapshot = s;
+        }
+        GameBoy gameBoy = new GameBoy(cartridge.fork());
+        gameBoy.restoreState(snapshot.state);
+
+        // The values written to the serial port are checked in the order in
+        // which they were recorded
+        List<Event> serialWrites = new ArrayList<>();
+        for (Event event : events.subList(snapshot.firstEvent, events.size())) {
+            if (event.type == Journal.SERIAL && event.cycle < cycle)
+                serialWrites.add(event);
+        }
+        int[] nextWrite = { 0 };
+        gameBoy.serialPortPrintComponent().setWriteListener(value -> {
+            if (nextWrite[0] >= serialWrites.size())
+                throw new IllegalStateException("Replay diverged : unexpected write at cycle " + gameBoy.cycles());
+            Event expected = serialWrites.get(nextWrite[0]++);
+            if (expected.value != value || expected.cycle != gameBoy.cycles())
+                throw new IllegalStateException("Replay diverged at cycle " + gameBoy.cycles());
+        });
+
+        Joypad joypad = gameBoy.joypad();
+        for (Event event : events.subList(snapshot.firstEvent, events.size())) {
+            if (event.cycle >= cycle)
+                break;
+            if (event.type == Journal.SERIAL)
+                continue;
+            gameBoy.runUntil(event.cycle);
+            if (event.type == Journal.KEY_PRESSED)
+                joypad.keyPressed(KEYS[event.value]);
+            else
+                joypad.keyReleased(KEYS[event.value]);
+        }
+        gameBoy.runUntil(cycle);
+        gameBoy.serialPortPrintComponent().setWriteListener(null);
+        if (nextWrite[0] != serialWrites.size())
+            throw new IllegalStateException("Replay diverged : missing writes before cycle " + cycle);
+        return gameBoy;
+    }
+}